@@ -6,21 +6,29 @@ import roycurtis.jdiscordirc.managers.BridgeManager;
 import roycurtis.jdiscordirc.managers.ConfigManager;
 import roycurtis.jdiscordirc.managers.DiscordManager;
 import roycurtis.jdiscordirc.managers.IRCManager;
-import roycurtis.jdiscordirc.util.CurrentThread;
+import roycurtis.jdiscordirc.managers.MetricsManager;
+import roycurtis.jdiscordirc.managers.MetricsManager.Milestone;
+import roycurtis.jdiscordirc.managers.TranscriptManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Main application class; handles init, main loop and exit */
 public class JDiscordIRC
 {
-    public static final BridgeManager  BRIDGE  = new BridgeManager();
-    public static final ConfigManager  CONFIG  = new ConfigManager();
-    public static final DiscordManager DISCORD = new DiscordManager();
-    public static final IRCManager     IRC     = new IRCManager();
+    public static final BridgeManager     BRIDGE     = new BridgeManager();
+    public static final ConfigManager     CONFIG     = new ConfigManager();
+    public static final DiscordManager    DISCORD    = new DiscordManager();
+    public static final IRCManager        IRC        = new IRCManager();
+    public static final MetricsManager    METRICS    = new MetricsManager();
+    public static final TranscriptManager TRANSCRIPT = new TranscriptManager();
 
     private static final Logger LOG = LoggerFactory.getLogger(JDiscordIRC.class);
 
-    private static boolean exiting = false;
-
-    //TODO: for readme, explain why this doesn't do impersonation
+    private static final CountDownLatch EXIT    = new CountDownLatch(1);
+    private static final AtomicBoolean  EXITING = new AtomicBoolean();
 
     //<editor-fold desc="Application init, main loop, takedown">
     public static void main(String[] args)
@@ -36,8 +44,12 @@ public class JDiscordIRC
         try
         {
             if ( !isExiting() ) CONFIG.init();
-            if ( !isExiting() ) DISCORD.init();
-            if ( !isExiting() ) IRC.init();
+            if ( !isExiting() ) METRICS.recordMilestone(Milestone.CONFIG_PARSED);
+            if ( !isExiting() ) METRICS.init();
+            if ( !isExiting() ) TRANSCRIPT.init();
+            if ( !isExiting() ) BRIDGE.init();
+            if ( !isExiting() ) connect();
+            if ( !isExiting() ) CONFIG.watch();
         }
         catch (Exception ex)
         {
@@ -50,29 +62,65 @@ public class JDiscordIRC
         }
     }
 
+    /**
+     * Connects to Discord and IRC at the same time, rather than one after the other, as logging in
+     * to Discord waits on a round trip to its API. Either side failing to start fails setup.
+     */
+    private static void connect() throws Exception
+    {
+        FutureTask<Void> discord = new FutureTask<>(() -> {
+            DISCORD.init();
+            return null;
+        });
+
+        Thread.ofVirtual().name("Discord login").start(discord);
+        IRC.init();
+
+        try
+        {
+            discord.get();
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+
+            throw ex;
+        }
+    }
+
     private static void loop()
     {
-        while ( !isExiting() )
+        // Bridge work happens in its own lanes; main thread just waits for the end
+        while ( !isExiting() ) try
         {
-            BRIDGE.pump();
-            CurrentThread.sleep(10);
+            EXIT.await();
         }
+        catch (InterruptedException ignored)
+        {
+
+        }
+
+        CONFIG.shutdown();
+        BRIDGE.shutdown();
+        TRANSCRIPT.shutdown();
+        METRICS.shutdown();
     }
     //</editor-fold>
 
     //<editor-fold desc="State management">
-    public static synchronized boolean isExiting()
+    public static boolean isExiting()
     {
-        return exiting;
+        return EXITING.get();
     }
 
-    public static synchronized void exit(String why)
+    public static void exit(String why)
     {
-        if ( isExiting() )
+        if ( !EXITING.compareAndSet(false, true) )
             return;
 
         LOG.warn("Starting exit: {}", why);
-        exiting = true;
+        EXIT.countDown();
     }
     //</editor-fold>
 }
@@ -1,7 +1,6 @@
 package roycurtis.jdiscordirc.managers;
 
 import com.google.common.base.Strings;
-import com.vdurmont.emoji.EmojiParser;
 import net.dv8tion.jda.core.OnlineStatus;
 import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberJoinEvent;
@@ -11,55 +10,501 @@ import org.apache.commons.lang3.StringUtils;
 import org.pircbotx.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import roycurtis.jdiscordirc.managers.MetricsManager.Direction;
+import roycurtis.jdiscordirc.managers.MetricsManager.Event;
+import roycurtis.jdiscordirc.managers.MetricsManager.Milestone;
+import roycurtis.jdiscordirc.util.ChatCoalescer;
+import roycurtis.jdiscordirc.util.EchoCache;
+import roycurtis.jdiscordirc.util.EmojiTranscoder;
+import roycurtis.jdiscordirc.util.FloodScheduler.Priority;
+import roycurtis.jdiscordirc.util.FormatTranscoder;
+import roycurtis.jdiscordirc.util.FormatTranscoder.IRCText;
+import roycurtis.jdiscordirc.util.LinePacker;
+import roycurtis.jdiscordirc.util.Outbox;
+import roycurtis.jdiscordirc.util.StormDetector;
+import roycurtis.jdiscordirc.util.TaskLane;
+import roycurtis.jdiscordirc.util.Transforms;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
+import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
 import static roycurtis.jdiscordirc.JDiscordIRC.DISCORD;
 import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+import static roycurtis.jdiscordirc.JDiscordIRC.METRICS;
+import static roycurtis.jdiscordirc.JDiscordIRC.TRANSCRIPT;
 
 /**
  * Acts as a coordinator of events between IRC and Discord. It forces the handling of incoming
- * events (from either IRC or Discord) to happen in the main thread, in a queued fashion. This is
+ * events (from either IRC or Discord) to happen in one of two lanes, in a queued fashion. This is
  * to ensure a reliable timeline of events.
  *
  * For example: IRC might be sending a bunch of messages and Discord is busy processing them. During
  * which, IRC loses connection. With this system, Discord will not suddenly dump a disconnect
  * message in the middle of other messages (as has happened during testing, without this system).
+ *
+ * Each lane handles everything sent to one side, so a slow or rate-limited Discord only holds up
+ * traffic towards Discord, and never traffic towards IRC. Events that affect both sides (e.g.
+ * connects) are split into a task for each lane, so they stay in sequence within either lane.
+ *
+ * Any number of channel pairs ({@link Route}s) can be bridged. Lanes run on virtual threads, so by
+ * default every route gets a pair of lanes to itself, and a busy route never holds up another.
+ * Routes may instead be striped across a fixed number of lane pairs, each keeping its own order.
  */
 public class BridgeManager
 {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeManager.class);
 
-    //<editor-fold desc="Manager methods (main thread)">
-    private Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    /** Stands in for line breaks of Discord messages, when lines get packed together for IRC */
+    private static final String LINE_SEPARATOR = " | ";
+    /** How long to wait before carrying on with a replay of held chat that was refused, in ms */
+    private static final long   REPLAY_RETRY   = 30000;
+
+    //<editor-fold desc="Manager methods (main and config watcher threads)">
+    private final List<Route>        routes          = new CopyOnWriteArrayList<>();
+    private final Map<String, Route> routesByIRC     = new ConcurrentHashMap<>();
+    private final Map<String, Route> routesByDiscord = new ConcurrentHashMap<>();
+    private final List<List<Route>>  stripes         = new CopyOnWriteArrayList<>();
+    private final List<TaskLane>     discordLanes    = new CopyOnWriteArrayList<>();
+    private final List<TaskLane>     ircLanes        = new CopyOnWriteArrayList<>();
+    private final Map<Path, Outbox>  outboxes        = new HashMap<>();
 
-    private boolean ircFirstTime     = true;
-    private boolean discordFirstTime = true;
-    private String  lastDiscordMessageSent;
+    private volatile Set<String> relayNicks = Collections.emptySet();
+    private volatile EchoCache   fromIRC;
+    private volatile EchoCache   fromDiscord;
+    private volatile int         maxIRCLines;
 
-    /** Executes a task from the queue in the main thread, to maintain order */
-    public void pump()
+    private EmojiTranscoder emoji;
+    private int             maxStripes;
+    private Path            outboxRoot;
+    private long            outboxBytes;
+    private long            outboxAge;
+
+    public void init() throws Exception
     {
-        Runnable task = queue.poll();
+        List<Route> table = loadRoutes();
 
-        if (task == null)
-            return;
+        Templates.load();
+        loadOutboxSettings();
+
+        emoji       = new EmojiTranscoder();
+        maxIRCLines = CONFIG.getInt("irc.maxLines", 3);
+
+        loadEchoCaches();
+        loadRelayNicks();
+
+        int workers = CONFIG.getInt("bridge.workers", 0);
+
+        maxStripes = workers > 0
+            ? workers
+            : Integer.MAX_VALUE;
+
+        for (Route route : table)
+        {
+            openOutboxes(route);
+            assign(route);
+            register(route);
+        }
+
+        LOG.info("Bridging {} route(s) across {} lane pair(s)", routes.size(), stripes.size());
+    }
+
+    public void shutdown()
+    {
+        discordLanes.forEach(TaskLane::stop);
+        ircLanes.forEach(TaskLane::stop);
+
+        synchronized (outboxes)
+        {
+            outboxes.values().forEach(Outbox::flush);
+        }
+    }
+
+    /**
+     * Applies changes of the config file to the bridge as it runs: templates, echo suppression,
+     * lane bounds, coalescing and storm limits, and the routing table. Routes that are added or
+     * removed have their IRC channels joined or left, without reconnecting either side.
+     */
+    public void reload(Set<String> changed)
+    {
+        if ( changed.stream().anyMatch( prop -> prop.startsWith("template.") ) )
+            Templates.load();
+
+        if ( changed.contains("irc.maxLines") )
+            maxIRCLines = CONFIG.getInt("irc.maxLines", 3);
+
+        if ( changed.contains("bridge.echoWindow") || changed.contains("bridge.echoCache") )
+            loadEchoCaches();
+
+        if ( changed.contains("bridge.relayNicks") )
+            loadRelayNicks();
+
+        if ( changed.contains("bridge.queueSize") || changed.contains("bridge.overload") )
+        {
+            int               queueSize = CONFIG.getInt("bridge.queueSize", 1000);
+            TaskLane.Overload policy    = loadOverloadPolicy();
+
+            discordLanes.forEach( lane -> lane.setBounds(queueSize, policy) );
+            ircLanes.forEach( lane -> lane.setBounds(queueSize, policy) );
+        }
+
+        if ( changed.contains("discord.coalesce") || changed.contains("bridge.stormWindow")
+            || changed.contains("bridge.stormThreshold") )
+            reloadLimits();
+
+        if ( changed.contains("bridge.routes") || changed.contains("irc.channel")
+            || changed.contains("discord.channel") )
+            reloadRoutes();
+    }
+
+    /** @return How many tasks are waiting across all lanes headed in the given direction */
+    public int getBacklog(Direction direction)
+    {
+        List<TaskLane> lanes = direction == Direction.TO_DISCORD
+            ? discordLanes
+            : ircLanes;
+
+        return lanes.stream().mapToInt(TaskLane::getBacklog).sum();
+    }
+
+    public List<Route> getRoutes()
+    {
+        return Collections.unmodifiableList(routes);
+    }
+
+    /** @return Route bridging the given IRC channel, or null if it is not bridged */
+    public Route getRouteByIRC(String channel)
+    {
+        return routesByIRC.get( Route.ircKey(channel) );
+    }
+
+    /** @return Route bridging the given Discord channel ID, or null if it is not bridged */
+    public Route getRouteByDiscord(String channelId)
+    {
+        return routesByDiscord.get(channelId);
+    }
+
+    /** @return True if the given IRC nick or Discord name is a known relay, to be ignored */
+    public boolean isRelay(String name)
+    {
+        return relayNicks.contains( name.toLowerCase(Locale.ROOT) );
+    }
+
+    /**
+     * @param text Chat as received, e.g. "&lt;nick&gt; text" or, for an action, "* nick text"
+     * @return True if the given chat from IRC echoes chat recently bridged from Discord
+     */
+    public boolean isEchoFromIRC(String text)
+    {
+        EchoCache cache = fromDiscord;
+
+        return cache != null && cache.contains(text);
+    }
+
+    /**
+     * @param text Chat as received, e.g. "&lt;nick&gt; text"
+     * @return True if the given chat from Discord echoes chat recently bridged from IRC
+     */
+    public boolean isEchoFromDiscord(String text)
+    {
+        EchoCache cache = fromIRC;
+
+        return cache != null && cache.contains(text);
+    }
+
+    /**
+     * Reads the routing table from "bridge.routes", as comma separated pairs of IRC channel and
+     * Discord channel ID (e.g. "#one -> 1234, #two -> 5678"). Falls back to bridging the single
+     * pair of "irc.channel" and "discord.channel", if no table is configured.
+     *
+     * @return New routes of the table, not yet set up
+     */
+    private List<Route> loadRoutes()
+    {
+        List<Route> table = new ArrayList<>();
+        String      pairs = CONFIG.get("bridge.routes", "").trim();
+
+        if ( pairs.isEmpty() )
+            table.add( new Route( CONFIG.get("irc.channel"), CONFIG.get("discord.channel") ) );
+        else for ( String pair : pairs.split(",") )
+        {
+            String[] parts = pair.split("->");
+
+            if (parts.length != 2)
+                throw new RuntimeException("Invalid route in bridge.routes: " + pair.trim());
+
+            table.add( new Route( parts[0].trim(), parts[1].trim() ) );
+        }
+
+        Set<String> ircChannels     = new HashSet<>();
+        Set<String> discordChannels = new HashSet<>();
+
+        for (Route route : table)
+        {
+            if ( !ircChannels.add( Route.ircKey( route.getIRCChannel() ) ) )
+                throw new RuntimeException("IRC channel bridged more than once: "
+                    + route.getIRCChannel());
+
+            if ( !discordChannels.add( route.getDiscordChannel() ) )
+                throw new RuntimeException("Discord channel bridged more than once: "
+                    + route.getDiscordChannel());
+        }
+
+        return table;
+    }
+
+    /**
+     * Brings the bridge in line with a changed routing table. New routes are bridged before old
+     * ones are dropped, so that a channel moving to another pair is never left unbridged.
+     */
+    private void reloadRoutes()
+    {
+        List<Route> table   = loadRoutes();
+        Set<String> wanted  = new HashSet<>();
+        Set<String> current = new HashSet<>();
+
+        routes.forEach( route -> current.add( pairKey(route) ) );
+
+        for (Route route : table)
+        {
+            wanted.add( pairKey(route) );
+
+            if ( current.contains( pairKey(route) ) )
+                continue;
+
+            try
+            {
+                openOutboxes(route);
+            }
+            catch (IOException ex)
+            {
+                LOG.error( "[Bridge] Could not open outboxes for {}; its chat is not held while "
+                    + "a side is unavailable: {}", route, ex.getMessage() );
+            }
+
+            assign(route);
+            register(route);
+            LOG.info("[Bridge] Now bridging {}", route);
+            IRC.joinChannel( route.getIRCChannel() );
+        }
+
+        for (Route route : routes)
+            if ( !wanted.contains( pairKey(route) ) )
+                unregister(route);
+
+        DISCORD.onRoutesChanged();
+    }
+
+    /** Has each route's IRC->Discord lane pick up changed coalescing and storm limits */
+    private void reloadLimits()
+    {
+        int coalesce    = CONFIG.getInt("discord.coalesce", 250);
+        int stormWindow = CONFIG.getInt("bridge.stormWindow", 5000);
+        int stormLimit  = CONFIG.getInt("bridge.stormThreshold", 5);
+
+        for (Route route : routes) route.toDiscord.submit(() -> {
+            route.coalescer.setWindow(coalesce);
+            route.storm.setLimits(stormWindow, stormLimit);
+        });
+    }
+
+    /**
+     * Sets up the caches of recently bridged chat, for spotting echoes from other relays. Chat
+     * remembered by any previous caches is forgotten.
+     */
+    private void loadEchoCaches()
+    {
+        int window   = CONFIG.getInt("bridge.echoWindow", 5000);
+        int capacity = CONFIG.getInt("bridge.echoCache", 1024);
+
+        if (window > 0)
+        {
+            fromIRC     = new EchoCache(capacity, window);
+            fromDiscord = new EchoCache(capacity, window);
+        }
+        else
+        {
+            fromIRC     = null;
+            fromDiscord = null;
+        }
+    }
+
+    /** Reads the names of known relays to ignore altogether, from "bridge.relayNicks" */
+    private void loadRelayNicks()
+    {
+        Set<String> nicks = new HashSet<>();
+
+        for ( String nick : CONFIG.get("bridge.relayNicks", "").split(",") )
+            if ( !nick.trim().isEmpty() )
+                nicks.add( nick.trim().toLowerCase(Locale.ROOT) );
+
+        relayNicks = Collections.unmodifiableSet(nicks);
+    }
+
+    /**
+     * Reads which tasks overloaded lanes drop first, from "bridge.overload": either "drop-chat",
+     * "drop-presence", or "summarize" (which drops like "drop-presence", then summarizes).
+     */
+    private TaskLane.Overload loadOverloadPolicy()
+    {
+        String name = CONFIG.get("bridge.overload", "summarize").trim();
 
         try
         {
-            task.run();
+            return TaskLane.Overload.valueOf( name.toUpperCase(Locale.ROOT).replace('-', '_') );
         }
-        catch (Exception ex)
+        catch (IllegalArgumentException ex)
         {
-            LOG.error( "Exception during bridge event: {}", ex.getMessage() );
+            throw new RuntimeException("Invalid config: bridge.overload = " + name);
         }
+    }
+
+    /**
+     * Reads where the outboxes that hold each route's chat while the other side is unavailable
+     * live, from "bridge.outbox"; if that is empty, chat is never held.
+     */
+    private void loadOutboxSettings()
+    {
+        String dir = CONFIG.get("bridge.outbox", "outbox").trim();
+
+        outboxRoot  = dir.isEmpty()
+            ? null
+            : Paths.get(dir);
+        outboxBytes = CONFIG.getInt("bridge.outboxSize", 8) * 1024L * 1024L;
+        outboxAge   = TimeUnit.MINUTES.toMillis( CONFIG.getInt("bridge.outboxAge", 60) );
+    }
 
-        LOG.trace( "[Bridge] Pumped events; {} remain", queue.size() );
+    /**
+     * Opens the given route's outboxes, unless disabled. A channel bridged before (e.g. by a route
+     * since removed) gets its existing outbox back, still holding whatever it held.
+     */
+    private void openOutboxes(Route route) throws IOException
+    {
+        if (outboxRoot == null)
+            return;
+
+        String ircName = URLEncoder.encode( Route.ircKey( route.getIRCChannel() ), "UTF-8" );
+
+        route.discordOutbox = openOutbox(
+            outboxRoot.resolve("discord").resolve( route.getDiscordChannel() )
+        );
+        route.ircOutbox     = openOutbox( outboxRoot.resolve("irc").resolve(ircName) );
+    }
+
+    private Outbox openOutbox(Path dir) throws IOException
+    {
+        synchronized (outboxes)
+        {
+            Outbox outbox = outboxes.get(dir);
+
+            if (outbox == null)
+            {
+                outbox = new Outbox(dir, outboxBytes, outboxAge);
+                outboxes.put(dir, outbox);
+            }
+
+            return outbox;
+        }
+    }
+
+    /**
+     * Puts the given route on an empty stripe, or on a new one if there may be more, or else on
+     * the stripe with the fewest routes; then sets up the route's state.
+     */
+    private void assign(Route route)
+    {
+        int stripe = 0;
+
+        for (int i = 1; i < stripes.size(); i++)
+            if ( stripes.get(i).size() < stripes.get(stripe).size() )
+                stripe = i;
+
+        if ( stripes.isEmpty()
+            || ( !stripes.get(stripe).isEmpty() && stripes.size() < maxStripes ) )
+            stripe = addStripe();
+
+        route.toDiscord = discordLanes.get(stripe);
+        route.toIRC     = ircLanes.get(stripe);
+        route.coalescer = new ChatCoalescer(
+            CONFIG.getInt("discord.coalesce", 250), DiscordManager.MAX_LENGTH
+        );
+        route.storm     = new StormDetector(
+            CONFIG.getInt("bridge.stormWindow", 5000), CONFIG.getInt("bridge.stormThreshold", 5)
+        );
+
+        stripes.get(stripe).add(route);
+    }
+
+    /** Starts a new stripe, with a pair of lanes of its own, and returns its index */
+    private int addStripe()
+    {
+        int               index     = stripes.size();
+        int               queueSize = CONFIG.getInt("bridge.queueSize", 1000);
+        TaskLane.Overload policy    = loadOverloadPolicy();
+        List<Route>       stripe    = new CopyOnWriteArrayList<>();
+
+        TaskLane toDiscord = new TaskLane("IRC->Discord #" + index, new StripeDeferral(stripe),
+            queueSize, policy, new LaneOverload(Direction.TO_DISCORD, stripe)
+        );
+        TaskLane toIRC     = new TaskLane("Discord->IRC #" + index, null,
+            queueSize, policy, new LaneOverload(Direction.TO_IRC, stripe)
+        );
+
+        toDiscord.start();
+        toIRC.start();
+
+        discordLanes.add(toDiscord);
+        ircLanes.add(toIRC);
+        stripes.add(stripe);
+        return index;
+    }
+
+    /** Makes a set up route visible to event handlers, replacing any route of the same channels */
+    private void register(Route route)
+    {
+        routes.add(route);
+        routesByIRC.put(Route.ircKey( route.getIRCChannel() ), route);
+        routesByDiscord.put(route.getDiscordChannel(), route);
+    }
+
+    /**
+     * Stops bridging the given route. Chat it already took in is still sent, and its IRC channel
+     * is left unless another route has taken it over.
+     */
+    private void unregister(Route route)
+    {
+        String ircKey = Route.ircKey( route.getIRCChannel() );
+
+        routes.remove(route);
+        routesByIRC.remove(ircKey, route);
+        routesByDiscord.remove(route.getDiscordChannel(), route);
+        stripes.forEach( stripe -> stripe.remove(route) );
+
+        route.toDiscord.submit( () -> flushChat(route) );
+        LOG.info("[Bridge] No longer bridging {}", route);
+
+        if ( !routesByIRC.containsKey(ircKey) )
+            IRC.partChannel( route.getIRCChannel() );
+    }
+
+    /** @return Key telling routes apart by both of their channels */
+    private static String pairKey(Route route)
+    {
+        return Route.ircKey( route.getIRCChannel() ) + " " + route.getDiscordChannel();
     }
     //</editor-fold>
 
-    //<editor-fold desc="Common methods (main thread)">
+    //<editor-fold desc="Common methods (lane threads)">
     /** Makes the Discord side set it status to reflect offline bridge */
     private void discordSetOfflineStatus()
     {
@@ -73,231 +518,692 @@ public class BridgeManager
     /** Makes the Discord side set it status to reflect online bridge */
     private void discordSetOnlineStatus()
     {
+        Route[] current = routes.toArray( new Route[0] );
+        String  what    = current.length == 1
+            ? current[0].getIRCChannel()
+            : current.length + " channels";
+
         DISCORD.setStatus(
             OnlineStatus.ONLINE,
-            IRC.getChannel() + " @ " + IRC.getServer(),
+            what + " @ " + IRC.getServer(),
             DISCORD.getUrl()
         );
     }
+
+    /** @return Given part/quit/kick reason formatted for Discord, or nothing if there is none */
+    private String reasonPart(String reason)
+    {
+        return Strings.isNullOrEmpty(reason)
+            ? ""
+            : Templates.DISCORD_REASON.render(reason);
+    }
+
+    /** Adds a line of IRC chat to the route's pending Discord message, or sends it right away */
+    private void coalesceChat(Route route, String nick, String line, long received)
+    {
+        if ( !route.coalescer.isEnabled() )
+        {
+            sendChat(route, nick, line, received);
+            return;
+        }
+
+        String author  = route.coalescer.getAuthor();
+        long   oldest  = route.coalescer.getReceived();
+        String flushed = route.coalescer.add(nick, line, received);
+
+        if (flushed != null)
+            sendChat(route, author, flushed, oldest);
+    }
+
+    /** Sends any of the route's pending coalesced IRC chat to Discord */
+    private void flushChat(Route route)
+    {
+        String author  = route.coalescer.getAuthor();
+        long   oldest  = route.coalescer.getReceived();
+        String pending = route.coalescer.flush();
+
+        if (pending != null)
+            sendChat(route, author, pending, oldest);
+    }
+
+    /**
+     * Sends IRC chat to Discord, or holds it in the route's outbox if Discord is unavailable. While
+     * anything is held, new chat is held behind it, so that replay keeps everything in order. Held
+     * chat is always replayed by the bot, so it gets the nick of its author written in.
+     *
+     * @param nick     Nick to post the chat under by webhook, or null to send it as the bot
+     * @param received When the (oldest) chat was received from IRC, for timing its whole trip
+     */
+    private void sendChat(Route route, String nick, String text, long received)
+    {
+        String   channel = route.getDiscordChannel();
+        Runnable onSent  = () -> METRICS.recordBridged(Direction.TO_DISCORD, received);
+        boolean  sent    = !isHolding(route.discordOutbox) && (nick == null
+            ? DISCORD.sendMessageWithMentions(channel, text, onSent)
+            : DISCORD.sendAsWebhook(channel, nick, text, onSent) );
+
+        if (sent)
+            METRICS.recordMilestone(Milestone.FIRST_BRIDGED);
+        else if (route.discordOutbox != null)
+            route.discordOutbox.append( nick == null
+                ? text
+                : Templates.DISCORD_MESSAGE.render(nick, text) );
+    }
+
+    /**
+     * Sends on the chat held in the route's outbox for Discord. Held chat only counts as delivered
+     * once sent. If any is refused while Discord is up (e.g. the channel is missing), replay is
+     * tried again later, rather than holding new chat until the next reconnect.
+     *
+     * @param resume False if Discord is back, so replay starts over from the oldest undelivered
+     *               chat; true if carrying on after a refusal
+     */
+    private void replayToDiscord(Route route, boolean resume)
+    {
+        Outbox outbox = route.discordOutbox;
+
+        if (outbox == null)
+            return;
+
+        if (!resume)
+            outbox.rewind();
+
+        if ( outbox.isEmpty() )
+            return;
+
+        String channel = route.getDiscordChannel();
+
+        if (!resume)
+            DISCORD.sendMessage(channel,
+                "••• Sending chat from IRC held while Discord was unavailable:"
+            );
+
+        int sent = outbox.replay( (msg, onSent) -> DISCORD.sendMessageWithMentions(
+            channel, msg, () -> route.toDiscord.submit(onSent)
+        ));
+
+        LOG.info("[Bridge] Replayed {} held message(s) to Discord for {}", sent, route);
+
+        if ( !outbox.isEmpty() )
+            retryReplay( route, route.discordReplayWaiting, DISCORD::isAvailable,
+                () -> submitToDiscord( route, Event.CONNECTION, () -> replayToDiscord(route, true) )
+            );
+    }
+
+    /** Sends on the chat held in the route's outbox for IRC, like {@link #replayToDiscord} */
+    private void replayToIRC(Route route, boolean resume)
+    {
+        Outbox outbox = route.ircOutbox;
+
+        if (outbox == null)
+            return;
+
+        if (!resume)
+            outbox.rewind();
+
+        if ( outbox.isEmpty() )
+            return;
+
+        String channel = route.getIRCChannel();
+
+        if (!resume)
+            IRC.sendMessage(channel,
+                "••• Sending chat from Discord held while IRC was unavailable:"
+            );
+
+        int sent = outbox.replay( (msg, onSent) -> IRC.sendMessage(
+            Priority.CHAT, channel, msg, () -> route.toIRC.submit(onSent)
+        ));
+
+        LOG.info("[Bridge] Replayed {} held message(s) to IRC for {}", sent, route);
+
+        if ( !outbox.isEmpty() )
+            retryReplay( route, route.ircReplayWaiting, IRC::isAvailable,
+                () -> submitToIRC( route, Event.CONNECTION, () -> replayToIRC(route, true) )
+            );
+    }
+
+    /**
+     * Has a stalled replay carried on after a while, unless its side went down meanwhile (it is
+     * replayed on reconnecting anyway) or the route was removed. Only one retry per outbox waits
+     * at a time.
+     */
+    private void retryReplay(Route route, AtomicBoolean waiting, BooleanSupplier isUp,
+                             Runnable replay)
+    {
+        if ( !waiting.compareAndSet(false, true) )
+            return;
+
+        LOG.warn("[Bridge] Could not replay all held chat for {}; retrying in {} ms",
+            route, REPLAY_RETRY
+        );
+
+        CompletableFuture.delayedExecutor(REPLAY_RETRY, TimeUnit.MILLISECONDS).execute( () -> {
+            waiting.set(false);
+
+            if ( isUp.getAsBoolean() && routes.contains(route) )
+                replay.run();
+        });
+    }
+
+    /** @return True if the given outbox exists and still holds messages to be replayed */
+    private static boolean isHolding(Outbox outbox)
+    {
+        return outbox != null && !outbox.isEmpty();
+    }
+
+    /** Queues a task on the route's IRC->Discord lane, metered as the given type of event */
+    private void submitToDiscord(Route route, Event event, Runnable task)
+    {
+        route.toDiscord.submit( kindOf(event), task, METRICS.meter(Direction.TO_DISCORD, event) );
+    }
+
+    /** Queues a task on the route's Discord->IRC lane, metered as the given type of event */
+    private void submitToIRC(Route route, Event event, Runnable task)
+    {
+        route.toIRC.submit( kindOf(event), task, METRICS.meter(Direction.TO_IRC, event) );
+    }
+
+    /** @return Kind of lane task for the given type of event, deciding if it may be dropped */
+    private static TaskLane.Kind kindOf(Event event)
+    {
+        switch (event)
+        {
+            case MESSAGE:
+            case ACTION:
+                return TaskLane.Kind.CHAT;
+
+            case JOIN:
+            case PART:
+            case QUIT:
+            case KICK:
+            case NICK:
+                return TaskLane.Kind.PRESENCE;
+
+            default:
+                return TaskLane.Kind.CONTROL;
+        }
+    }
+
+    /** Queued task for a line of IRC chat, which gets coalesced instead of sent right away */
+    private class ChatTask implements TaskLane.Deferrable
+    {
+        final Route  route;
+        final String nick;
+        final String line;
+        final long   received = System.nanoTime();
+
+        /** @param nick Nick to post the line under by webhook, or null if the line names it */
+        ChatTask(Route route, String nick, String line)
+        {
+            this.route = route;
+            this.nick  = nick;
+            this.line  = line;
+        }
+
+        @Override
+        public void run()
+        {
+            coalesceChat(route, nick, line, received);
+        }
+    }
+
+    /**
+     * Reports overloads of one of a stripe's lanes to both sides of the stripe's routes, and counts
+     * what the lane dropped.
+     */
+    private class LaneOverload implements TaskLane.OverloadListener
+    {
+        final Direction   direction;
+        final List<Route> stripe;
+
+        LaneOverload(Direction direction, List<Route> stripe)
+        {
+            this.direction = direction;
+            this.stripe    = stripe;
+        }
+
+        @Override
+        public void onOverloaded(TaskLane lane)
+        {
+            String dropping = lane.getPolicy() == TaskLane.Overload.DROP_CHAT
+                ? "dropping the oldest chat"
+                : "dropping join/leave notices first";
+
+            LOG.warn( "[Bridge] {} is overloaded; {}", lane.getName(), dropping );
+            announce("••• Bridge is overloaded towards " + side() + "; " + dropping
+                + " until it catches up");
+        }
+
+        @Override
+        public void onDropped(TaskLane lane, TaskLane.Kind kind)
+        {
+            METRICS.recordDropped(direction);
+        }
+
+        @Override
+        public void onRecovered(TaskLane lane, int droppedChat, int droppedPresence)
+        {
+            if (lane.getPolicy() != TaskLane.Overload.SUMMARIZE)
+            {
+                announce("••• Bridge has caught up towards " + side());
+                return;
+            }
+
+            METRICS.recordSummarized(direction, droppedChat + droppedPresence);
+            announce( String.format(
+                "••• Bridge has caught up towards %s; dropped %d chat message(s) and %d "
+                    + "join/leave notice(s)",
+                side(), droppedChat, droppedPresence
+            ));
+        }
+
+        private String side()
+        {
+            return direction == Direction.TO_DISCORD
+                ? "Discord"
+                : "IRC";
+        }
+
+        /** Tells both sides of every route in the stripe; as control tasks, these never drop */
+        private void announce(String msg)
+        {
+            for (Route route : stripe)
+            {
+                submitToDiscord(route, Event.ERROR,
+                    () -> DISCORD.sendMessage(route.getDiscordChannel(), msg)
+                );
+                submitToIRC(route, Event.ERROR,
+                    () -> IRC.sendMessage(route.getIRCChannel(), msg)
+                );
+            }
+        }
+    }
+
+    /**
+     * Handles the held back work of all routes in a stripe, for their IRC->Discord lane. Pending
+     * chat is flushed whenever asked, but storm summaries only go out once their window ends.
+     */
+    private class StripeDeferral implements TaskLane.Deferral
+    {
+        final List<Route> stripe;
+
+        StripeDeferral(List<Route> stripe)
+        {
+            this.stripe = stripe;
+        }
+
+        @Override
+        public long nanosUntilDue()
+        {
+            long due = Long.MAX_VALUE;
+
+            for (Route route : stripe)
+            {
+                if ( !route.coalescer.isEmpty() )
+                    due = Math.min( due, route.coalescer.nanosUntilDeadline() );
+
+                due = Math.min( due, route.storm.nanosUntilDue() );
+            }
+
+            return due;
+        }
+
+        @Override
+        public void flush()
+        {
+            for (Route route : stripe)
+            {
+                flushChat(route);
+
+                String summary = route.storm.summarizeIfDue();
+
+                if (summary != null)
+                    DISCORD.sendMessage( route.getDiscordChannel(),
+                        Templates.DISCORD_STORM.render(summary) );
+            }
+        }
+    }
     //</editor-fold>
 
     //<editor-fold desc="IRC->Discord (via IRC thread)">
-    public void onIRCConnect()
+    public void onIRCConnect(Route route)
     {
-        queue.add( () -> {
-            DISCORD.sendMessage("••• Connected to IRC");
+        boolean firstTime = route.ircFirstTime.getAndSet(false);
+
+        submitToDiscord(route, Event.CONNECTION, () -> {
+            DISCORD.sendMessage(route.getDiscordChannel(), "••• Connected to IRC");
             discordSetOnlineStatus();
+        });
 
-            // Courtesy message for those on IRC
+        // Courtesy message for those on IRC
+        submitToIRC(route, Event.CONNECTION, () -> {
             if ( DISCORD.isAvailable() )
             {
                 IRC.setAway("");
-                IRC.sendMessage(ircFirstTime
+                IRC.sendMessage(route.getIRCChannel(), firstTime
                     ? "••• Now bridging chat between Discord and IRC"
                     : "••• Lost connection; restored bridge between Discord and IRC");
             }
             else
             {
                 IRC.setAway("Waiting for connection to Discord...");
-                IRC.sendMessage(ircFirstTime
+                IRC.sendMessage(route.getIRCChannel(), firstTime
                     ? "••• Waiting for connection to Discord..."
                     : "••• Lost connection to both Discord and IRC; reconnecting to Discord...");
             }
 
-            ircFirstTime = false;
+            replayToIRC(route, false);
         });
     }
 
     public void onIRCDisconnect()
     {
-        queue.add( () -> {
-            DISCORD.sendMessage("••• Lost connection to IRC; reconnecting...");
+        for (Route route : routes) submitToDiscord(route, Event.CONNECTION, () -> {
+            DISCORD.sendMessage(route.getDiscordChannel(),
+                "••• Lost connection to IRC; reconnecting..."
+            );
             discordSetOfflineStatus();
         });
     }
 
-    public void onIRCMessage(User user, String message)
+    public void onIRCMessage(Route route, User user, String message)
     {
-        queue.add( () -> DISCORD.sendMessageWithMentions("<**%s**> %s", user.getNick(), message) );
+        if ( TRANSCRIPT.isCommand(message) )
+        {
+            TRANSCRIPT.onCommand( route, null, user.getNick(), message );
+            return;
+        }
+
+        EchoCache echoes = fromIRC;
+
+        if (echoes != null)
+            echoes.record( user.getNick(), message );
+
+        TRANSCRIPT.record( route, false, false, user.getNick(), message );
+        submitToDiscord(route, Event.MESSAGE, DISCORD.hasWebhook( route.getDiscordChannel() )
+            ? new ChatTask( route, user.getNick(), message )
+            : new ChatTask( route, null, Templates.DISCORD_MESSAGE.render(user.getNick(), message) )
+        );
     }
 
-    public void onIRCAction(User user, String action)
+    public void onIRCAction(Route route, User user, String action)
     {
-        queue.add( () -> DISCORD.sendMessageWithMentions("_**%s** %s_", user.getNick(), action) );
+        EchoCache echoes = fromIRC;
+
+        if (echoes != null)
+            echoes.record( user.getNick(), action );
+
+        TRANSCRIPT.record( route, false, true, user.getNick(), action );
+        submitToDiscord(route, Event.ACTION, DISCORD.hasWebhook( route.getDiscordChannel() )
+            ? new ChatTask( route, user.getNick(), Templates.DISCORD_WEBHOOK_ACTION.render(action) )
+            : new ChatTask( route, null, Templates.DISCORD_ACTION.render(user.getNick(), action) )
+        );
     }
 
-    public void onIRCJoin(User user)
+    public void onIRCJoin(Route route, User user)
     {
-        queue.add( () -> DISCORD.sendMessage( "••• **%s** joined the channel", user.getNick() ) );
+        submitToDiscord(route, Event.JOIN, () -> {
+            if ( !route.storm.offer(StormDetector.Kind.JOIN, null) )
+                return;
+
+            DISCORD.sendMessage( route.getDiscordChannel(),
+                Templates.DISCORD_JOIN.render( user.getNick() )
+            );
+        });
     }
 
-    public void onIRCPart(User user, final String reason)
+    public void onIRCPart(Route route, User user, final String reason)
     {
-        queue.add( () -> {
-            String reasonPart = Strings.isNullOrEmpty(reason)
-                ? ""
-                : "(_" + reason + "_)";
+        submitToDiscord(route, Event.PART, () -> {
+            if ( !route.storm.offer(StormDetector.Kind.PART, null) )
+                return;
 
-            DISCORD.sendMessage("••• **%s** left the channel %s", user.getNick(), reasonPart);
+            DISCORD.sendMessage( route.getDiscordChannel(),
+                Templates.DISCORD_PART.render( user.getNick(), reasonPart(reason) )
+            );
         });
     }
 
-    public void onIRCQuit(User user, String reason)
+    public void onIRCQuit(Route route, User user, String reason)
     {
-        queue.add( () -> {
-            String reasonPart = Strings.isNullOrEmpty(reason)
-                ? ""
-                : "(_" + reason + "_)";
+        submitToDiscord(route, Event.QUIT, () -> {
+            if ( !route.storm.offer(StormDetector.Kind.QUIT, reason) )
+                return;
 
-            DISCORD.sendMessage("••• **%s** quit the server %s", user.getNick(), reasonPart);
+            DISCORD.sendMessage( route.getDiscordChannel(),
+                Templates.DISCORD_QUIT.render( user.getNick(), reasonPart(reason) )
+            );
         });
     }
 
-    public void onIRCKick(User target, User kicker, String reason)
+    public void onIRCKick(Route route, User target, User kicker, String reason)
     {
-        queue.add( () -> {
-            String reasonPart = Strings.isNullOrEmpty(reason)
-                ? ""
-                : "(_" + reason + "_)";
-
-            DISCORD.sendMessage("••• **%s** was kicked by **%s** %s",
+        submitToDiscord(route, Event.KICK, () -> DISCORD.sendMessage(
+            route.getDiscordChannel(),
+            Templates.DISCORD_KICK.render(
                 target.getNick(),
                 kicker.getNick(),
-                reasonPart
+                reasonPart(reason)
+            )
+        ));
+    }
+
+    /**
+     * Called when the bot is kicked from the route's IRC channel. Only this route pauses, until
+     * the channel is rejoined; chat from Discord meanwhile is held in its outbox, if enabled.
+     */
+    public void onIRCSelfKick(Route route, User kicker, String reason)
+    {
+        String why = reasonPart(reason);
+
+        submitToDiscord(route, Event.CONNECTION, () -> DISCORD.sendMessage(
+            route.getDiscordChannel(),
+            "••• Kicked from the IRC channel by **" + kicker.getNick() + "**"
+                + (why.isEmpty() ? "" : " " + why) + "; rejoining in "
+                + TimeUnit.MILLISECONDS.toSeconds(IRCManager.REJOIN_DELAY) + " seconds..."
+        ));
+    }
+
+    public void onIRCNickChange(Route route, String oldNick, String newNick)
+    {
+        submitToDiscord(route, Event.NICK, () -> {
+            if ( !route.storm.offer(StormDetector.Kind.NICK, null) )
+                return;
+
+            DISCORD.sendMessage( route.getDiscordChannel(),
+                Templates.DISCORD_NICK.render(oldNick, newNick)
             );
         });
     }
 
-    public void onIRCNickChange(String oldNick, String newNick)
+    /** Called from JDA's threads whenever an asynchronous send to Discord fails */
+    public void onDiscordSendFailed(Route route, String msg, Throwable cause, boolean retrying)
     {
-        queue.add( () ->
-            DISCORD.sendMessage("••• **%s** changed nick to **%s**", oldNick, newNick)
-        );
+        submitToDiscord(route, Event.ERROR, () -> {
+            if (retrying)
+                LOG.warn( "[Bridge] Could not send to Discord ({}); retrying: {}",
+                    cause.getMessage(), msg
+                );
+            else
+                LOG.error( "[Bridge] Could not send to Discord ({}); giving up: {}",
+                    cause.getMessage(), msg
+                );
+        });
     }
     //</editor-fold>
 
     //<editor-fold desc="Discord->IRC (via Discord thread)">
     public void onDiscordConnect()
     {
-        queue.add( () -> {
-            IRC.setAway("");
-            IRC.sendMessage("••• Connected to Discord");
+        for (Route route : routes)
+        {
+            boolean firstTime = route.discordFirstTime.getAndSet(false);
+
+            submitToIRC(route, Event.CONNECTION, () -> {
+                IRC.setAway("");
+                IRC.sendMessage(route.getIRCChannel(), "••• Connected to Discord");
+            });
 
             // Courtesy message for those on Discord
-            if ( IRC.isAvailable() )
-            {
-                discordSetOnlineStatus();
-                DISCORD.sendMessage(discordFirstTime
-                    ? "••• Now bridging chat between Discord and IRC"
-                    : "••• Lost connection; restored bridge between Discord and IRC"
-                );
-            }
-            else
-            {
-                discordSetOfflineStatus();
-                DISCORD.sendMessage(discordFirstTime
-                    ? "••• Waiting for connection to IRC..."
-                    : "••• Lost connection to both Discord and IRC; reconnecting to IRC..."
-                );
-            }
+            submitToDiscord(route, Event.CONNECTION, () -> {
+                String channel = route.getDiscordChannel();
 
-            if (!discordFirstTime && lastDiscordMessageSent != null)
-            {
-                DISCORD.sendMessage(
-                    "••• Last message sent to IRC: \"%s\"", lastDiscordMessageSent
-                );
+                if ( IRC.isAvailable( route.getIRCChannel() ) )
+                {
+                    discordSetOnlineStatus();
+                    DISCORD.sendMessage(channel, firstTime
+                        ? "••• Now bridging chat between Discord and IRC"
+                        : "••• Lost connection; restored bridge between Discord and IRC"
+                    );
+                }
+                else
+                {
+                    discordSetOfflineStatus();
+                    DISCORD.sendMessage(channel, firstTime
+                        ? "••• Waiting for connection to IRC..."
+                        : "••• Lost connection to both Discord and IRC; reconnecting to IRC..."
+                    );
+                }
 
-                lastDiscordMessageSent = null;
-            }
+                String lastSent = route.lastDiscordMessageSent.getAndSet(null);
 
-            discordFirstTime = false;
-        });
+                if (!firstTime && lastSent != null)
+                    DISCORD.sendMessage( channel, Templates.DISCORD_LAST_SENT.render(lastSent) );
+
+                replayToDiscord(route, false);
+            });
+        }
     }
 
     public void onDiscordDisconnect()
     {
-        queue.add( () -> {
+        for (Route route : routes) submitToIRC(route, Event.CONNECTION, () -> {
             IRC.setAway("Waiting for connection to Discord...");
-            IRC.sendMessage("••• Lost connection to Discord; reconnecting. . .");
+            IRC.sendMessage(route.getIRCChannel(),
+                "••• Lost connection to Discord; reconnecting. . ."
+            );
         });
     }
 
-    public void onDiscordMessage(MessageReceivedEvent event)
+    public void onDiscordMessage(Route route, MessageReceivedEvent event)
     {
-        queue.add( () -> {
-            String   who      = event.getMember().getEffectiveName();
-            String   msg      = event.getMessage().getContent().trim();
-            String[] attaches = event.getMessage().getAttachments().stream()
+        String content = event.getMessage().getContent();
+
+        if ( TRANSCRIPT.isCommand( content.trim() ) )
+        {
+            TRANSCRIPT.onCommand( route, event.getAuthor(), event.getMember().getEffectiveName(),
+                content );
+            return;
+        }
+
+        EchoCache echoes   = fromDiscord;
+        long      received = System.nanoTime();
+
+        if (echoes != null)
+            echoes.record( event.getMember().getEffectiveName(), content );
+
+        submitToIRC(route, Event.MESSAGE, () -> {
+            String       who      = event.getMember().getEffectiveName();
+            List<String> attaches = event.getMessage().getAttachments().stream()
                 .map(Message.Attachment::getUrl)
-                .toArray(String[]::new);
+                .collect( Collectors.toList() );
+
+            // Handle file attachments (e.g. messages) as URLs
+            String msg = Transforms.withAttachments(event.getMessage().getContent(), attaches);
 
-            if (msg.isEmpty() && attaches.length <= 0)
+            if ( msg.isEmpty() )
             {
                 LOG.info("[Bridge] Skipping empty Discord message by {}", who);
                 return;
             }
 
-            // Handle file attachments (e.g. messages) as URLs
-            if (attaches.length > 0)
-                msg += " " + String.join(" ", attaches);
+            // Markdown becomes IRC formatting, while actions and lines are picked out
+            IRCText  irc      = FormatTranscoder.toIRC( emoji.toAliases(msg) );
+            boolean  isAction = irc.isAction;
+            String[] lines    = irc.lines;
+            String   channel  = route.getIRCChannel();
 
-            String  finalMsg = EmojiParser.parseToAliases( msg.trim() );
-            boolean isAction = false;
+            TRANSCRIPT.record( route, true, isAction, who,
+                isAction ? msg.substring( 1, msg.length() - 1 ) : msg );
+            String   empty   = isAction
+                ? Templates.IRC_ACTION.render(who, "")
+                : Templates.IRC_MESSAGE.render(who, "");
 
-            // Special handling for Discord action messages
-            if ( finalMsg.startsWith("_") && finalMsg.endsWith("_") )
-            {
-                finalMsg = finalMsg.substring( 1, finalMsg.length() - 1 );
-                isAction = true;
-            }
+            // Fit as much as possible into each line, after our prefix and the template's
+            int          budget = IRC.getLineBudget(channel, isAction)
+                - LinePacker.utf8Length(empty);
+            List<String> packed = LinePacker.pack(lines, budget, LINE_SEPARATOR);
 
-            String[] lines = finalMsg.split("\n");
-
-            // Reject if too many lines
-            if (lines.length > 3)
+            // Reject if it would take too many lines
+            if (packed.size() > maxIRCLines)
             {
-                String start = StringUtils.substring(lines[0], 0, 10);
-                DISCORD.sendMessage(
-                    "**%s**: Your message (starting '%s...') has more than 3 lines, and has not"
-                  + " been sent to IRC. Please try to split your message up, or remove newlines.",
-                    event.getMember().getAsMention(), start
-                );
+                String start   = StringUtils.substring(msg, 0, 10);
+                String mention = event.getMember().getAsMention();
+
+                submitToDiscord(route, Event.MESSAGE, () -> DISCORD.sendMessage(
+                    route.getDiscordChannel(),
+                    Templates.DISCORD_TOO_LONG.render(mention, start, maxIRCLines)
+                ));
                 return;
             }
 
-            for (String line : lines)
-                if (isAction)
-                {
-                    if ( IRC.sendAction(who, line) )
-                        lastDiscordMessageSent = who + " " + msg;
-                }
+            for (int i = 0; i < packed.size(); i++)
+            {
+                String   line   = packed.get(i);
+                String   text   = isAction
+                    ? Templates.IRC_ACTION.render(who, line)
+                    : Templates.IRC_MESSAGE.render(who, line);
+                Runnable onSent = i == packed.size() - 1
+                    ? () -> METRICS.recordBridged(Direction.TO_IRC, received)
+                    : null;
+                boolean  sent;
+
+                // Anything already held goes first, so this line has to wait behind it
+                if ( isHolding(route.ircOutbox) )
+                    sent = false;
+                else if (isAction)
+                    sent = IRC.sendAction(channel, who, line, onSent);
                 else
+                    sent = IRC.sendMessage(Priority.CHAT, channel, text, onSent);
+
+                if (sent)
                 {
-                    if ( IRC.sendMessage("<%s> %s", who, line) )
-                        lastDiscordMessageSent = who + ": " + msg;
+                    route.lastDiscordMessageSent.set( who + (isAction ? " " : ": ") + msg );
+                    METRICS.recordMilestone(Milestone.FIRST_BRIDGED);
                 }
+                else if (route.ircOutbox != null)
+                    // Held actions are replayed as plain messages, in the usual "* who" style
+                    route.ircOutbox.append( isAction ? "* " + text : text );
+            }
         });
     }
 
-    public void onDiscordUserJoin(GuildMemberJoinEvent event)
+    public void onDiscordUserJoin(Route route, GuildMemberJoinEvent event)
     {
-        queue.add( () -> {
+        submitToIRC(route, Event.JOIN, () -> {
             String who = event.getMember().getEffectiveName();
 
-            IRC.sendMessage( "••• %s joined the server", who);
+            IRC.sendMessage( Priority.NOTICE, route.getIRCChannel(),
+                Templates.IRC_JOIN.render(who)
+            );
         });
     }
 
-    public void onDiscordUserLeave(GuildMemberLeaveEvent event)
+    public void onDiscordUserLeave(Route route, GuildMemberLeaveEvent event)
     {
-        queue.add( () ->
-            IRC.sendMessage( "••• %s quit the server", event.getMember().getEffectiveName() )
-        );
+        submitToIRC(route, Event.QUIT, () -> IRC.sendMessage(
+            Priority.NOTICE, route.getIRCChannel(),
+            Templates.IRC_QUIT.render( event.getMember().getEffectiveName() )
+        ));
     }
 
-    public void onDiscordNickChange(String oldNick, String newNick)
+    public void onDiscordNickChange(Route route, String oldNick, String newNick)
     {
-        queue.add( () -> IRC.sendMessage("••• %s changed nick to %s", oldNick, newNick) );
+        submitToIRC(route, Event.NICK, () -> IRC.sendMessage(
+            Priority.NOTICE, route.getIRCChannel(),
+            Templates.IRC_NICK.render(oldNick, newNick)
+        ));
     }
     //</editor-fold>
 }
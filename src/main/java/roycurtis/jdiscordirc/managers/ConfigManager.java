@@ -5,28 +5,61 @@ import org.slf4j.LoggerFactory;
 import roycurtis.jdiscordirc.JDiscordIRC;
 
 import java.io.*;
-import java.util.Properties;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+import static roycurtis.jdiscordirc.JDiscordIRC.BRIDGE;
+import static roycurtis.jdiscordirc.JDiscordIRC.DISCORD;
+import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+
+/**
+ * Holds the configuration, as an immutable snapshot of the config file that is swapped whole
+ * whenever the file changes. Changes are handed to the other managers to apply live; only those
+ * that really need it reconnect their side.
+ */
 public class ConfigManager
 {
     private static final Logger LOG         = LoggerFactory.getLogger(ConfigManager.class);
     private static final String CONFIG_FILE = "config.properties";
 
-    private Properties props = new Properties();
+    /** How long to wait for an editor to finish writing, before reading a changed file */
+    private static final long SETTLE_MS = 250;
+
+    /** Settings that are only read at startup */
+    private static final List<String> RESTART_ONLY = Arrays.asList(
+        "bridge.workers", "bridge.outbox", "bridge.outboxSize", "bridge.outboxAge",
+        "bridge.transcript", "bridge.transcriptDays", "metrics.port"
+    );
+
+    private volatile Map<String, String> values = Collections.emptyMap();
 
+    private Path   file;
+    private Thread watcher;
+
+    //<editor-fold desc="Manager methods (main thread)">
     public void init() throws Exception
+    {
+        init( new File(CONFIG_FILE) );
+    }
+
+    /**
+     * Loads the given config file; if missing, the default one is written there for filling in.
+     * Package-private, so that tests may load one of their own.
+     */
+    void init(File config) throws Exception
     {
         ClassLoader loader = JDiscordIRC.class.getClassLoader();
-        File        config = new File(CONFIG_FILE);
 
-        if ( config.isFile() ) try ( InputStream stream = new FileInputStream(config) )
+        if ( config.isFile() )
         {
-            props.load(stream);
+            file   = config.getAbsoluteFile().toPath();
+            values = parse(config);
             LOG.debug("Loaded configuration from file");
         }
         else try (
             InputStream  inStream  = loader.getResourceAsStream(CONFIG_FILE);
-            OutputStream outStream = new FileOutputStream(CONFIG_FILE) )
+            OutputStream outStream = new FileOutputStream(config) )
         {
             byte[] buffer = new byte[ inStream.available() ];
 
@@ -38,11 +71,177 @@ public class ConfigManager
         }
     }
 
+    public void shutdown()
+    {
+        if (watcher != null)
+            watcher.interrupt();
+    }
+
     public String get(String prop)
     {
-        if ( !props.containsKey(prop) )
+        String value = values.get(prop);
+
+        if (value == null)
             throw new RuntimeException("Missing config: " + prop);
 
-        return props.getProperty(prop);
+        return value;
+    }
+
+    /** Gets an optional config value, falling back to the given default if it is missing */
+    public String get(String prop, String def)
+    {
+        return values.getOrDefault(prop, def);
+    }
+
+    /** Gets an optional integer config value, falling back to the given default if missing */
+    public int getInt(String prop, int def)
+    {
+        String value = values.get(prop);
+
+        if ( value == null || value.trim().isEmpty() )
+            return def;
+
+        try
+        {
+            return Integer.parseInt( value.trim() );
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new RuntimeException("Invalid number for config: " + prop);
+        }
+    }
+
+    /** @return Immutable snapshot of the given properties file */
+    private static Map<String, String> parse(File file) throws IOException
+    {
+        Properties          props = new Properties();
+        Map<String, String> map   = new HashMap<>();
+
+        try ( InputStream stream = new FileInputStream(file) )
+        {
+            props.load(stream);
+        }
+
+        for ( String name : props.stringPropertyNames() )
+            map.put( name, props.getProperty(name) );
+
+        return Collections.unmodifiableMap(map);
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Reloading (config watcher thread)">
+    /**
+     * Starts watching the config file for changes, on a thread of its own. Only to be called once
+     * every other manager is set up, as changes are handed to them.
+     */
+    public void watch() throws IOException
+    {
+        WatchService service = file.getFileSystem().newWatchService();
+
+        // Editors often save by replacing the file, so creations count as changes too
+        file.getParent().register(service,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY
+        );
+
+        watcher = Thread.ofVirtual().name("Config watcher").start(() -> {
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                    if ( awaitChange(service, file) )
+                        reload();
+            }
+            catch (InterruptedException | ClosedWatchServiceException ignored)
+            {
+
+            }
+            finally
+            {
+                try                   { service.close(); }
+                catch (IOException e) { LOG.debug("Could not close config watcher", e); }
+            }
+        });
+    }
+
+    /**
+     * Blocks until the directory of the given file reports a change, then waits for changes to
+     * settle, as saving a file may take several writes.
+     *
+     * @return True if the given file was among those changed
+     */
+    private static boolean awaitChange(WatchService service, Path file)
+        throws InterruptedException
+    {
+        boolean  changed = false;
+        WatchKey key     = service.take();
+
+        while (key != null)
+        {
+            for ( WatchEvent<?> event : key.pollEvents() )
+                if ( file.getFileName().equals( event.context() ) )
+                    changed = true;
+
+            key.reset();
+            key = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Swaps in a fresh snapshot of the config file, and has every manager apply whatever changed.
+     * A file that cannot be read leaves the current snapshot as it is.
+     */
+    private void reload()
+    {
+        Map<String, String> old = values;
+        Map<String, String> fresh;
+
+        try
+        {
+            fresh = parse( file.toFile() );
+        }
+        catch (IOException ex)
+        {
+            LOG.error( "Could not reload config; keeping the current one: {}", ex.getMessage() );
+            return;
+        }
+
+        Set<String> changed = new TreeSet<>();
+
+        for ( String prop : old.keySet() )
+            if ( !Objects.equals( old.get(prop), fresh.get(prop) ) )
+                changed.add(prop);
+
+        for ( String prop : fresh.keySet() )
+            if ( !old.containsKey(prop) )
+                changed.add(prop);
+
+        if ( changed.isEmpty() )
+            return;
+
+        LOG.info("Config file changed; applying {}", changed);
+        values = fresh;
+
+        for (String prop : RESTART_ONLY)
+            if ( changed.contains(prop) )
+                LOG.warn("Changes to {} only take effect after a restart", prop);
+
+        // Each side applies what it can, even if another rejects its part of the change
+        apply( "bridge",  () -> BRIDGE.reload(changed) );
+        apply( "Discord", () -> DISCORD.reload(changed) );
+        apply( "IRC",     () -> IRC.reload(changed) );
+    }
+
+    private static void apply(String what, Runnable reload)
+    {
+        try
+        {
+            reload.run();
+        }
+        catch (RuntimeException ex)
+        {
+            LOG.error( "Could not apply config changes to {}: {}", what, ex.getMessage() );
+        }
     }
+    //</editor-fold>
 }
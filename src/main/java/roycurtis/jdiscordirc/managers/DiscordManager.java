@@ -5,126 +5,517 @@ import net.dv8tion.jda.core.entities.Game;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.events.DisconnectEvent;
 import net.dv8tion.jda.core.events.ReadyEvent;
 import net.dv8tion.jda.core.events.ReconnectedEvent;
 import net.dv8tion.jda.core.events.ResumedEvent;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberJoinEvent;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberLeaveEvent;
+import net.dv8tion.jda.core.events.channel.text.update.TextChannelUpdatePermissionsEvent;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberNickChangeEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberRoleRemoveEvent;
 import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.core.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.core.events.role.update.RoleUpdatePermissionsEvent;
+import net.dv8tion.jda.core.events.user.UserNameUpdateEvent;
 import net.dv8tion.jda.core.hooks.ListenerAdapter;
 import net.dv8tion.jda.core.requests.CloseCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
+import roycurtis.jdiscordirc.managers.MetricsManager.Direction;
+import roycurtis.jdiscordirc.managers.MetricsManager.Milestone;
+import roycurtis.jdiscordirc.util.ConnectionState;
+import roycurtis.jdiscordirc.util.ConnectionState.State;
+import roycurtis.jdiscordirc.util.MemberIndex;
+import roycurtis.jdiscordirc.util.OrderedSender;
+import roycurtis.jdiscordirc.util.Transforms;
+import roycurtis.jdiscordirc.util.WebhookTransport;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static roycurtis.jdiscordirc.JDiscordIRC.BRIDGE;
 import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
+import static roycurtis.jdiscordirc.JDiscordIRC.METRICS;
 
 public class DiscordManager extends ListenerAdapter
 {
-    private static final Logger  LOG     = LoggerFactory.getLogger(DiscordManager.class);
-    private static final Pattern MENTION = Pattern.compile("\\B@([\\S]+)\\b");
+    /** Maximum length of a single Discord message */
+    public static final int MAX_LENGTH = 2000;
+
+    /** Maximum length of the name a webhook message is posted under */
+    private static final int MAX_NAME = 80;
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiscordManager.class);
+
+    /** Shared by every webhook, so that connections to Discord are kept open and reused */
+    private static final HttpClient HTTP = HttpClient.newBuilder()
+        .connectTimeout( Duration.ofSeconds(10) )
+        .build();
+
+    private volatile JDA    bot;
+    private volatile String url;
+    private volatile int    maxInFlight;
+    private volatile int    maxRetries;
+    private volatile int    maxPending;
+
+    private final Map<String, OrderedSender> senders = new ConcurrentHashMap<>();
+    private final Map<String, OrderedSender> hooks   = new ConcurrentHashMap<>();
+    private final MemberIndex                members = new MemberIndex();
+    private final ConnectionState            state   = new ConnectionState("Discord");
+
+    /** URL of the webhook to post IRC chat with, by Discord channel ID */
+    private volatile Map<String, String> webhooks = new HashMap<>();
 
-    private JDA    bot;
-    private String token;
-    private String guildId;
-    private String channelId;
-    private String url;
+    /** Whether every bridged channel was visible, as of the last index of members */
+    private volatile boolean allChannels;
 
     //<editor-fold desc="Manager methods (main thread)">
     public void init() throws Exception
     {
         LOG.info("Connecting for first time...");
 
-        token     = CONFIG.get("discord.token");
-        guildId   = CONFIG.get("discord.guild");
-        channelId = CONFIG.get("discord.channel");
-        url       = CONFIG.get("discord.url");
+        url      = CONFIG.get("discord.url");
+        webhooks = loadWebhooks();
+
+        loadSendLimits();
+        connect();
+    }
+
+    /**
+     * Sets up like {@link #init()}, but with the given client instead of logging in with the
+     * configured token; its events are to be handed to this manager by the caller. Package-private,
+     * so that tests may stand in for Discord.
+     */
+    void init(JDA client)
+    {
+        url      = CONFIG.get("discord.url");
+        webhooks = loadWebhooks();
+
+        loadSendLimits();
+        state.set(State.CONNECTING);
+        bot = client;
+    }
+
+    /**
+     * Applies changes of the config file to Discord as it runs, on the config watcher's thread.
+     * Send limits apply to every channel right away; only a new token needs a fresh login, which
+     * reconnects Discord alone.
+     */
+    public void reload(Set<String> changed)
+    {
+        if ( changed.contains("discord.url") )
+            url = CONFIG.get("discord.url");
+
+        if ( changed.contains("discord.inFlight") || changed.contains("discord.retries")
+            || changed.contains("discord.sendBacklog") )
+        {
+            loadSendLimits();
+
+            for ( OrderedSender sender : senders.values() )
+                sender.setLimits(maxInFlight, maxRetries, maxPending);
+
+            // Overlapping webhook requests are not kept in order by Discord
+            for ( OrderedSender sender : hooks.values() )
+                sender.setLimits(1, maxRetries, maxPending);
+        }
+
+        if ( changed.contains("discord.webhooks") )
+        {
+            Map<String, String> loaded = loadWebhooks();
+
+            // Senders of changed webhooks finish what they have, but get nothing new
+            hooks.keySet().removeIf( id -> !webhooks.get(id).equals( loaded.get(id) ) );
+            webhooks = loaded;
+        }
+
+        if ( !changed.contains("discord.token") )
+            return;
+
+        LOG.info("Token changed; reconnecting...");
+
+        JDA     old       = bot;
+        boolean connected = isAvailable();
+
+        state.set(State.DOWN);
+
+        // The old session's shutdown is not a disconnect the bridge would otherwise hear of
+        old.removeEventListener(this);
+        old.shutdown();
+
+        if (connected)
+            BRIDGE.onDiscordDisconnect();
+
+        try
+        {
+            connect();
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException("Could not reconnect to Discord: " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Called on the config watcher's thread, once routes have been added or removed */
+    public void onRoutesChanged()
+    {
+        if ( !isAvailable() )
+            return;
+
+        indexMembers();
+        state.connected(allChannels);
+    }
+
+    /** Starts logging in with the configured token; events follow on JDA's threads */
+    private void connect() throws Exception
+    {
+        state.set(State.CONNECTING);
 
         bot = new JDABuilder(AccountType.BOT)
             .setAudioEnabled(false)
-            .setToken(token)
+            .setToken( CONFIG.get("discord.token") )
             .addEventListener(this)
             .buildAsync();
     }
 
-    public boolean isAvailable()
+    private void loadSendLimits()
     {
-        if (bot == null)
+        maxInFlight = CONFIG.getInt("discord.inFlight", 4);
+        maxRetries  = CONFIG.getInt("discord.retries", 2);
+        maxPending  = CONFIG.getInt("discord.sendBacklog", 50);
+    }
+
+    /**
+     * Reads the webhooks to post IRC chat with from "discord.webhooks", as comma separated pairs of
+     * Discord channel ID and webhook URL (e.g. "1234 -> https://discord.com/api/webhooks/...").
+     */
+    private static Map<String, String> loadWebhooks()
+    {
+        Map<String, String> loaded = new HashMap<>();
+        String              pairs  = CONFIG.get("discord.webhooks", "").trim();
+
+        if ( pairs.isEmpty() )
+            return loaded;
+
+        for ( String pair : pairs.split(",") )
+        {
+            String[] parts = pair.split("->");
+
+            if ( parts.length != 2 || !isSecure( parts[1].trim() ) )
+                throw new RuntimeException("Invalid config: webhook in discord.webhooks: "
+                    + pair.trim());
+
+            loaded.put( parts[0].trim(), parts[1].trim() );
+        }
+
+        return loaded;
+    }
+
+    /** @return True if the given webhook URL is HTTPS, or HTTP to this machine (e.g. a proxy) */
+    private static boolean isSecure(String url)
+    {
+        if ( url.startsWith("https://") )
+            return true;
+
+        try
+        {
+            URI uri = URI.create(url);
+
+            return "http".equals( uri.getScheme() ) && uri.getHost() != null
+                && InetAddress.getByName( uri.getHost() ).isLoopbackAddress();
+        }
+        catch (IllegalArgumentException | UnknownHostException ex)
+        {
             return false;
-        else return bot.getStatus() == JDA.Status.CONNECTED;
+        }
+    }
+
+    public boolean isAvailable()
+    {
+        return state.isConnected();
     }
 
-    public void sendMessage(String msg, Object... parts)
+    public ConnectionState.State getState()
+    {
+        return state.get();
+    }
+
+    /** @return True if the message was accepted for sending */
+    public boolean sendMessage(String channelId, String msg)
     {
         if ( !isAvailable() )
         {
             LOG.debug("Rejecting message; Discord unavailable: {}", msg);
-            return;
+            return false;
+        }
+
+        TextChannel channel = bot.getTextChannelById(channelId);
+
+        if (channel == null)
+        {
+            LOG.warn("Rejecting message; no such Discord channel {}: {}", channelId, msg);
+            return false;
         }
 
-        String fullMsg = String.format(msg, parts);
-        LOG.info("Sent: {}", fullMsg);
-        bot.getTextChannelById(channelId)
-            .sendMessage(fullMsg)
-            .complete();
+        send(channel, msg, null);
+        return true;
     }
 
-    public void sendMessageWithMentions(String msg, Object... parts)
+    /** @return True if the message was accepted for sending */
+    public boolean sendMessageWithMentions(String channelId, String msg)
+    {
+        return sendMessageWithMentions(channelId, msg, null);
+    }
+
+    /**
+     * @param onSent Called once the whole message is sent, or null if none
+     * @return True if the message was accepted for sending
+     */
+    public boolean sendMessageWithMentions(String channelId, String msg, Runnable onSent)
     {
         if ( !isAvailable() )
         {
             LOG.debug("Rejecting message; Discord unavailable: {}", msg);
-            return;
+            return false;
         }
 
-        String      fullMsg = String.format(msg, parts);
-        Matcher     matcher = MENTION.matcher(fullMsg);
         TextChannel channel = bot.getTextChannelById(channelId);
-        Guild       guild   = bot.getGuildById(guildId);
 
-        // Skip processing mentions if none seem to exist
-        if ( !matcher.find() )
+        if (channel == null)
         {
-            LOG.info("Sent: {}", fullMsg);
-            channel.sendMessage(fullMsg).complete();
-            return;
+            LOG.warn("Rejecting message; no such Discord channel {}: {}", channelId, msg);
+            return false;
         }
 
-        // Have to reset from above one-time use of find
-        matcher.reset();
-        StringBuffer buffer = new StringBuffer();
+        send( channel, withMentions(channel, msg), onSent );
+        return true;
+    }
 
-        // Iterate through any detected mentions and try to link to member
-        while ( matcher.find() )
+    /**
+     * Sends a message privately to the given user, split like channel messages are. Each part is
+     * queued in order with JDA, rather than through a channel's ordered sender.
+     *
+     * @return True if the message was accepted for sending
+     */
+    public boolean sendPrivateMessage(User user, String msg)
+    {
+        if ( !isAvailable() )
         {
-            String       mention = matcher.group(1);
-            List<Member> matches = guild.getMembersByEffectiveName(mention, true);
+            LOG.debug("Rejecting private message; Discord unavailable: {}", msg);
+            return false;
+        }
 
-            // Skip if no matches, or ambiguous matches
-            if (matches.size() < 1 || matches.size() > 1)
-                continue;
+        user.openPrivateChannel().queue(
+            channel -> split(msg).forEach( part -> channel.sendMessage(part).queue(
+                sent -> LOG.debug( "Sent privately to {}: {}", user.getName(), part ),
+                ex   -> LOG.warn( "Could not message {} privately: {}",
+                    user.getName(), ex.getMessage() )
+            )),
+            ex -> LOG.warn( "Could not message {} privately: {}", user.getName(), ex.getMessage() )
+        );
+        return true;
+    }
 
-            Member member = matches.get(0);
+    /** @return True if IRC chat for the given channel is posted by webhook, under each nick */
+    public boolean hasWebhook(String channelId)
+    {
+        return webhooks.containsKey(channelId);
+    }
 
-            // Skip if member is not actually in channel
-            if ( !member.hasPermission(channel, Permission.MESSAGE_READ) )
-                continue;
+    /**
+     * Posts a message by the channel's webhook, under the given IRC nick. Like chat sent by the
+     * bot, it is only accepted while Discord is available, as mentions need the channel's members.
+     *
+     * @param onSent Called once the whole message is sent, or null if none
+     * @return True if the message was accepted for sending
+     */
+    public boolean sendAsWebhook(String channelId, String nick, String msg, Runnable onSent)
+    {
+        if ( !isAvailable() )
+        {
+            LOG.debug("Rejecting message; Discord unavailable: {}", msg);
+            return false;
+        }
+
+        TextChannel channel = bot.getTextChannelById(channelId);
+        String      hook    = webhooks.get(channelId);
+
+        if (channel == null || hook == null)
+        {
+            LOG.warn("Rejecting message; no such Discord channel or webhook {}: {}",
+                channelId, msg);
+            return false;
+        }
+
+        OrderedSender sender = hooks.computeIfAbsent( channelId,
+            id -> createWebhookSender(id, hook) );
+        String        name   = webhookName(nick);
+        List<String>  parts  = split( withMentions(channel, msg) );
+
+        // Discord refuses some names; post those under the webhook's own, and name them in text
+        if (name == null)
+            parts.replaceAll( part -> Templates.DISCORD_MESSAGE.render(nick, part) );
+
+        for (int i = 0; i < parts.size(); i++)
+            sender.submit( WebhookTransport.payload( name, parts.get(i) ),
+                i == parts.size() - 1 ? onSent : null );
+
+        return true;
+    }
+
+    /**
+     * @return Given nick as the name of a webhook message, or null if Discord would refuse it
+     *         (names are 1 to 80 characters, and may not mention "discord" or "clyde")
+     */
+    private static String webhookName(String nick)
+    {
+        String name  = Templates.DISCORD_WEBHOOK_NAME.render(nick).trim();
+        String lower = name.toLowerCase(Locale.ROOT);
+
+        if ( name.isEmpty() || lower.contains("discord") || lower.contains("clyde") )
+            return null;
+
+        return name.length() > MAX_NAME
+            ? name.substring(0, MAX_NAME)
+            : name;
+    }
+
+    /** @return Given message with each "@name" resolved to a mention of that member */
+    private String withMentions(TextChannel channel, String msg)
+    {
+        // Skip if no matches, ambiguous matches or member is not actually in channel
+        return Transforms.rewriteMentions(msg, name -> {
+            Member member = members.resolve(channel, name);
+
+            return member == null
+                ? null
+                : member.getAsMention();
+        });
+    }
+
+    /**
+     * Queues a message for asynchronous sending to the given channel, in order with any other
+     * messages for that channel. Messages over Discord's length limit (e.g. coalesced chat that
+     * grew from mentions) are split, preferably at line breaks.
+     *
+     * @param onSent Called once the last part of the message is sent, or null if none
+     */
+    private void send(TextChannel channel, String msg, Runnable onSent)
+    {
+        OrderedSender sender = senders.computeIfAbsent( channel.getId(), this::createSender );
+        List<String>  parts  = split(msg);
+
+        for (int i = 0; i < parts.size(); i++)
+            sender.submit( parts.get(i), i == parts.size() - 1 ? onSent : null );
+    }
 
-            // Convert match into a real mention, add to string
-            matcher.appendReplacement( buffer, member.getAsMention() );
+    /** @return Given message in parts that fit Discord's length limit, split at line breaks */
+    private static List<String> split(String msg)
+    {
+        List<String> parts = new ArrayList<>();
+
+        while (msg.length() > MAX_LENGTH)
+        {
+            int split = msg.lastIndexOf('\n', MAX_LENGTH);
+
+            if (split <= 0)
+                split = Character.isHighSurrogate( msg.charAt(MAX_LENGTH - 1) )
+                    ? MAX_LENGTH - 1
+                    : MAX_LENGTH;
+
+            parts.add( msg.substring(0, split) );
+
+            msg = msg.charAt(split) == '\n'
+                ? msg.substring(split + 1)
+                : msg.substring(split);
         }
 
-        matcher.appendTail(buffer);
-        fullMsg = buffer.toString();
+        parts.add(msg);
+        return parts;
+    }
 
-        LOG.info("Sent: {}", fullMsg);
-        channel.sendMessage(fullMsg).complete();
+    /** Creates the ordered, asynchronous sender for the channel of the given ID */
+    private OrderedSender createSender(String id)
+    {
+        OrderedSender.Transport transport = (msg, onSuccess, onFailure) -> {
+            long started = System.nanoTime();
+
+            bot.getTextChannelById(id).sendMessage(msg).queue(
+                sent -> {
+                    METRICS.recordSend(Direction.TO_DISCORD, System.nanoTime() - started);
+                    LOG.info("Sent: {}", msg);
+                    onSuccess.run();
+                },
+                onFailure
+            );
+        };
+
+        return new OrderedSender(transport,
+            (msg, cause, retrying) -> onSendFailed(id, msg, cause, retrying),
+            maxInFlight, maxRetries, maxPending
+        );
+    }
+
+    /**
+     * Creates the sender for the given channel's webhook. It allows one message in flight, as
+     * Discord may run overlapping webhook requests out of order.
+     */
+    private OrderedSender createWebhookSender(String id, String hook)
+    {
+        WebhookTransport        webhook   = new WebhookTransport(HTTP, hook);
+        OrderedSender.Transport transport = (payload, onSuccess, onFailure) -> {
+            long started = System.nanoTime();
+
+            webhook.send(payload,
+                () -> {
+                    METRICS.recordSend(Direction.TO_DISCORD, System.nanoTime() - started);
+                    LOG.debug("Sent by webhook: {}", payload);
+                    onSuccess.run();
+                },
+                onFailure
+            );
+        };
+
+        return new OrderedSender(transport,
+            (payload, cause, retrying) -> onSendFailed(id, payload, cause, retrying),
+            1, maxRetries, maxPending
+        );
+    }
+
+    /**
+     * Counts a failed send to the channel of the given ID, and tells the bridge of it through the
+     * channel's route as it is now; routes may have been reloaded since the sender was made.
+     */
+    private void onSendFailed(String id, String msg, Throwable cause, boolean retrying)
+    {
+        METRICS.recordSendFailure(Direction.TO_DISCORD);
+
+        Route route = BRIDGE.getRouteByDiscord(id);
+
+        if (route != null)
+            BRIDGE.onDiscordSendFailed(route, msg, cause, retrying);
+        else
+            LOG.warn( "Could not send to unrouted Discord channel {} ({}): {}",
+                id, cause.getMessage(), msg );
+    }
+
+    /** @return How many messages are waiting to be sent, or still in flight, to any channel */
+    public int getBacklog()
+    {
+        return senders.values().stream().mapToInt(OrderedSender::getBacklog).sum()
+            + hooks.values().stream().mapToInt(OrderedSender::getBacklog).sum();
     }
 
     public String getUrl()
@@ -134,9 +525,57 @@ public class DiscordManager extends ListenerAdapter
 
     public void setStatus(OnlineStatus status, String game, String url)
     {
+        // IRC may connect first, while still logging in to Discord
+        if (bot == null)
+            return;
+
         bot.getPresence().setStatus(status);
         bot.getPresence().setGame( Game.of(game, url) );
     }
+
+    /**
+     * Rebuilds the index of members used for mentions, from JDA's freshly loaded cache, and notes
+     * whether every bridged channel could be found.
+     */
+    private void indexMembers()
+    {
+        List<TextChannel> channels = new ArrayList<>();
+        boolean           found    = true;
+
+        for ( Route route : BRIDGE.getRoutes() )
+        {
+            TextChannel channel = bot.getTextChannelById( route.getDiscordChannel() );
+
+            if (channel != null)
+                channels.add(channel);
+            else
+            {
+                found = false;
+                LOG.warn( "Bridged channel {} is missing or not visible",
+                    route.getDiscordChannel()
+                );
+            }
+        }
+
+        members.rebuild(channels);
+        allChannels = found;
+    }
+
+    /** @return Every route whose Discord channel belongs to the given guild */
+    private List<Route> getRoutesIn(Guild guild)
+    {
+        List<Route> found = new ArrayList<>();
+
+        for ( Route route : BRIDGE.getRoutes() )
+        {
+            TextChannel channel = bot.getTextChannelById( route.getDiscordChannel() );
+
+            if ( channel != null && channel.getGuild().equals(guild) )
+                found.add(route);
+        }
+
+        return found;
+    }
     //</editor-fold>
 
     //<editor-fold desc="Bot event handlers (Discord thread)">
@@ -144,6 +583,9 @@ public class DiscordManager extends ListenerAdapter
     public void onReady(ReadyEvent event)
     {
         LOG.info("Connected successfully");
+        METRICS.recordMilestone(Milestone.DISCORD_READY);
+        indexMembers();
+        state.connected(allChannels);
         BRIDGE.onDiscordConnect();
     }
 
@@ -151,6 +593,9 @@ public class DiscordManager extends ListenerAdapter
     public void onReconnect(ReconnectedEvent event)
     {
         LOG.info("Reconnected");
+        // Reconnecting (unlike resuming) reloads JDA's entire cache
+        indexMembers();
+        state.connected(allChannels);
         BRIDGE.onDiscordConnect();
     }
 
@@ -158,6 +603,7 @@ public class DiscordManager extends ListenerAdapter
     public void onResume(ResumedEvent event)
     {
         LOG.info("Reconnected");
+        state.connected(allChannels);
         BRIDGE.onDiscordConnect();
     }
 
@@ -177,6 +623,7 @@ public class DiscordManager extends ListenerAdapter
                 : "closed by client";
 
         LOG.warn("Lost connection ({}); reconnecting...", why);
+        state.lost();
         BRIDGE.onDiscordDisconnect();
     }
 
@@ -187,45 +634,72 @@ public class DiscordManager extends ListenerAdapter
         if ( event.getAuthor().equals( bot.getSelfUser() ) )
             return;
 
-        // Ignore messages from other channels
-        if ( !event.getChannel().getId().contentEquals(channelId) )
+        // Ignore webhooks (including our own, posting IRC chat), which are not members to name
+        if ( event.getAuthor().isFake() )
+            return;
+
+        // Ignore other relays
+        if ( BRIDGE.isRelay( event.getAuthor().getName() ) )
+            return;
+
+        // Ignore messages from channels that aren't bridged
+        Route route = BRIDGE.getRouteByDiscord( event.getChannel().getId() );
+        if (route == null)
             return;
 
+        // Ignore chat that was just bridged from IRC, coming back via another relay
+        if ( BRIDGE.isEchoFromDiscord( event.getMessage().getContent() ) )
+        {
+            LOG.trace( "Ignoring echo from {}: {}",
+                event.getAuthor().getName(), event.getMessage().getContent()
+            );
+            return;
+        }
+
         LOG.trace( "Message from {} with {} attachment(s): {}",
             event.getMember().getEffectiveName(),
             event.getMessage().getAttachments().size(),
             event.getMessage().getContent()
         );
-        BRIDGE.onDiscordMessage(event);
+        BRIDGE.onDiscordMessage(route, event);
     }
 
     @Override
     public void onGuildMemberJoin(GuildMemberJoinEvent event)
     {
-        // Ignore from other servers
-        if ( !event.getGuild().getId().contentEquals(guildId) )
+        members.addMember( event.getMember() );
+
+        // Ignore from servers without bridged channels
+        List<Route> routes = getRoutesIn( event.getGuild() );
+        if ( routes.isEmpty() )
             return;
 
         LOG.trace( "{} joined the server", event.getMember().getEffectiveName() );
-        BRIDGE.onDiscordUserJoin(event);
+        routes.forEach( route -> BRIDGE.onDiscordUserJoin(route, event) );
     }
 
     @Override
     public void onGuildMemberLeave(GuildMemberLeaveEvent event)
     {
-        // Ignore from other servers
-        if ( !event.getGuild().getId().contentEquals(guildId) )
+        members.removeMember( event.getMember() );
+
+        // Ignore from servers without bridged channels
+        List<Route> routes = getRoutesIn( event.getGuild() );
+        if ( routes.isEmpty() )
             return;
 
         LOG.trace( "{} quit the server", event.getMember().getEffectiveName() );
-        BRIDGE.onDiscordUserLeave(event);
+        routes.forEach( route -> BRIDGE.onDiscordUserLeave(route, event) );
     }
 
     @Override
     public void onGuildMemberNickChange(GuildMemberNickChangeEvent event)
     {
-        // Ignore from other servers
-        if ( !event.getGuild().getId().contentEquals(guildId) )
+        members.updateName( event.getMember() );
+
+        // Ignore from servers without bridged channels
+        List<Route> routes = getRoutesIn( event.getGuild() );
+        if ( routes.isEmpty() )
             return;
 
         String oldNick = event.getPrevNick();
@@ -236,7 +710,46 @@ public class DiscordManager extends ListenerAdapter
         if (newNick == null) newNick = event.getMember().getUser().getName();
 
         LOG.trace("{} changed nick to {}", oldNick, newNick);
-        BRIDGE.onDiscordNickChange(oldNick, newNick);
+        for (Route route : routes)
+            BRIDGE.onDiscordNickChange(route, oldNick, newNick);
+    }
+
+    @Override
+    public void onUserNameUpdate(UserNameUpdateEvent event)
+    {
+        // Username is the effective name of members without a nickname
+        for ( Guild guild : event.getUser().getMutualGuilds() )
+            members.updateName( guild.getMember( event.getUser() ) );
+    }
+
+    @Override
+    public void onGuildMemberRoleAdd(GuildMemberRoleAddEvent event)
+    {
+        members.updateAccess( event.getMember() );
+    }
+
+    @Override
+    public void onGuildMemberRoleRemove(GuildMemberRoleRemoveEvent event)
+    {
+        members.updateAccess( event.getMember() );
+    }
+
+    @Override
+    public void onRoleUpdatePermissions(RoleUpdatePermissionsEvent event)
+    {
+        members.updateAccess( event.getGuild() );
+    }
+
+    @Override
+    public void onRoleDelete(RoleDeleteEvent event)
+    {
+        members.updateAccess( event.getGuild() );
+    }
+
+    @Override
+    public void onTextChannelUpdatePermissions(TextChannelUpdatePermissionsEvent event)
+    {
+        members.updateAccess( event.getChannel() );
     }
     //</editor-fold>
 }
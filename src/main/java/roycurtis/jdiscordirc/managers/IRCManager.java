@@ -1,6 +1,7 @@
 package roycurtis.jdiscordirc.managers;
 
 import com.google.common.base.Strings;
+import org.pircbotx.Channel;
 import org.pircbotx.Colors;
 import org.pircbotx.Configuration;
 import org.pircbotx.PircBotX;
@@ -10,36 +11,156 @@ import org.pircbotx.hooks.events.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import roycurtis.jdiscordirc.JDiscordIRC;
-
+import roycurtis.jdiscordirc.managers.MetricsManager.Direction;
+import roycurtis.jdiscordirc.managers.MetricsManager.Milestone;
+import roycurtis.jdiscordirc.util.ConnectionState;
+import roycurtis.jdiscordirc.util.ConnectionState.State;
+import roycurtis.jdiscordirc.util.FloodScheduler;
+import roycurtis.jdiscordirc.util.FloodScheduler.Priority;
+import roycurtis.jdiscordirc.util.FormatTranscoder;
+import roycurtis.jdiscordirc.util.LinePacker;
+import roycurtis.jdiscordirc.util.ServerRace;
+import roycurtis.jdiscordirc.util.TokenBucket;
+
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static roycurtis.jdiscordirc.JDiscordIRC.BRIDGE;
 import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
 import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+import static roycurtis.jdiscordirc.JDiscordIRC.METRICS;
 
 public class IRCManager extends ListenerAdapter
 {
     private static final Logger LOG = LoggerFactory.getLogger(IRCManager.class);
 
-    private PircBotX bot;
-    private Thread   thread;
-    private boolean  wasConnected;
-    private String   server;
-    private String   channel;
-    private String   nickname;
-    private String   username;
-    private String   realname;
+    /** Maximum length of a line sent to or from an IRC server, in bytes, including CR LF */
+    private static final int MAX_LINE = 512;
+    /** Longest hostname to assume, while the server has not yet told us our own */
+    private static final int MAX_HOST = 63;
+    /** Bytes that CTCP adds around an action's text, i.e. "\u0001ACTION " and "\u0001" */
+    private static final int ACTION_OVERHEAD = 9;
+
+    /** How long to wait for the old connection to close, when reconnecting for a new config */
+    private static final long RECONNECT_WAIT = 10000;
+    /** How long to wait before rejoining a channel we were kicked from, in milliseconds */
+    public static final long  REJOIN_DELAY   = 10000;
+
+    private volatile PircBotX bot;
+    private volatile String   server;
+    private volatile String   nickname;
+    private volatile String   username;
+    private volatile String   realname;
+
+    private final ConnectionState state = new ConnectionState("IRC");
+
+    private Thread         thread;
+    private TokenBucket    bucket;
+    private FloodScheduler output;
+
+    /** Picks which of the network's servers to connect to, and paces reconnects */
+    private volatile ServerRace race;
+    /** When the last connection was lost, in {@link System#nanoTime()} terms, or 0 if up */
+    private volatile long       lostAt;
+
+    /** Last away message set, shared by all routes */
+    private volatile String away;
 
     //<editor-fold desc="Manager methods (main thread)">
     public void init() throws Exception
     {
         LOG.info("Connecting for first time...");
 
-        server   = CONFIG.get("irc.server");
-        channel  = CONFIG.get("irc.channel");
+        bucket = new TokenBucket(
+            CONFIG.getInt("irc.floodBurst", 4),
+            CONFIG.getInt("irc.floodInterval", 1000)
+        );
+        output = new FloodScheduler(bucket,
+            CONFIG.getInt("irc.noticeBacklog", 10),
+            CONFIG.getInt("irc.sendBacklog", 50),
+            (channel, count) -> {
+                long queued = System.nanoTime();
+
+                return () -> sendNow(channel,
+                    Templates.IRC_SKIPPED.render(count), queued, null
+                );
+            }
+        );
+        output.start();
+
+        connect();
+    }
+
+    /**
+     * Applies changes of the config file to IRC as it runs, on the config watcher's thread. Flood
+     * control applies right away; only a new server or identity needs a fresh connection.
+     */
+    public void reload(Set<String> changed)
+    {
+        if ( changed.contains("irc.floodBurst") || changed.contains("irc.floodInterval") )
+            bucket.setRate(
+                CONFIG.getInt("irc.floodBurst", 4),
+                CONFIG.getInt("irc.floodInterval", 1000)
+            );
+
+        if ( changed.contains("irc.noticeBacklog") || changed.contains("irc.sendBacklog") )
+            output.setBacklogs(
+                CONFIG.getInt("irc.noticeBacklog", 10),
+                CONFIG.getInt("irc.sendBacklog", 50)
+            );
+
+        if ( changed.contains("irc.reconnectDelay") || changed.contains("irc.reconnectMaxDelay") )
+            race.setDelays(
+                CONFIG.getInt("irc.reconnectDelay", 500),
+                CONFIG.getInt("irc.reconnectMaxDelay", 60000)
+            );
+
+        if ( changed.contains("irc.server") || changed.contains("irc.nickname")
+            || changed.contains("irc.username") || changed.contains("irc.realname") )
+            reconnect();
+    }
+
+    /** Joins the given channel, if connected; otherwise it is joined on connect, as every route */
+    public void joinChannel(String channel)
+    {
+        if ( !isAvailable() )
+            return;
+
+        bot.send().joinChannel(channel);
+        updateJoined();
+    }
+
+    /** Leaves the given channel, if in it; only for channels no longer routed */
+    public void partChannel(String channel)
+    {
+        if ( !isAvailable() )
+            return;
+
+        bot.sendRaw().rawLine("PART " + channel + " :No longer bridged");
+        updateJoined();
+    }
+
+    /**
+     * Starts a bot for the configured servers and identity, on a virtual thread of its own. Every
+     * server is raced for each (re)connect, with the one last registered with given a head start.
+     */
+    private void connect()
+    {
         nickname = CONFIG.get("irc.nickname");
         username = CONFIG.get("irc.username");
         realname = CONFIG.get("irc.realname");
+        race     = new ServerRace( CONFIG.get("irc.server"), loadLastServer(),
+            CONFIG.getInt("irc.reconnectDelay", 500),
+            CONFIG.getInt("irc.reconnectMaxDelay", 60000)
+        );
+        server   = race.getFirst().getHostString();
 
         Configuration config = new Configuration.Builder()
             .setName(nickname)
@@ -49,28 +170,125 @@ public class IRCManager extends ListenerAdapter
             .setAutoNickChange(true)
             .setAutoReconnect(true)
             .setAutoReconnectAttempts(Integer.MAX_VALUE)
-            .setAutoReconnectDelay(5000)
-            .addServer(server)
+            // Reconnects back off within the race instead
+            .setAutoReconnectDelay(0)
+            // Flood control is handled by our own scheduler instead
+            .setMessageDelay(0)
+            .setSocketFactory(race)
+            // Never dialled, as the race picks the server and ignores the one PircBotX asks for
+            .addServer( server, race.getFirst().getPort() )
             .addListener(this)
             .buildConfiguration();
 
-        bot    = new PircBotX(config);
-        thread = new Thread(() -> {
-            try                 { bot.startBot(); }
-            catch (Exception e) { JDiscordIRC.exit("IRC bot crashed"); }
-        }, "PircBotX");
+        PircBotX self = new PircBotX(config);
+
+        state.set(State.CONNECTING);
+        bot    = self;
+        thread = Thread.ofVirtual().name("PircBotX").start(() -> {
+            try
+            {
+                self.startBot();
+            }
+            catch (Exception e)
+            {
+                // Bots replaced by a reconnect may fail as they are stopped
+                if (self == bot)
+                    JDiscordIRC.exit("IRC bot crashed");
+            }
+        });
+    }
+
+    /** Quits the current server for good, waits for the old bot to stop, then connects anew */
+    private void reconnect()
+    {
+        LOG.info("Server or identity changed; reconnecting...");
 
-        thread.start();
+        PircBotX old       = bot;
+        Thread   oldThread = thread;
+
+        // Events of the old connection are ignored from here on
+        state.set(State.DOWN);
+        clearJoined();
+        old.stopBotReconnect();
+
+        if ( old.isConnected() )
+            old.send().quitServer("Reconnecting");
+        else
+            oldThread.interrupt();
+
+        try
+        {
+            oldThread.join(RECONNECT_WAIT);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if ( oldThread.isAlive() )
+            LOG.warn("Old connection has not closed yet; connecting anyway");
+
+        connect();
+    }
+
+    /** @return Server last registered with, as "host:port", from the file it is kept in */
+    private static String loadLastServer()
+    {
+        String file = CONFIG.get("irc.lastServer", "").trim();
+
+        if ( file.isEmpty() || !Files.exists( Paths.get(file) ) )
+            return null;
+
+        try
+        {
+            return new String( Files.readAllBytes( Paths.get(file) ), StandardCharsets.UTF_8 )
+                .trim();
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Could not read last server from {}: {}", file, ex.getMessage());
+            return null;
+        }
+    }
+
+    /** Keeps the given server in a file, so the next start tries it first */
+    private static void saveLastServer(String server)
+    {
+        String file = CONFIG.get("irc.lastServer", "").trim();
+
+        if ( file.isEmpty() )
+            return;
+
+        try
+        {
+            Path path = Paths.get(file);
+
+            Files.write( path, Collections.singletonList(server), StandardCharsets.UTF_8 );
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Could not keep last server in {}: {}", file, ex.getMessage());
+        }
     }
 
+    /** @return True if connected to the IRC server */
     public boolean isAvailable()
     {
-        if (bot == null)
-            return false;
-        else if ( !bot.isConnected() )
-            return false;
-        else
-            return bot.getUserChannelDao().containsChannel(channel);
+        return state.isConnected();
+    }
+
+    /** @return True if connected to the IRC server, and in the given bridged channel */
+    public boolean isAvailable(String channel)
+    {
+        Route route = BRIDGE.getRouteByIRC(channel);
+
+        return route != null && route.ircJoined;
+    }
+
+    public ConnectionState.State getState()
+    {
+        return state.get();
     }
 
     public String getServer()
@@ -78,36 +296,90 @@ public class IRCManager extends ListenerAdapter
         return server;
     }
 
-    public String getChannel()
+    public boolean sendMessage(String channel, String msg)
     {
-        return channel;
+        return sendMessage(Priority.CHAT, channel, msg);
     }
 
-    public boolean sendMessage(String msg, Object... parts)
+    /**
+     * Queues a message for the given channel, to be sent as soon as the server's flood policy and
+     * any more important waiting lines allow.
+     *
+     * @return True if the message was accepted for sending
+     */
+    public boolean sendMessage(Priority priority, String channel, String msg)
     {
-        if ( !isAvailable() )
+        return sendMessage(priority, channel, msg, null);
+    }
+
+    /**
+     * Queues a message for the given channel, like {@link #sendMessage(Priority, String, String)}.
+     *
+     * @param onSent Called once the message is sent, or null if none
+     * @return True if the message was accepted for sending
+     */
+    public boolean sendMessage(Priority priority, String channel, String msg, Runnable onSent)
+    {
+        if ( !isAvailable(channel) )
         {
             LOG.debug("Rejecting message; IRC unavailable: {}", msg);
             return false;
         }
 
-        String fullMsg = String.format(msg, parts);
-        LOG.info( "Sent: {}", Colors.removeFormattingAndColors(fullMsg) );
-        IRC.bot.send().message(channel, fullMsg);
+        long queued = System.nanoTime();
+
+        output.submit( priority, channel, () -> sendNow(channel, msg, queued, onSent) );
         return true;
     }
 
-    public boolean sendAction(String who, String action)
+    /** @param onSent Called once the action is sent, or null if none */
+    public boolean sendAction(String channel, String who, String action, Runnable onSent)
     {
-        if ( !isAvailable() )
+        if ( !isAvailable(channel) )
         {
             LOG.debug("Rejecting action; IRC unavailable: {}", action);
             return false;
         }
 
-        LOG.info( "Sent: {} {}", who, Colors.removeFormattingAndColors(action) );
-        action = String.format("%s %s", who, action);
-        IRC.bot.send().action(channel, action);
+        String fullAction = Templates.IRC_ACTION.render(who, action);
+        long   queued     = System.nanoTime();
+
+        output.submit(Priority.ACTION, channel, () -> {
+            if ( !isAvailable() )
+                return;
+
+            LOG.info( "Sent: {} {}", who, Colors.removeFormattingAndColors(action) );
+            IRC.bot.send().action(channel, fullAction);
+            METRICS.recordSend(Direction.TO_IRC, System.nanoTime() - queued);
+
+            if (onSent != null)
+                onSent.run();
+        });
+        return true;
+    }
+
+    /**
+     * Queues a notice to the given user (e.g. a reply to a command), to be sent behind any waiting
+     * chat and actions. Unlike join/leave notices, it is never skipped.
+     *
+     * @return True if the notice was accepted for sending
+     */
+    public boolean sendNotice(String target, String msg)
+    {
+        if ( !isAvailable() )
+        {
+            LOG.debug("Rejecting notice; IRC unavailable: {}", msg);
+            return false;
+        }
+
+        // Never skipped, as it is a reply the user asked for, not a join/leave notice
+        output.submit(Priority.NOTICE, target, () -> {
+            if ( !isAvailable() )
+                return;
+
+            LOG.debug("Notice to {}: {}", target, msg);
+            IRC.bot.send().notice(target, msg);
+        }, false);
         return true;
     }
 
@@ -119,12 +391,99 @@ public class IRCManager extends ListenerAdapter
             return;
         }
 
-        if ( Strings.isNullOrEmpty(msg) )
-            LOG.debug("Removing away message");
-        else
-            LOG.debug("Setting away message to: {}", msg);
+        // Shared by all routes, so skip repeats of whatever was last set
+        if ( msg.equals(away) )
+            return;
+
+        away = msg;
+
+        output.submit(Priority.AWAY, nickname, () -> {
+            if ( !isAvailable() )
+                return;
+
+            if ( Strings.isNullOrEmpty(msg) )
+                LOG.debug("Removing away message");
+            else
+                LOG.debug("Setting away message to: {}", msg);
+
+            IRC.bot.sendRaw().rawLine("AWAY :" + msg);
+        });
+    }
+
+    /**
+     * Works out how many bytes of text fit in one message or action to the given channel. Other
+     * users receive our lines prefixed with our full hostmask, which the server adds within its
+     * 512 byte limit, so that prefix counts against the budget too.
+     *
+     * @return Most bytes of UTF-8 text that a single line to the channel may carry
+     */
+    public int getLineBudget(String channel, boolean action)
+    {
+        String nick  = nickname;
+        String login = username;
+        int    host  = MAX_HOST;
+
+        if ( isAvailable() )
+        {
+            User self = bot.getUserBot();
+
+            nick = self.getNick();
 
-        IRC.bot.sendRaw().rawLine("AWAY :" + msg);
+            if ( !Strings.isNullOrEmpty( self.getLogin() ) )
+                login = self.getLogin();
+
+            if ( !Strings.isNullOrEmpty( self.getHostname() ) )
+                host = LinePacker.utf8Length( self.getHostname() );
+        }
+
+        // ":nick!login@host PRIVMSG #channel :" before the text, and CR LF after it
+        int overhead = 1 + LinePacker.utf8Length(nick) + 1 + LinePacker.utf8Length(login) + 1
+            + host + " PRIVMSG ".length() + LinePacker.utf8Length(channel) + " :".length() + 2;
+
+        if (action)
+            overhead += ACTION_OVERHEAD;
+
+        return MAX_LINE - overhead;
+    }
+
+    /** @return How many lines are waiting for flood control to allow sending them */
+    public int getBacklog()
+    {
+        return output == null
+            ? 0
+            : output.getBacklog();
+    }
+
+    /** Moves to joined if every route's channel has been joined, or else to degraded */
+    private void updateJoined()
+    {
+        if ( isAvailable() )
+            state.connected( BRIDGE.getRoutes().stream().allMatch(route -> route.ircJoined) );
+    }
+
+    private void clearJoined()
+    {
+        BRIDGE.getRoutes().forEach(route -> route.ircJoined = false);
+    }
+
+    /**
+     * Sends a message right away; only to be called by the output scheduler. Time since the message
+     * was queued is recorded as its send latency, including any wait for flood control.
+     */
+    private void sendNow(String channel, String msg, long queued, Runnable onSent)
+    {
+        if ( !isAvailable() )
+        {
+            LOG.debug("Dropping message; IRC went unavailable: {}", msg);
+            return;
+        }
+
+        LOG.info( "Sent: {}", Colors.removeFormattingAndColors(msg) );
+        IRC.bot.send().message(channel, msg);
+        METRICS.recordSend(Direction.TO_IRC, System.nanoTime() - queued);
+
+        if (onSent != null)
+            onSent.run();
     }
     //</editor-fold>
 
@@ -134,9 +493,26 @@ public class IRCManager extends ListenerAdapter
     {
         // We won't send connect to bridge; all we care about is joining channel
         LOG.info("Connected successfully");
+        METRICS.recordMilestone(Milestone.IRC_REGISTERED);
+        state.connected(false);
+
+        race.onRegistered();
+        server = race.getConnectedHost();
+        saveLastServer( race.getConnected() );
+
+        long lost = lostAt;
+
+        if (lost != 0)
+        {
+            lostAt = 0;
+            METRICS.recordReconnect(Direction.TO_IRC, System.nanoTime() - lost);
+        }
+
         // We don't use auto-join, because if the bot gets kicked we simply disconnect. The auto
         // reconnect doesn't honor channel auto-join.
-        bot.send().joinChannel(channel);
+        away = null;
+        for ( Route route : BRIDGE.getRoutes() )
+            bot.send().joinChannel( route.getIRCChannel() );
     }
 
     @Override
@@ -148,12 +524,27 @@ public class IRCManager extends ListenerAdapter
     @Override
     public void onDisconnect(DisconnectEvent event) throws Exception
     {
-        String why = event.getDisconnectException().getMessage();
+        // Old connections, replaced for a new config, were already cleaned up after
+        if (event.getBot() != bot)
+            return;
+
+        String  why    = event.getDisconnectException().getMessage();
+        boolean joined = BRIDGE.getRoutes().stream().anyMatch(route -> route.ircJoined);
+
+        clearJoined();
+
+        State was = state.lost();
+
+        // Downtime lasts from losing a registered connection, until registering again
+        if (was == State.JOINED || was == State.DEGRADED)
+            lostAt = System.nanoTime();
 
-        if (wasConnected)
+        // Anything still waiting was meant for the old connection
+        output.clear();
+
+        if (joined)
         {
             LOG.warn("Lost connection ({}); reconnecting...", why);
-            wasConnected = false;
             BRIDGE.onIRCDisconnect();
         }
         else
@@ -171,11 +562,27 @@ public class IRCManager extends ListenerAdapter
         if ( user.equals( bot.getUserBot() ) )
             return;
 
-        // Don't bother with IRC formatting
-        String message = Colors.removeFormattingAndColors( event.getMessage() );
+        // Ignore other relays
+        if ( BRIDGE.isRelay( user.getNick() ) )
+            return;
+
+        // Ignore messages from channels that aren't bridged
+        Route route = BRIDGE.getRouteByIRC( event.getChannel().getName() );
+        if (route == null)
+            return;
+
+        // IRC formatting becomes markdown, and literal markdown is escaped
+        String message = FormatTranscoder.toDiscord( event.getMessage() );
+
+        // Ignore chat that was just bridged from Discord, coming back via another relay
+        if ( BRIDGE.isEchoFromIRC(message) )
+        {
+            LOG.trace("Ignoring echo from {}: {}", user.getNick(), message);
+            return;
+        }
 
         LOG.trace("Message from {}: {}", user.getNick(), message);
-        BRIDGE.onIRCMessage(user, message);
+        BRIDGE.onIRCMessage(route, user, message);
     }
 
     @Override
@@ -189,11 +596,31 @@ public class IRCManager extends ListenerAdapter
         if ( user.equals( bot.getUserBot() ) )
             return;
 
-        // Don't bother with IRC formatting
-        String action = Colors.removeFormattingAndColors( event.getAction() );
+        // Ignore other relays
+        if ( BRIDGE.isRelay( user.getNick() ) )
+            return;
+
+        // Ignore actions sent privately, or to channels that aren't bridged
+        if (event.getChannel() == null)
+            return;
+
+        Route route = BRIDGE.getRouteByIRC( event.getChannel().getName() );
+        if (route == null)
+            return;
+
+        // IRC formatting becomes markdown, and literal markdown is escaped
+        String action = FormatTranscoder.toDiscord( event.getAction() );
+
+        // Ignore chat that was just bridged from Discord, coming back via another relay. Relays
+        // send actions as their own, so "* relay nick text" is checked as "* nick text"
+        if ( BRIDGE.isEchoFromIRC("* " + action) )
+        {
+            LOG.trace("Ignoring echo from {}: {}", user.getNick(), action);
+            return;
+        }
 
         LOG.trace("Action from {}: {}", user.getNick(), action);
-        BRIDGE.onIRCAction(user, action);
+        BRIDGE.onIRCAction(route, user, action);
     }
 
     @Override
@@ -223,16 +650,22 @@ public class IRCManager extends ListenerAdapter
         if (user == null)
             return;
 
+        Route route = BRIDGE.getRouteByIRC( event.getChannel().getName() );
+        if (route == null)
+            return;
+
         if ( user.equals( bot.getUserBot() ) )
         {
-            LOG.trace( "Joined channel successfully", user.getHostmask() );
-            BRIDGE.onIRCConnect();
-            wasConnected = true;
+            LOG.trace( "Joined channel {} successfully", route.getIRCChannel() );
+            METRICS.recordMilestone(Milestone.IRC_JOINED);
+            route.ircJoined = true;
+            updateJoined();
+            BRIDGE.onIRCConnect(route);
         }
         else
         {
             LOG.trace( "{} joined the channel", event.getUser().getHostmask() );
-            BRIDGE.onIRCJoin(user);
+            BRIDGE.onIRCJoin(route, user);
         }
     }
 
@@ -243,8 +676,19 @@ public class IRCManager extends ListenerAdapter
         if (user == null)
             return;
 
+        Route route = BRIDGE.getRouteByIRC( event.getChannel().getName() );
+        if (route == null)
+            return;
+
+        if ( user.equals( bot.getUserBot() ) )
+        {
+            route.ircJoined = false;
+            updateJoined();
+            return;
+        }
+
         LOG.trace( "{} parted the channel ({})", user.getHostmask(), event.getReason() );
-        BRIDGE.onIRCPart( user, event.getReason() );
+        BRIDGE.onIRCPart( route, user, event.getReason() );
     }
 
     @Override
@@ -255,7 +699,15 @@ public class IRCManager extends ListenerAdapter
             return;
 
         LOG.trace( "{} quit the server ({})", user.getHostmask(), event.getReason() );
-        BRIDGE.onIRCQuit( user, event.getReason() );
+
+        // Only tell routes for the channels the user was in, as of just before quitting
+        for ( Channel channel : event.getUserChannelDaoSnapshot().getChannels( event.getUser() ) )
+        {
+            Route route = BRIDGE.getRouteByIRC( channel.getName() );
+
+            if (route != null)
+                BRIDGE.onIRCQuit( route, user, event.getReason() );
+        }
     }
 
     @Override
@@ -266,15 +718,30 @@ public class IRCManager extends ListenerAdapter
         if (target == null || kicker == null)
             return;
 
-        // Handle self-kick
+        Route route = BRIDGE.getRouteByIRC( event.getChannel().getName() );
+        if (route == null)
+            return;
+
+        // Handle self-kick; only this route pauses, as other channels are unaffected
         if ( target.equals( bot.getUserBot() ) )
         {
-            LOG.warn( "Kicked off by {} ({}); disconnecting and reconnecting...",
+            LOG.warn( "Kicked from {} by {} ({}); rejoining in {} ms...",
+                route.getIRCChannel(),
                 kicker.getNick(),
-                event.getReason()
+                event.getReason(),
+                REJOIN_DELAY
             );
-            // No bridge message; let disconnect and auto-reconnect handle messages
-            bot.send().quitServer();
+            route.ircJoined = false;
+            updateJoined();
+            BRIDGE.onIRCSelfKick( route, kicker, event.getReason() );
+
+            PircBotX kicked = bot;
+
+            CompletableFuture.delayedExecutor(REJOIN_DELAY, TimeUnit.MILLISECONDS).execute( () -> {
+                // Skip if reconnected meanwhile (which rejoins every channel), or no longer routed
+                if ( kicked == bot && BRIDGE.getRouteByIRC( route.getIRCChannel() ) == route )
+                    joinChannel( route.getIRCChannel() );
+            });
             return;
         }
 
@@ -283,7 +750,7 @@ public class IRCManager extends ListenerAdapter
             kicker.getNick(),
             event.getReason()
         );
-        BRIDGE.onIRCKick( target, kicker, event.getReason() );
+        BRIDGE.onIRCKick( route, target, kicker, event.getReason() );
     }
 
     @Override
@@ -294,7 +761,14 @@ public class IRCManager extends ListenerAdapter
             return;
 
         LOG.trace( "{} changed nick to {}", event.getOldNick(), event.getNewNick() );
-        BRIDGE.onIRCNickChange( event.getOldNick(), event.getNewNick() );
+
+        for ( Channel channel : user.getChannels() )
+        {
+            Route route = BRIDGE.getRouteByIRC( channel.getName() );
+
+            if (route != null)
+                BRIDGE.onIRCNickChange( route, event.getOldNick(), event.getNewNick() );
+        }
     }
     //</editor-fold>
 }
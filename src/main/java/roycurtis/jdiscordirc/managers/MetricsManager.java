@@ -0,0 +1,473 @@
+package roycurtis.jdiscordirc.managers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roycurtis.jdiscordirc.util.ConnectionState.State;
+import roycurtis.jdiscordirc.util.LatencyHistogram;
+import roycurtis.jdiscordirc.util.RateMeter;
+import roycurtis.jdiscordirc.util.TaskLane;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static roycurtis.jdiscordirc.JDiscordIRC.BRIDGE;
+import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
+import static roycurtis.jdiscordirc.JDiscordIRC.DISCORD;
+import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+
+/**
+ * Keeps counters and latency histograms for everything that passes through the bridge, for each
+ * direction and type of event. Each bridge task records how long it waited in its lane and how
+ * long it took to handle; each send records how long the network side took to complete it. Chat
+ * records its whole trip, from being received on one side to being sent on the other, and how
+ * many messages per second make that trip.
+ *
+ * Milestones of startup are timed from the launch of the JVM, and logged as they are reached, so
+ * that the time it takes before chat flows after a (re)start can be seen and improved. Likewise,
+ * each reconnect records how long its side was down.
+ *
+ * Metrics are exposed over JMX, and optionally as plain text (in Prometheus' format) over HTTP on
+ * the loopback interface, for scraping.
+ */
+public class MetricsManager implements MetricsManagerMBean
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsManager.class);
+
+    /** Which side a task or send is headed towards */
+    public enum Direction { TO_DISCORD, TO_IRC }
+
+    /** Types of bridge events, as recorded */
+    public enum Event { MESSAGE, ACTION, JOIN, PART, QUIT, KICK, NICK, CONNECTION, ERROR }
+
+    /** Stages of a bridge task that are timed */
+    private enum Stage { QUEUE, PROCESS }
+
+    /** How many seconds the rate of bridged chat is averaged over */
+    private static final int RATE_WINDOW = 60;
+
+    /** Milestones of startup, in the order they are usually reached */
+    public enum Milestone
+    {
+        CONFIG_PARSED("Config parsed"),
+        DISCORD_READY("Discord ready"),
+        IRC_REGISTERED("IRC registered"),
+        IRC_JOINED("IRC channel joined"),
+        FIRST_BRIDGED("First message bridged");
+
+        final String description;
+
+        Milestone(String description)
+        {
+            this.description = description;
+        }
+    }
+
+    private final LatencyHistogram[][][] tasks =
+        new LatencyHistogram[ Direction.values().length ][ Event.values().length ][];
+    private final TaskMeter[][]          meters =
+        new TaskMeter[ Direction.values().length ][ Event.values().length ];
+    private final LatencyHistogram[]     sends =
+        new LatencyHistogram[ Direction.values().length ];
+    private final LatencyHistogram[]     trips =
+        new LatencyHistogram[ Direction.values().length ];
+    private final RateMeter[]            rates =
+        new RateMeter[ Direction.values().length ];
+    private final LatencyHistogram[]     downtimes =
+        new LatencyHistogram[ Direction.values().length ];
+
+    private final AtomicLongArray sent     = new AtomicLongArray( Direction.values().length );
+    private final AtomicLongArray failures = new AtomicLongArray( Direction.values().length );
+    private final AtomicLongArray dropped  = new AtomicLongArray( Direction.values().length );
+    private final AtomicLongArray summed   = new AtomicLongArray( Direction.values().length );
+
+    /** Milliseconds from launch to each milestone, or 0 if not yet reached */
+    private final AtomicLongArray milestones = new AtomicLongArray( Milestone.values().length );
+
+    private HttpServer server;
+
+    public MetricsManager()
+    {
+        for (Direction direction : Direction.values())
+        {
+            sends[ direction.ordinal() ] = new LatencyHistogram();
+            trips[ direction.ordinal() ] = new LatencyHistogram();
+            rates[ direction.ordinal() ] = new RateMeter(RATE_WINDOW);
+            downtimes[ direction.ordinal() ] = new LatencyHistogram();
+
+            for (Event event : Event.values())
+            {
+                LatencyHistogram[] stages = new LatencyHistogram[ Stage.values().length ];
+
+                for (int i = 0; i < stages.length; i++)
+                    stages[i] = new LatencyHistogram();
+
+                tasks[ direction.ordinal() ][ event.ordinal() ]  = stages;
+                meters[ direction.ordinal() ][ event.ordinal() ] = new TaskMeter(stages);
+            }
+        }
+    }
+
+    //<editor-fold desc="Manager methods (main thread)">
+    public void init() throws Exception
+    {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            this, new ObjectName("roycurtis.jdiscordirc:type=Metrics")
+        );
+
+        int port = CONFIG.getInt("metrics.port", 0);
+
+        if (port <= 0)
+            return;
+
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0
+        );
+        server.createContext("/metrics", this::serve);
+        server.setExecutor( Executors.newVirtualThreadPerTaskExecutor() );
+        server.start();
+
+        LOG.info("Serving metrics at http://localhost:{}/metrics", port);
+    }
+
+    public void shutdown()
+    {
+        if (server != null)
+            server.stop(0);
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Recording (any thread)">
+    /**
+     * @return Meter to give a lane along with a bridge task, so that its time spent waiting in the
+     *         lane and being handled is recorded. The same meter is shared by all such tasks.
+     */
+    public TaskLane.Meter meter(Direction direction, Event event)
+    {
+        return meters[ direction.ordinal() ][ event.ordinal() ];
+    }
+
+    /** Records a completed send, taking the given amount of nanoseconds */
+    public void recordSend(Direction direction, long nanos)
+    {
+        sent.incrementAndGet( direction.ordinal() );
+        sends[ direction.ordinal() ].record(nanos);
+    }
+
+    /**
+     * Records chat that made it across the bridge, now that it has been sent.
+     *
+     * @param received When the chat was received from the other side, in
+     *                 {@link System#nanoTime()} terms
+     */
+    public void recordBridged(Direction direction, long received)
+    {
+        trips[ direction.ordinal() ].record(System.nanoTime() - received);
+        rates[ direction.ordinal() ].mark();
+    }
+
+    /**
+     * Records a reconnect of the side the given direction heads towards, after being down for the
+     * given amount of nanoseconds.
+     */
+    public void recordReconnect(Direction direction, long nanos)
+    {
+        downtimes[ direction.ordinal() ].record(nanos);
+        LOG.info( "Reconnected after {} ms down", TimeUnit.NANOSECONDS.toMillis(nanos) );
+    }
+
+    /** Records a failed attempt at sending */
+    public void recordSendFailure(Direction direction)
+    {
+        failures.incrementAndGet( direction.ordinal() );
+    }
+
+    /** Records a bridge task dropped by an overloaded lane */
+    public void recordDropped(Direction direction)
+    {
+        dropped.incrementAndGet( direction.ordinal() );
+    }
+
+    /** Records how many dropped tasks were covered by a summary, once a lane caught up */
+    public void recordSummarized(Direction direction, int count)
+    {
+        summed.addAndGet( direction.ordinal(), count );
+    }
+
+    /** Records and logs the first time the given milestone is reached; later times are ignored */
+    public void recordMilestone(Milestone milestone)
+    {
+        long uptime = Math.max( 1, ManagementFactory.getRuntimeMXBean().getUptime() );
+
+        if ( milestones.compareAndSet(milestone.ordinal(), 0, uptime) )
+            LOG.info("[Startup] {} after {} ms", milestone.description, uptime);
+    }
+
+    /** Records the stages of one type of bridge task, as timed by its lane */
+    private static class TaskMeter implements TaskLane.Meter
+    {
+        final LatencyHistogram[] stages;
+
+        TaskMeter(LatencyHistogram[] stages)
+        {
+            this.stages = stages;
+        }
+
+        @Override
+        public void record(long waited, long took)
+        {
+            stages[ Stage.QUEUE.ordinal() ].record(waited);
+            stages[ Stage.PROCESS.ordinal() ].record(took);
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Reporting (JMX and HTTP threads)">
+    @Override
+    public int getDiscordLaneBacklog()
+    {
+        return BRIDGE.getBacklog(Direction.TO_DISCORD);
+    }
+
+    @Override
+    public int getIRCLaneBacklog()
+    {
+        return BRIDGE.getBacklog(Direction.TO_IRC);
+    }
+
+    @Override
+    public int getDiscordSendBacklog()
+    {
+        return DISCORD.getBacklog();
+    }
+
+    @Override
+    public int getIRCSendBacklog()
+    {
+        return IRC.getBacklog();
+    }
+
+    @Override
+    public long getDiscordSent()
+    {
+        return sent.get( Direction.TO_DISCORD.ordinal() );
+    }
+
+    @Override
+    public long getDiscordSendFailures()
+    {
+        return failures.get( Direction.TO_DISCORD.ordinal() );
+    }
+
+    @Override
+    public long getIRCSent()
+    {
+        return sent.get( Direction.TO_IRC.ordinal() );
+    }
+
+    @Override
+    public long getDiscordLaneDropped()
+    {
+        return dropped.get( Direction.TO_DISCORD.ordinal() );
+    }
+
+    @Override
+    public long getIRCLaneDropped()
+    {
+        return dropped.get( Direction.TO_IRC.ordinal() );
+    }
+
+    @Override
+    public double getDiscordBridgedPerSecond()
+    {
+        return rates[ Direction.TO_DISCORD.ordinal() ].getPerSecond();
+    }
+
+    @Override
+    public double getIRCBridgedPerSecond()
+    {
+        return rates[ Direction.TO_IRC.ordinal() ].getPerSecond();
+    }
+
+    @Override
+    public long getIRCReconnects()
+    {
+        return downtimes[ Direction.TO_IRC.ordinal() ].getCount();
+    }
+
+    @Override
+    public String getReport()
+    {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# TYPE jdiscordirc_backlog gauge\n");
+        gauge(out, "lane",  Direction.TO_DISCORD, getDiscordLaneBacklog());
+        gauge(out, "lane",  Direction.TO_IRC,     getIRCLaneBacklog());
+        gauge(out, "send",  Direction.TO_DISCORD, getDiscordSendBacklog());
+        gauge(out, "flood", Direction.TO_IRC,     getIRCSendBacklog());
+
+        out.append("# TYPE jdiscordirc_sent_total counter\n");
+        out.append("# TYPE jdiscordirc_send_failures_total counter\n");
+        out.append("# TYPE jdiscordirc_dropped_total counter\n");
+        out.append("# TYPE jdiscordirc_summarized_total counter\n");
+        out.append("# TYPE jdiscordirc_bridged_total counter\n");
+        out.append("# TYPE jdiscordirc_bridged_per_second gauge\n");
+        for (Direction direction : Direction.values())
+        {
+            String labels = "{direction=\"" + label(direction) + "\"}";
+
+            out.append("jdiscordirc_sent_total").append(labels).append(' ')
+                .append( sent.get( direction.ordinal() ) ).append('\n');
+            out.append("jdiscordirc_send_failures_total").append(labels).append(' ')
+                .append( failures.get( direction.ordinal() ) ).append('\n');
+            out.append("jdiscordirc_dropped_total").append(labels).append(' ')
+                .append( dropped.get( direction.ordinal() ) ).append('\n');
+            out.append("jdiscordirc_summarized_total").append(labels).append(' ')
+                .append( summed.get( direction.ordinal() ) ).append('\n');
+            out.append("jdiscordirc_bridged_total").append(labels).append(' ')
+                .append( trips[ direction.ordinal() ].getCount() ).append('\n');
+            out.append("jdiscordirc_bridged_per_second").append(labels).append(' ')
+                .append( String.format( Locale.ROOT, "%.3f",
+                    rates[ direction.ordinal() ].getPerSecond() ) ).append('\n');
+        }
+
+        // Virtual threads are not counted, only the platform threads carrying them and JDA's own
+        out.append("# TYPE jdiscordirc_platform_threads gauge\n");
+        out.append("jdiscordirc_platform_threads ")
+            .append( ManagementFactory.getThreadMXBean().getThreadCount() ).append('\n');
+
+        long resident = getResidentBytes();
+
+        if (resident >= 0)
+            out.append("# TYPE jdiscordirc_resident_bytes gauge\n")
+                .append("jdiscordirc_resident_bytes ").append(resident).append('\n');
+
+        out.append("# TYPE jdiscordirc_connection_state gauge\n");
+        connectionState( out, "discord", DISCORD.getState() );
+        connectionState( out, "irc", IRC.getState() );
+
+        out.append("# TYPE jdiscordirc_startup_seconds gauge\n");
+        for (Milestone milestone : Milestone.values())
+        {
+            long uptime = milestones.get( milestone.ordinal() );
+
+            if (uptime > 0)
+                out.append("jdiscordirc_startup_seconds{milestone=\"").append( label(milestone) )
+                    .append("\"} ").append( seconds( TimeUnit.MILLISECONDS.toNanos(uptime) ) )
+                    .append('\n');
+        }
+
+        out.append("# TYPE jdiscordirc_latency_seconds summary\n");
+        for (Direction direction : Direction.values())
+        {
+            for (Event event : Event.values())
+                for (Stage stage : Stage.values())
+                    summary(out,
+                        "direction=\"" + label(direction) + "\",event=\"" + label(event)
+                            + "\",stage=\"" + label(stage) + "\"",
+                        tasks[ direction.ordinal() ][ event.ordinal() ][ stage.ordinal() ]
+                    );
+
+            summary(out,
+                "direction=\"" + label(direction) + "\",event=\"any\",stage=\"send\"",
+                sends[ direction.ordinal() ]
+            );
+            summary(out,
+                "direction=\"" + label(direction) + "\",event=\"chat\",stage=\"end_to_end\"",
+                trips[ direction.ordinal() ]
+            );
+            summary(out,
+                "direction=\"" + label(direction) + "\",event=\"connection\",stage=\"downtime\"",
+                downtimes[ direction.ordinal() ]
+            );
+        }
+
+        return out.toString();
+    }
+
+    /** @return Resident set size of this process in bytes, or -1 if unknown (i.e. not on Linux) */
+    private static long getResidentBytes()
+    {
+        try
+        {
+            for ( String line : Files.readAllLines( Paths.get("/proc/self/status") ) )
+                if ( line.startsWith("VmRSS:") )
+                    return 1024 * Long.parseLong( line.replaceAll("[^0-9]", "") );
+        }
+        catch (IOException | NumberFormatException ignored)
+        {
+
+        }
+
+        return -1;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        byte[] body = getReport().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try ( OutputStream stream = exchange.getResponseBody() )
+        {
+            stream.write(body);
+        }
+    }
+
+    private static void gauge(StringBuilder out, String queue, Direction direction, int value)
+    {
+        out.append("jdiscordirc_backlog{queue=\"").append(queue)
+            .append("\",direction=\"").append( label(direction) ).append("\"} ")
+            .append(value).append('\n');
+    }
+
+    /** Appends a line for each state a side may be in, valued 1 for its current state, else 0 */
+    private static void connectionState(StringBuilder out, String side, State current)
+    {
+        for ( State state : State.values() )
+            out.append("jdiscordirc_connection_state{side=\"").append(side)
+                .append("\",state=\"").append( label(state) ).append("\"} ")
+                .append(state == current ? 1 : 0).append('\n');
+    }
+
+    /** Appends the given histogram as a summary, unless nothing was recorded into it */
+    private static void summary(StringBuilder out, String labels, LatencyHistogram histogram)
+    {
+        if (histogram.getCount() == 0)
+            return;
+
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999, 1.0})
+            out.append("jdiscordirc_latency_seconds{").append(labels)
+                .append(",quantile=\"").append(quantile).append("\"} ")
+                .append( seconds( histogram.getQuantile(quantile) ) ).append('\n');
+
+        out.append("jdiscordirc_latency_seconds_sum{").append(labels).append("} ")
+            .append( seconds( histogram.getSum() ) ).append('\n');
+        out.append("jdiscordirc_latency_seconds_count{").append(labels).append("} ")
+            .append( histogram.getCount() ).append('\n');
+    }
+
+    private static String seconds(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    private static String label(Enum<?> value)
+    {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+    //</editor-fold>
+}
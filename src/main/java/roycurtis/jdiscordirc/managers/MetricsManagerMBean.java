@@ -0,0 +1,41 @@
+package roycurtis.jdiscordirc.managers;
+
+/** Management interface of {@link MetricsManager}, as seen over JMX */
+public interface MetricsManagerMBean
+{
+    /** @return Bridge tasks waiting to be handled, towards Discord */
+    int getDiscordLaneBacklog();
+
+    /** @return Bridge tasks waiting to be handled, towards IRC */
+    int getIRCLaneBacklog();
+
+    /** @return Messages waiting to be sent to, or still in flight to, Discord */
+    int getDiscordSendBacklog();
+
+    /** @return Lines waiting for IRC flood control to allow sending them */
+    int getIRCSendBacklog();
+
+    long getDiscordSent();
+
+    long getDiscordSendFailures();
+
+    long getIRCSent();
+
+    /** @return Bridge tasks towards Discord dropped by overloaded lanes */
+    long getDiscordLaneDropped();
+
+    /** @return Bridge tasks towards IRC dropped by overloaded lanes */
+    long getIRCLaneDropped();
+
+    /** @return Chat sent to Discord per second, averaged over the last minute */
+    double getDiscordBridgedPerSecond();
+
+    /** @return Chat sent to IRC per second, averaged over the last minute */
+    double getIRCBridgedPerSecond();
+
+    /** @return How many times IRC has reconnected, after losing a registered connection */
+    long getIRCReconnects();
+
+    /** @return Every metric, in the same plain text format as the HTTP endpoint */
+    String getReport();
+}
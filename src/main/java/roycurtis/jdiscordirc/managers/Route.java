@@ -0,0 +1,75 @@
+package roycurtis.jdiscordirc.managers;
+
+import roycurtis.jdiscordirc.util.ChatCoalescer;
+import roycurtis.jdiscordirc.util.Outbox;
+import roycurtis.jdiscordirc.util.StormDetector;
+import roycurtis.jdiscordirc.util.TaskLane;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A bridged pair of one IRC channel and one Discord channel, along with the bridge's state for
+ * that pair. Every route belongs to one of the bridge's stripes, whose lanes handle all of its
+ * events; so events of one route stay in order, while different routes run in parallel.
+ */
+public class Route
+{
+    private final String ircChannel;
+    private final String discordChannel;
+
+    TaskLane      toDiscord;
+    TaskLane      toIRC;
+    /** IRC chat waiting to be merged into one Discord message; IRC->Discord lane only */
+    ChatCoalescer coalescer;
+    StormDetector storm;
+
+    /** Chat held while Discord is unavailable, or null if disabled; IRC->Discord lane only */
+    Outbox discordOutbox;
+    /** Chat held while IRC is unavailable, or null if disabled; Discord->IRC lane only */
+    Outbox ircOutbox;
+
+    /** Whether the IRC side has joined this route's channel; set by IRC events */
+    volatile boolean ircJoined;
+
+    /** Whether the bridge has yet to tell either side about connecting to the other */
+    final AtomicBoolean ircFirstTime     = new AtomicBoolean(true);
+    final AtomicBoolean discordFirstTime = new AtomicBoolean(true);
+
+    /** Whether a stalled replay of each outbox is waiting to be tried again */
+    final AtomicBoolean discordReplayWaiting = new AtomicBoolean();
+    final AtomicBoolean ircReplayWaiting     = new AtomicBoolean();
+
+    final AtomicReference<String> lastDiscordMessageSent = new AtomicReference<>();
+
+    Route(String ircChannel, String discordChannel)
+    {
+        this.ircChannel     = ircChannel;
+        this.discordChannel = discordChannel;
+    }
+
+    /** @return Name of this route's IRC channel, e.g. "#channel" */
+    public String getIRCChannel()
+    {
+        return ircChannel;
+    }
+
+    /** @return ID of this route's Discord text channel */
+    public String getDiscordChannel()
+    {
+        return discordChannel;
+    }
+
+    /** @return Key for looking up routes by IRC channel, as those names are case-insensitive */
+    static String ircKey(String channel)
+    {
+        return channel.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString()
+    {
+        return ircChannel + " <-> " + discordChannel;
+    }
+}
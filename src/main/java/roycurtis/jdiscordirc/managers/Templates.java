@@ -0,0 +1,92 @@
+package roycurtis.jdiscordirc.managers;
+
+import roycurtis.jdiscordirc.util.Template;
+
+import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
+
+/**
+ * Every message template the bridge formats lines with, along with its default pattern. Each can
+ * be overridden in the config file, as "template." followed by the template's key.
+ */
+public enum Templates
+{
+    // IRC->Discord
+    DISCORD_MESSAGE("discord.message", 2, "<**%s**> %s"),
+    DISCORD_ACTION("discord.action", 2, "_**%s** %s_"),
+    DISCORD_WEBHOOK_NAME("discord.webhookName", 1, "%s"),
+    DISCORD_WEBHOOK_ACTION("discord.webhookAction", 1, "_%s_"),
+    DISCORD_JOIN("discord.join", 1, "••• **%s** joined the channel"),
+    DISCORD_PART("discord.part", 2, "••• **%s** left the channel %s"),
+    DISCORD_QUIT("discord.quit", 2, "••• **%s** quit the server %s"),
+    DISCORD_KICK("discord.kick", 3, "••• **%s** was kicked by **%s** %s"),
+    DISCORD_NICK("discord.nick", 2, "••• **%s** changed nick to **%s**"),
+    DISCORD_REASON("discord.reason", 1, "(_%s_)"),
+    DISCORD_STORM("discord.storm", 1, "••• %s"),
+    DISCORD_LAST_SENT("discord.lastSent", 1, "••• Last message sent to IRC: \"%s\""),
+    DISCORD_TOO_LONG("discord.tooLong", 3,
+        "**%s**: Your message (starting '%s...') would take more than %s lines on IRC, even with"
+      + " its lines joined by \" | \" and wrapped to fit, and has not been sent to IRC. Please try"
+      + " to split your message up, or shorten it."),
+
+    // Discord->IRC
+    IRC_MESSAGE("irc.message", 2, "<%s> %s"),
+    IRC_ACTION("irc.action", 2, "%s %s"),
+    IRC_JOIN("irc.join", 1, "••• %s joined the server"),
+    IRC_QUIT("irc.quit", 1, "••• %s quit the server"),
+    IRC_NICK("irc.nick", 2, "••• %s changed nick to %s"),
+    IRC_SKIPPED("irc.skipped", 1, "••• %s more join/leave notice(s) skipped");
+
+    private final String key;
+    private final int    arity;
+    private final String pattern;
+
+    private volatile Template template;
+
+    Templates(String key, int arity, String pattern)
+    {
+        this.key      = key;
+        this.arity    = arity;
+        this.pattern  = pattern;
+        this.template = Template.parse(pattern);
+    }
+
+    /**
+     * Parses every template from the config file, falling back to defaults for missing ones. If any
+     * template is invalid, none are changed.
+     */
+    public static void load()
+    {
+        Template[] loaded = new Template[ values().length ];
+
+        for ( Templates value : values() )
+        {
+            String   prop = "template." + value.key;
+            Template parsed;
+
+            try
+            {
+                parsed = Template.parse( CONFIG.get(prop, value.pattern) );
+            }
+            catch (IllegalArgumentException ex)
+            {
+                throw new RuntimeException( "Invalid config: " + prop
+                    + " (" + ex.getMessage() + ")" );
+            }
+
+            if (parsed.getArity() > value.arity)
+                throw new RuntimeException("Invalid config: " + prop + " uses more than "
+                    + value.arity + " value(s)");
+
+            loaded[ value.ordinal() ] = parsed;
+        }
+
+        for ( Templates value : values() )
+            value.template = loaded[ value.ordinal() ];
+    }
+
+    /** @return This template rendered with the given arguments */
+    public String render(Object... args)
+    {
+        return template.render(args);
+    }
+}
@@ -0,0 +1,259 @@
+package roycurtis.jdiscordirc.managers;
+
+import net.dv8tion.jda.core.entities.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import roycurtis.jdiscordirc.util.FormatTranscoder;
+import roycurtis.jdiscordirc.util.LinePacker;
+import roycurtis.jdiscordirc.util.TaskLane;
+import roycurtis.jdiscordirc.util.Transcript;
+import roycurtis.jdiscordirc.util.Transcript.Line;
+
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
+import static roycurtis.jdiscordirc.JDiscordIRC.DISCORD;
+import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+
+/**
+ * Keeps a transcript of the chat bridged in every route, and answers "!history" commands from
+ * either side with lines from it. The transcript is only ever touched from its own lane, so chat
+ * is recorded without holding up the bridge, and each lookup sees everything recorded before it.
+ */
+public class TranscriptManager
+{
+    private static final Logger LOG = LoggerFactory.getLogger(TranscriptManager.class);
+
+    private static final String COMMAND = "!history";
+    private static final String USAGE   =
+        "Usage: !history [lines] | !history from <nick> [hours] | !history find <text>";
+
+    /** How many lines a lookup gives by default, and at most */
+    private static final int DEFAULT_LINES = 10;
+    private static final int MAX_LINES     = 25;
+    /** How many hours back searches by nick or text go by default */
+    private static final int DEFAULT_HOURS = 24;
+    /** How long shutting down waits for recording to finish, in milliseconds */
+    private static final int SHUTDOWN_WAIT = 5000;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm", Locale.ROOT);
+    private static final DateTimeFormatter DATE =
+        DateTimeFormatter.ofPattern("MMM d HH:mm", Locale.ROOT);
+
+    private Transcript transcript;
+    private TaskLane   lane;
+
+    //<editor-fold desc="Manager methods (main thread)">
+    public void init() throws Exception
+    {
+        String dir  = CONFIG.get("bridge.transcript", "transcript").trim();
+        int    days = CONFIG.getInt("bridge.transcriptDays", 30);
+
+        if ( dir.isEmpty() )
+        {
+            LOG.info("Transcript is disabled");
+            return;
+        }
+
+        transcript = new Transcript( Paths.get(dir), TimeUnit.DAYS.toMillis( Math.max(0, days) ) );
+        lane       = new TaskLane("Transcript");
+        lane.start();
+
+        LOG.info("Keeping a transcript of bridged chat in {}", dir);
+    }
+
+    /**
+     * Flushes the transcript on its own lane, after everything already queued there is recorded,
+     * then stops the lane. Gives up waiting after a while, rather than hold up shutting down.
+     */
+    public void shutdown()
+    {
+        if (lane == null)
+            return;
+
+        CountDownLatch flushed = new CountDownLatch(1);
+
+        lane.submit( () -> {
+            try
+            {
+                transcript.flush();
+            }
+            finally
+            {
+                flushed.countDown();
+            }
+        });
+
+        try
+        {
+            if ( !flushed.await(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS) )
+                LOG.warn("Gave up waiting for the transcript to be flushed");
+        }
+        catch (InterruptedException ex)
+        {
+            LOG.warn("Interrupted waiting for the transcript to be flushed");
+            Thread.currentThread().interrupt();
+        }
+
+        lane.stop();
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Recording and commands (bridge threads)">
+    /**
+     * Records a line of chat in the given route's transcript, in the background. Text is kept as
+     * Discord markdown, whichever side it came from.
+     */
+    public void record(Route route, boolean fromDiscord, boolean isAction, String nick, String text)
+    {
+        if (lane == null)
+            return;
+
+        long   time    = System.currentTimeMillis();
+        String channel = route.getIRCChannel();
+
+        lane.submit( () -> transcript.append(time, channel, fromDiscord, isAction, nick, text) );
+    }
+
+    /** @return True if the given chat is a history command, to be answered instead of bridged */
+    public boolean isCommand(String text)
+    {
+        if (lane == null || !text.startsWith(COMMAND) )
+            return false;
+
+        return text.length() == COMMAND.length()
+            || Character.isWhitespace( text.charAt( COMMAND.length() ) );
+    }
+
+    /**
+     * Looks up the lines asked for by a history command, and replies privately to whoever asked,
+     * so as not to flood the channel: by direct message on Discord, or by notice on IRC.
+     *
+     * @param user Discord user who sent the command, or null if it came from IRC
+     * @param nick Nick of whoever sent the command
+     */
+    public void onCommand(Route route, User user, String nick, String text)
+    {
+        String[] args    = text.trim().split("\\s+", 3);
+        String   channel = route.getIRCChannel();
+
+        lane.submit( () -> {
+            String     summary;
+            List<Line> lines;
+            long       now = System.currentTimeMillis();
+
+            if ( args.length == 1 || ( args.length == 2 && isNumber(args[1]) ) )
+            {
+                int count = args.length == 1
+                    ? DEFAULT_LINES
+                    : Math.min( MAX_LINES, Math.max( 1, Integer.parseInt(args[1]) ) );
+
+                lines   = transcript.last(channel, count);
+                summary = "Last " + lines.size() + " line(s)";
+            }
+            else if ( args[1].equalsIgnoreCase("from") && args.length == 3 )
+            {
+                String[] from  = args[2].split("\\s+");
+                int      hours = from.length > 1 && isNumber(from[1])
+                    ? Math.max( 1, Integer.parseInt(from[1]) )
+                    : DEFAULT_HOURS;
+
+                lines   = transcript.byNick( channel, from[0],
+                    now - TimeUnit.HOURS.toMillis(hours), MAX_LINES );
+                summary = lines.size() + " line(s) by " + from[0]
+                    + " in the last " + hours + " hour(s)";
+            }
+            else if ( args[1].equalsIgnoreCase("find") && args.length == 3 )
+            {
+                lines   = transcript.search( channel, args[2],
+                    now - TimeUnit.HOURS.toMillis(DEFAULT_HOURS), MAX_LINES );
+                summary = lines.size() + " line(s) containing \"" + args[2]
+                    + "\" in the last " + DEFAULT_HOURS + " hour(s)";
+            }
+            else
+            {
+                reply(user, nick, USAGE);
+                return;
+            }
+
+            LOG.debug("[Transcript] {} asked for {} in {}", nick, text, channel);
+
+            if (user != null)
+                replyToDiscord(user, channel, summary, lines);
+            else
+                replyToIRC(nick, summary, lines);
+        });
+    }
+
+    private void reply(User user, String nick, String text)
+    {
+        if (user != null)
+            DISCORD.sendPrivateMessage(user, "••• " + text);
+        else
+            IRC.sendNotice(nick, text);
+    }
+
+    /** Replies with all the lines in one message, which Discord splits if too long */
+    private void replyToDiscord(User user, String channel, String summary, List<Line> lines)
+    {
+        StringBuilder msg = new StringBuilder("••• ").append(summary)
+            .append(" in ").append(channel).append(':');
+
+        for (Line line : lines)
+        {
+            Templates template = line.isAction
+                ? Templates.DISCORD_ACTION
+                : Templates.DISCORD_MESSAGE;
+
+            msg.append("\n`").append( stamp(line.time) ).append("` ")
+                .append( template.render(line.nick, line.text) );
+        }
+
+        DISCORD.sendPrivateMessage( user, msg.toString() );
+    }
+
+    /** Replies with a notice per line, each packed to fit the server's line limit */
+    private void replyToIRC(String nick, String summary, List<Line> lines)
+    {
+        IRC.sendNotice(nick, summary + ":");
+
+        int budget = IRC.getLineBudget(nick, false);
+
+        for (Line line : lines)
+        {
+            String text = String.join( " | ", FormatTranscoder.toIRC(line.text).lines );
+            String full = line.isAction
+                ? "* " + Templates.IRC_ACTION.render(line.nick, text)
+                : Templates.IRC_MESSAGE.render(line.nick, text);
+
+            for ( String part : LinePacker.pack(
+                new String[] { "[" + stamp(line.time) + "] " + full }, budget, " | ") )
+                IRC.sendNotice(nick, part);
+        }
+    }
+
+    /** @return Time of day of the given time, with its date too unless it is today */
+    private static String stamp(long time)
+    {
+        ZonedDateTime when = Instant.ofEpochMilli(time).atZone( ZoneId.systemDefault() );
+
+        return when.toLocalDate().equals( LocalDate.now() )
+            ? TIME.format(when)
+            : DATE.format(when);
+    }
+
+    private static boolean isNumber(String text)
+    {
+        return text.length() <= 6 && text.chars().allMatch(Character::isDigit);
+    }
+    //</editor-fold>
+}
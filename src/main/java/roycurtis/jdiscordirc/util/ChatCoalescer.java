@@ -0,0 +1,107 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges consecutive chat lines that arrive within a short window into a single message, up to a
+ * given length. Lines are joined by newlines, so each keeps its own attribution. Lines may also
+ * have an author, when posted under their own name (e.g. by webhook); only lines of the same
+ * author are merged. Not thread-safe; each route's coalescer is only used from the IRC->Discord
+ * lane of the route's stripe.
+ */
+public class ChatCoalescer
+{
+    private final StringBuilder pending = new StringBuilder();
+    private final int           limit;
+
+    private String author;
+    private long   window;
+    private long   deadline;
+    private long   received;
+
+    /**
+     * @param windowMs How long to wait after the first pending line for more lines, or 0 to disable
+     * @param limit    Maximum length of a merged message
+     */
+    public ChatCoalescer(int windowMs, int limit)
+    {
+        this.limit  = limit;
+        this.window = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    /** Changes the window for lines added from now on; anything pending keeps its deadline */
+    public void setWindow(int windowMs)
+    {
+        this.window = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    public boolean isEnabled()
+    {
+        return window > 0;
+    }
+
+    public boolean isEmpty()
+    {
+        return pending.length() == 0;
+    }
+
+    /** @return Author of the pending lines, or null if they have none */
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    /** @return When the oldest pending line was received, as given to {@link #add} */
+    public long getReceived()
+    {
+        return received;
+    }
+
+    /**
+     * Adds a line to the pending message. If the line does not fit in what is pending, or is by
+     * another author, the pending message is returned so it can be sent first, and the line begins
+     * a new one.
+     *
+     * @param author   Who the line is posted as, or null if it carries its own attribution
+     * @param received When the line was received, in {@link System#nanoTime()} terms
+     * @return Previously pending message that had to be flushed, or null if none
+     */
+    public String add(String author, String line, long received)
+    {
+        String flushed = null;
+
+        if ( !isEmpty() && ( pending.length() + 1 + line.length() > limit
+            || !Objects.equals(this.author, author) ) )
+            flushed = flush();
+
+        if ( isEmpty() )
+        {
+            deadline      = System.nanoTime() + window;
+            this.author   = author;
+            this.received = received;
+        }
+        else
+            pending.append('\n');
+
+        pending.append(line);
+        return flushed;
+    }
+
+    /** @return All pending lines as one message, or null if nothing is pending */
+    public String flush()
+    {
+        if ( isEmpty() )
+            return null;
+
+        String msg = pending.toString();
+        pending.setLength(0);
+        return msg;
+    }
+
+    /** @return Nanoseconds left until the pending message should be sent; may be negative */
+    public long nanosUntilDeadline()
+    {
+        return deadline - System.nanoTime();
+    }
+}
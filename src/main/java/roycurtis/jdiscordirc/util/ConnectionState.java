@@ -0,0 +1,98 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State of the connection to one side of the bridge, moved atomically by that side's connection
+ * events. Checking whether a side is usable is a single volatile read, rather than a query of the
+ * underlying library's live state. Thread-safe.
+ */
+public class ConnectionState
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionState.class);
+
+    public enum State
+    {
+        /** Connecting, or reconnecting after losing connection */
+        CONNECTING,
+        /** Connected, and every bridged channel is usable */
+        JOINED,
+        /** Connected, but some bridged channels are not (yet) usable */
+        DEGRADED,
+        /** Not connected, and not trying to be */
+        DOWN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.DOWN);
+    private final String                 side;
+
+    /** @param side Name of the side, for logging */
+    public ConnectionState(String side)
+    {
+        this.side = side;
+    }
+
+    public State get()
+    {
+        return state.get();
+    }
+
+    /** @return True if connected, whether or not every bridged channel is usable */
+    public boolean isConnected()
+    {
+        State current = state.get();
+
+        return current == State.JOINED || current == State.DEGRADED;
+    }
+
+    /** Starts (or stops) connecting, whatever the current state; @return Previous state */
+    public State set(State next)
+    {
+        return changed( state.getAndSet(next) );
+    }
+
+    /**
+     * Marks the side as connected, with all or only some of its channels usable. Ignored if the
+     * side was stopped meanwhile, as events of an old connection may still arrive.
+     *
+     * @return Previous state
+     */
+    public State connected(boolean allChannels)
+    {
+        State next = allChannels
+            ? State.JOINED
+            : State.DEGRADED;
+
+        return changed( state.getAndUpdate( s -> s == State.DOWN ? s : next ) );
+    }
+
+    /**
+     * Marks the side as having lost connection, and reconnecting. Ignored if the side was stopped
+     * meanwhile.
+     *
+     * @return Previous state
+     */
+    public State lost()
+    {
+        return changed( state.getAndUpdate( s -> s == State.DOWN ? s : State.CONNECTING ) );
+    }
+
+    private State changed(State previous)
+    {
+        State current = state.get();
+
+        if (current != previous)
+            LOG.debug("{} is now {}, was {}", side, current, previous);
+
+        return previous;
+    }
+
+    @Override
+    public String toString()
+    {
+        return side + " " + state.get();
+    }
+}
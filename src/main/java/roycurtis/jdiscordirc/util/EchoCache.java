@@ -0,0 +1,184 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers fingerprints of recently bridged messages for a short window, so that the same
+ * message coming back (e.g. relayed by another bridge sharing the channels) can be recognized as
+ * an echo. A fingerprint is of the message's author and text, ignoring case, whitespace and
+ * formatting, so that a message reformatted by another relay still matches.
+ *
+ * Only chat tagged with the author's nick as relays do, such as "&lt;nick&gt; text" or, for
+ * actions, "* nick text", can be an echo; so can chat with a second tag inside the first, as sent
+ * by a relay that tags itself too. So a user repeating what was just bridged is never mistaken for
+ * an echo, unless they also tag it with the same author.
+ *
+ * Fingerprints live in a fixed table, probed linearly over a few slots; a new fingerprint takes an
+ * expired slot, or else the one closest to expiring. So recording and checking take constant time
+ * and the cache never grows, at the cost of forgetting early under heavy traffic.
+ *
+ * Thread-safe.
+ */
+public class EchoCache
+{
+    /** How many slots are searched, from where a fingerprint hashes to */
+    private static final int PROBES = 8;
+
+    /** Leading nick tag of a relayed message, "<nick>" or "[nick]", once normalized */
+    private static final Pattern NICK_TAG   =
+        Pattern.compile("^(?:<([^>]{1,64})>|\\[([^\\]]{1,64})]) ?");
+    /** Leading "* nick " of a relayed action, as IRC clients show them, before normalizing */
+    private static final Pattern ACTION_TAG = Pattern.compile("^\\s*\\*\\s+(\\S{1,64})\\s+");
+    /** Formatting of either side (markdown and its escapes, IRC codes), ignored when matching */
+    private static final Pattern FORMATTING = Pattern.compile("[*_~`|\\\\\\x00-\\x1F]+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final long[] fingerprints;
+    private final long[] expiries;
+    private final int    mask;
+    private final long   window;
+
+    /**
+     * @param capacity How many fingerprints may be remembered at once, rounded up to a power of two
+     * @param windowMs How long each fingerprint is remembered for
+     */
+    public EchoCache(int capacity, int windowMs)
+    {
+        int size = Integer.highestOneBit( Math.max(PROBES, capacity - 1) ) << 1;
+
+        this.fingerprints = new long[size];
+        this.expiries     = new long[size];
+        this.mask         = size - 1;
+        this.window       = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    /** Remembers the given message, by the given author, as just bridged */
+    public void record(String author, String text)
+    {
+        store( fingerprint(author, text) );
+    }
+
+    /**
+     * @param line Message as received, including any tags a relay added
+     * @return True if the given message is tagged with the author of a message bridged within the
+     *         window, and the rest matches that message
+     */
+    public boolean contains(String line)
+    {
+        Matcher action = ACTION_TAG.matcher(line);
+
+        if ( action.find() )
+            return find( fingerprint( action.group(1), line.substring( action.end() ) ) );
+
+        String  normal = normalize(line);
+        Matcher outer  = NICK_TAG.matcher(normal);
+
+        if ( !outer.find() )
+            return false;
+
+        String rest = normal.substring( outer.end() );
+
+        if ( find( fingerprint( tagged(outer), rest ) ) )
+            return true;
+
+        // The outer tag may be of a relay that tags itself, e.g. "<relay> <nick> text"
+        Matcher inner = NICK_TAG.matcher(rest);
+
+        return inner.find()
+            && find( fingerprint( tagged(inner), rest.substring( inner.end() ) ) );
+    }
+
+    private synchronized void store(long fingerprint)
+    {
+        long now    = System.nanoTime();
+        int  home   = slotOf(fingerprint);
+        int  victim = home;
+
+        for (int i = 0; i < PROBES; i++)
+        {
+            int     slot = (home + i) & mask;
+            boolean free = fingerprints[slot] == 0 || expiries[slot] - now <= 0;
+
+            if (free || fingerprints[slot] == fingerprint)
+            {
+                victim = slot;
+                break;
+            }
+
+            if (expiries[slot] - expiries[victim] < 0)
+                victim = slot;
+        }
+
+        fingerprints[victim] = fingerprint;
+        expiries[victim]     = now + window;
+    }
+
+    private synchronized boolean find(long fingerprint)
+    {
+        long now  = System.nanoTime();
+        int  home = slotOf(fingerprint);
+
+        for (int i = 0; i < PROBES; i++)
+        {
+            int slot = (home + i) & mask;
+
+            if ( fingerprints[slot] == fingerprint && expiries[slot] - now > 0 )
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return 64-bit FNV-1a hash of the given author and message once normalized; never 0 (an
+     *         empty slot)
+     */
+    static long fingerprint(String author, String text)
+    {
+        long hash = hash( 0xcbf29ce484222325L, normalize(author) );
+
+        // Separates the author from the text, so that "<a b> c" and "<a> b c" differ
+        hash ^= '\n';
+        hash *= 0x100000001b3L;
+        hash  = hash( hash, normalize(text) );
+
+        return hash == 0
+            ? 1
+            : hash;
+    }
+
+    private static long hash(long hash, String normal)
+    {
+        for (int i = 0; i < normal.length(); i++)
+        {
+            hash ^= normal.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /** @return Given text without formatting, in lower case and with whitespace collapsed */
+    private static String normalize(String text)
+    {
+        String normal = FORMATTING.matcher(text).replaceAll("");
+
+        return WHITESPACE.matcher(normal).replaceAll(" ").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** @return Nick of the given matched tag, whichever of its brackets it uses */
+    private static String tagged(Matcher tag)
+    {
+        return tag.group(1) != null
+            ? tag.group(1)
+            : tag.group(2);
+    }
+
+    private int slotOf(long fingerprint)
+    {
+        return (int) (fingerprint ^ fingerprint >>> 32) & mask;
+    }
+}
@@ -0,0 +1,185 @@
+package roycurtis.jdiscordirc.util;
+
+import com.vdurmont.emoji.Emoji;
+import com.vdurmont.emoji.EmojiManager;
+import com.vdurmont.emoji.Fitzpatrick;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Converts unicode emoji into their ":alias:" form, with the same output as emoji-java's
+ * {@code EmojiParser.parseToAliases}, but much cheaper. Text that is plain ASCII (the common case)
+ * is returned as-is after a single scan. Other text is matched against a code point trie built
+ * once from emoji-java's data, and only allocates when it actually contains emoji. Thread-safe.
+ */
+public class EmojiTranscoder
+{
+    private final Node    root = new Node();
+    private final boolean asciiFastPath;
+
+    public EmojiTranscoder()
+    {
+        boolean anyAscii = false;
+
+        for ( Emoji emoji : EmojiManager.getAll() )
+        {
+            String unicode = emoji.getUnicode();
+
+            root.insert(unicode, 0, emoji);
+            anyAscii |= isAscii(unicode);
+        }
+
+        // Only safe to skip ASCII text if no emoji is made of ASCII alone
+        asciiFastPath = !anyAscii;
+    }
+
+    /** @return Given text with all unicode emoji replaced with their first alias */
+    public String toAliases(String text)
+    {
+        if ( asciiFastPath && isAscii(text) )
+            return text;
+
+        StringBuilder out  = null;
+        int           last = 0;
+        int           i    = 0;
+
+        while ( i < text.length() )
+        {
+            // Find the longest emoji starting here
+            Node  node  = root;
+            Emoji found = null;
+            int   end   = i;
+
+            for (int j = i; j < text.length(); )
+            {
+                int cp = text.codePointAt(j);
+                node   = node.get(cp);
+                j     += Character.charCount(cp);
+
+                if (node == null)
+                    break;
+
+                if (node.emoji != null)
+                {
+                    found = node.emoji;
+                    end   = j;
+                }
+            }
+
+            if (found == null)
+            {
+                i += Character.charCount( text.codePointAt(i) );
+                continue;
+            }
+
+            if (out == null)
+                out = new StringBuilder(text.length() + 16);
+
+            out.append(text, last, i)
+                .append(':')
+                .append( found.getAliases().get(0) );
+
+            Fitzpatrick skin = found.supportsFitzpatrick()
+                ? getFitzpatrick(text, end)
+                : null;
+
+            if (skin != null)
+            {
+                out.append('|').append( skin.name().toLowerCase(Locale.ROOT) );
+                end += skin.unicode.length();
+            }
+
+            out.append(':');
+            i = last = end;
+        }
+
+        if (out == null)
+            return text;
+
+        return out.append(text, last, text.length()).toString();
+    }
+
+    private static Fitzpatrick getFitzpatrick(String text, int at)
+    {
+        for ( Fitzpatrick skin : Fitzpatrick.values() )
+            if ( text.startsWith(skin.unicode, at) )
+                return skin;
+
+        return null;
+    }
+
+    private static boolean isAscii(String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) >= 0x80)
+                return false;
+
+        return true;
+    }
+
+    /** Trie node, with its children as code points sorted for binary search */
+    private static class Node
+    {
+        int[]  keys     = new int[0];
+        Node[] children = new Node[0];
+        Emoji  emoji;
+
+        Node get(int cp)
+        {
+            int idx = Arrays.binarySearch(keys, cp);
+
+            return idx >= 0
+                ? children[idx]
+                : null;
+        }
+
+        void insert(String unicode, int at, Emoji value)
+        {
+            if ( at >= unicode.length() )
+            {
+                // Should two emoji share a sequence, keep the first one loaded
+                if (emoji == null)
+                    emoji = value;
+
+                return;
+            }
+
+            int  cp    = unicode.codePointAt(at);
+            int  idx   = Arrays.binarySearch(keys, cp);
+            Node child;
+
+            if (idx >= 0)
+                child = children[idx];
+            else
+            {
+                idx      = -idx - 1;
+                child    = new Node();
+                keys     = insertAt(keys, idx, cp);
+                children = insertAt(children, idx, child);
+            }
+
+            child.insert( unicode, at + Character.charCount(cp), value );
+        }
+
+        private static int[] insertAt(int[] array, int idx, int value)
+        {
+            int[] grown = new int[array.length + 1];
+
+            System.arraycopy(array, 0, grown, 0, idx);
+            System.arraycopy(array, idx, grown, idx + 1, array.length - idx);
+            grown[idx] = value;
+            return grown;
+        }
+
+        private static Node[] insertAt(Node[] array, int idx, Node value)
+        {
+            Node[] grown = new Node[array.length + 1];
+
+            System.arraycopy(array, 0, grown, 0, idx);
+            System.arraycopy(array, idx, grown, idx + 1, array.length - idx);
+            grown[idx] = value;
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * Schedules lines sent to an IRC server so that they never exceed the server's flood policy, as
+ * modelled by a token bucket. Lines are sent by priority, so chat always goes ahead of actions,
+ * join/leave notices and away changes that are waiting alongside it.
+ *
+ * When too many notices are waiting, further notices are skipped and counted per target instead;
+ * once the waiting notices are sent, a single summary line per target takes their place. Only the
+ * latest away change is ever kept.
+ *
+ * Submitting chat or actions blocks while too many of them are waiting, so that a flood of lines
+ * pushes back on whoever is feeding it, rather than piling up in memory.
+ *
+ * Lines are sent from a virtual thread, which gives up its carrier thread while waiting for work
+ * or for the flood policy to allow another line.
+ */
+public class FloodScheduler
+{
+    private static final Logger LOG = LoggerFactory.getLogger(FloodScheduler.class);
+
+    /** Classes of outgoing lines, from most to least important */
+    public enum Priority { CHAT, ACTION, NOTICE, AWAY }
+
+    private final ReentrantLock         lock    = new ReentrantLock();
+    private final Condition             hasRoom = lock.newCondition();
+    private final Condition             hasWork = lock.newCondition();
+    private final List<Deque<Runnable>> queues  = new ArrayList<>();
+    private final Map<String, Integer>  skipped = new LinkedHashMap<>();
+    private final TokenBucket           bucket;
+
+    private int noticeBacklog;
+    private int chatBacklog;
+
+    private final BiFunction<String, Integer, Runnable> summarizer;
+
+    private Thread thread;
+
+    /**
+     * @param bucket        Bucket that models the server's flood policy
+     * @param noticeBacklog How many notices may wait before further ones are skipped
+     * @param chatBacklog   How many chat lines and actions may wait before submitting blocks
+     * @param summarizer    Given a target and how many notices were skipped for it, creates the
+     *                      task that sends a summary line to that target
+     */
+    public FloodScheduler(TokenBucket bucket, int noticeBacklog, int chatBacklog,
+                          BiFunction<String, Integer, Runnable> summarizer)
+    {
+        this.bucket        = bucket;
+        this.summarizer    = summarizer;
+        this.noticeBacklog = Math.max(1, noticeBacklog);
+        this.chatBacklog   = Math.max(1, chatBacklog);
+
+        for ( Priority ignored : Priority.values() )
+            queues.add( new ArrayDeque<>() );
+    }
+
+    /** Changes how many lines may wait; lines already waiting beyond the new limits are kept */
+    public void setBacklogs(int noticeBacklog, int chatBacklog)
+    {
+        lock.lock();
+        try
+        {
+            this.noticeBacklog = Math.max(1, noticeBacklog);
+            this.chatBacklog   = Math.max(1, chatBacklog);
+            hasRoom.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void start()
+    {
+        thread = Thread.ofVirtual().name("IRC output").start(this::loop);
+    }
+
+    public void stop()
+    {
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Queues a line for sending. Notices are skipped if too many are already waiting.
+     *
+     * @param priority Priority class of the line
+     * @param target   Channel (or user) the line is sent to
+     * @param send     Task that actually sends the line
+     */
+    public void submit(Priority priority, String target, Runnable send)
+    {
+        submit(priority, target, send, true);
+    }
+
+    /**
+     * Queues a line for sending.
+     *
+     * @param priority  Priority class of the line
+     * @param target    Channel (or user) the line is sent to
+     * @param send      Task that actually sends the line
+     * @param skippable False if a notice must be sent even when too many are waiting (e.g. a reply
+     *                  a user asked for); it still counts towards those waiting
+     */
+    public void submit(Priority priority, String target, Runnable send, boolean skippable)
+    {
+        lock.lock();
+        try
+        {
+            Deque<Runnable> queue = queues.get( priority.ordinal() );
+
+            if (priority == Priority.NOTICE && skippable && queue.size() >= noticeBacklog)
+            {
+                skipped.merge(target, 1, Integer::sum);
+                return;
+            }
+
+            if (priority == Priority.AWAY)
+                queue.clear();
+
+            if (priority == Priority.CHAT || priority == Priority.ACTION) try
+            {
+                while (queues.get( Priority.CHAT.ordinal() ).size()
+                    + queues.get( Priority.ACTION.ordinal() ).size() >= chatBacklog)
+                    hasRoom.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            queue.addLast(send);
+            hasWork.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Drops everything waiting to be sent, e.g. after losing connection */
+    public void clear()
+    {
+        lock.lock();
+        try
+        {
+            for (Deque<Runnable> queue : queues)
+                queue.clear();
+
+            skipped.clear();
+            hasRoom.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** @return How many lines are waiting to be sent */
+    public int getBacklog()
+    {
+        lock.lock();
+        try
+        {
+            int backlog = 0;
+
+            for (Deque<Runnable> queue : queues)
+                backlog += queue.size();
+
+            return backlog;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void loop()
+    {
+        while ( !Thread.currentThread().isInterrupted() ) try
+        {
+            awaitWork();
+
+            // Line is picked before taking a token, so no token is spent if the lines were cleared
+            // meanwhile; a more important line queued while waiting for the token goes out next
+            Runnable send = next();
+
+            if (send == null)
+                continue;
+
+            bucket.acquire();
+            send.run();
+        }
+        catch (InterruptedException ex)
+        {
+            return;
+        }
+        catch (Exception ex)
+        {
+            LOG.error( "Exception while sending to IRC: {}", ex.getMessage() );
+        }
+    }
+
+    private void awaitWork() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while ( getBacklog() == 0 && skipped.isEmpty() )
+                hasWork.await();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private Runnable next()
+    {
+        lock.lock();
+        try
+        {
+            for (Priority priority : Priority.values())
+            {
+                Runnable send = queues.get( priority.ordinal() ).pollFirst();
+
+                if (send != null)
+                {
+                    hasRoom.signalAll();
+                    return send;
+                }
+
+                // Summaries of skipped notices go out only after the notices before them
+                if (priority == Priority.NOTICE && !skipped.isEmpty())
+                {
+                    Iterator<Map.Entry<String, Integer>> it    = skipped.entrySet().iterator();
+                    Map.Entry<String, Integer>           entry = it.next();
+                    it.remove();
+
+                    LOG.debug( "Skipped {} notice(s) for {}", entry.getValue(), entry.getKey() );
+                    return summarizer.apply( entry.getKey(), entry.getValue() );
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts formatting between IRC control codes and Discord markdown, in a single scan of the
+ * text each way. Both directions write into a buffer kept per thread, and only allocate for the
+ * strings they return. Thread-safe.
+ *
+ * IRC's codes toggle bold, italic, underline, strikethrough and monospace, which become the
+ * matching markdown; colors, reverse and other codes Discord cannot show are dropped. Literal
+ * markdown in IRC text is escaped, so it shows as typed. From Discord, markdown becomes IRC codes
+ * where IRC has an equivalent; code is passed through as-is, and markers left unclosed at the end
+ * of a line stay as typed.
+ */
+public class FormatTranscoder
+{
+    private static final char BOLD          = '\u0002';
+    private static final char COLOR         = '\u0003';
+    private static final char HEX_COLOR     = '\u0004';
+    private static final char RESET         = '\u000F';
+    private static final char MONOSPACE     = '\u0011';
+    private static final char REVERSE       = '\u0016';
+    private static final char ITALIC        = '\u001D';
+    private static final char STRIKETHROUGH = '\u001E';
+    private static final char UNDERLINE     = '\u001F';
+
+    /** Invisible, and keeps markdown markers either side of it from being read as one */
+    private static final char WORD_BREAK = '\u200B';
+
+    /** Buffers above this size are not kept, so one huge message does not pin its memory */
+    private static final int MAX_KEPT = 4096;
+
+    private static final ThreadLocal<StringBuilder> BUFFER =
+        ThreadLocal.withInitial( () -> new StringBuilder(512) );
+
+    /** A Discord message converted for IRC */
+    public static class IRCText
+    {
+        /** True if the message was an action (e.g. "_waves_"), with its markers removed */
+        public final boolean  isAction;
+        /** Lines of the message, with IRC formatting */
+        public final String[] lines;
+
+        IRCText(boolean isAction, String[] lines)
+        {
+            this.isAction = isAction;
+            this.lines    = lines;
+        }
+    }
+
+    //<editor-fold desc="IRC to Discord">
+    /** Styles IRC can toggle, with the markdown each becomes */
+    private enum Style
+    {
+        BOLD("**"), ITALIC("*"), UNDERLINE("__"), STRIKETHROUGH("~~"), MONOSPACE("`");
+
+        final String markdown;
+
+        Style(String markdown)
+        {
+            this.markdown = markdown;
+        }
+    }
+
+    /**
+     * Converts IRC text to Discord markdown. Markdown has to nest where IRC codes need not, so
+     * turning off a style that is not the innermost one closes and reopens those inside it; unless
+     * they were all turned on together, in which case their markers are reordered instead. Spaces
+     * are kept outside of markers, as Discord does not format text that starts or ends with one.
+     *
+     * @return Given text with its formatting as markdown, and literal markdown escaped
+     */
+    public static String toDiscord(String text)
+    {
+        StringBuilder out    = buffer();
+        Style[]       open   = new Style[ Style.values().length ];
+        int[]         starts = new int[open.length];
+        int           depth  = 0;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char  c     = text.charAt(i);
+            Style style = null;
+
+            switch (c)
+            {
+                case BOLD:          style = Style.BOLD;          break;
+                case ITALIC:        style = Style.ITALIC;        break;
+                case UNDERLINE:     style = Style.UNDERLINE;     break;
+                case STRIKETHROUGH: style = Style.STRIKETHROUGH; break;
+                case MONOSPACE:     style = Style.MONOSPACE;     break;
+                case COLOR:
+                    i = skipColor(text, i, 2, false);
+                    continue;
+                case HEX_COLOR:
+                    i = skipColor(text, i, 6, true);
+                    continue;
+                case RESET:
+                    while (depth > 0)
+                        close(out, open[--depth], starts[depth]);
+                    continue;
+            }
+
+            if (style != null)
+            {
+                depth = toggle(out, style, open, starts, depth);
+                continue;
+            }
+
+            // Reverse, and anything else that is not text, has no markdown equivalent
+            if (c < ' ' || c == REVERSE)
+                continue;
+
+            // Markdown is not parsed inside code, so nothing there needs escaping
+            if ( depth > 0 && open[depth - 1] == Style.MONOSPACE )
+            {
+                out.append(c == '`' ? '\'' : c);
+                continue;
+            }
+
+            // Links are left alone, as an escape would break them
+            int link = linkEnd(text, i);
+
+            if (link > i)
+            {
+                out.append(text, i, link);
+                i = link - 1;
+                continue;
+            }
+
+            if ( needsEscape(text, i) )
+                out.append('\\');
+
+            if ( Character.isWhitespace(c) )
+                appendSpace(out, c, open, starts, depth);
+            else
+                out.append(c);
+        }
+
+        while (depth > 0)
+            close(out, open[--depth], starts[depth]);
+
+        return take(out);
+    }
+
+    /** Turns the given style on if off, or off if on; @return New depth of open styles */
+    private static int toggle(StringBuilder out, Style style,
+                              Style[] open, int[] starts, int depth)
+    {
+        int at = depth - 1;
+
+        while (at >= 0 && open[at] != style)
+            at--;
+
+        if (at < 0)
+        {
+            starts[depth] = out.length();
+            out.append(style.markdown);
+            open[depth] = style;
+            return depth + 1;
+        }
+
+        // Styles turned on along with it need not be closed; it can be made the innermost instead
+        if ( isTogether(open, starts, at, depth) )
+        {
+            int marker = starts[at];
+
+            // Markers are rewritten in their new order, over the same span they took up
+            for (int i = at + 1; i < depth; i++)
+            {
+                open[i - 1]   = open[i];
+                starts[i - 1] = marker;
+                out.replace( marker, marker + open[i].markdown.length(), open[i].markdown );
+                marker += open[i].markdown.length();
+            }
+
+            open[depth - 1]   = style;
+            starts[depth - 1] = marker;
+            out.replace( marker, marker + style.markdown.length(), style.markdown );
+            close(out, style, marker);
+            return depth - 1;
+        }
+
+        // Close down to the style being turned off, then reopen those that were inside it
+        for (int i = depth - 1; i >= at; i--)
+            close(out, open[i], starts[i]);
+
+        for (int i = at + 1; i < depth; i++)
+        {
+            // Keeps a reopening marker from running into a closing one (e.g. "***" + "*")
+            if ( out.length() > 0
+                && out.charAt(out.length() - 1) == open[i].markdown.charAt(0) )
+                out.append(WORD_BREAK);
+
+            open[i - 1]   = open[i];
+            starts[i - 1] = out.length();
+            out.append(open[i].markdown);
+        }
+
+        return depth - 1;
+    }
+
+    /**
+     * @return True if the styles from the given index up were all turned on together, with nothing
+     *         between their markers; so they may be put in any order
+     */
+    private static boolean isTogether(Style[] open, int[] starts, int at, int depth)
+    {
+        for (int i = at; i < depth - 1; i++)
+            if (starts[i + 1] != starts[i] + open[i].markdown.length())
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Appends whitespace, putting it before the markers of any styles that wrap nothing yet, as
+     * Discord does not format text that starts with a space. Not done for code, which keeps it.
+     */
+    private static void appendSpace(StringBuilder out, char c, Style[] open, int[] starts,
+                                    int depth)
+    {
+        int first = depth;
+
+        while ( first > 0 && open[first - 1] != Style.MONOSPACE
+            && starts[first - 1] + open[first - 1].markdown.length()
+                == ( first == depth ? out.length() : starts[first] ) )
+            first--;
+
+        if (first == depth)
+        {
+            out.append(c);
+            return;
+        }
+
+        out.insert(starts[first], c);
+
+        for (int i = first; i < depth; i++)
+            starts[i]++;
+    }
+
+    /**
+     * Closes a style opened at the given index; one that wraps nothing is removed instead. Any
+     * whitespace it ends with is moved after its marker, as Discord does not format text that
+     * ends with a space; except in code, which keeps it.
+     */
+    private static void close(StringBuilder out, Style style, int start)
+    {
+        int content = start + style.markdown.length();
+
+        if (content == out.length())
+        {
+            out.setLength(start);
+            return;
+        }
+
+        int end = out.length();
+
+        if (style != Style.MONOSPACE)
+            while ( end > content && Character.isWhitespace( out.charAt(end - 1) ) )
+                end--;
+
+        if (end == content)
+        {
+            // Only whitespace was wrapped, so it is kept without the style
+            out.delete(start, content);
+            return;
+        }
+
+        String trailing = out.substring(end);
+
+        out.setLength(end);
+        out.append(style.markdown).append(trailing);
+    }
+
+    /**
+     * Skips a color code's colors (e.g. "^C04,12"), each of up to the given number of digits.
+     *
+     * @return Index of the code's last character
+     */
+    private static int skipColor(String text, int at, int digits, boolean hex)
+    {
+        int end = skipDigits(text, at + 1, digits, hex);
+
+        // Comma only belongs to the code if a background color follows it
+        if ( end > at + 1 && end < text.length() && text.charAt(end) == ',' )
+        {
+            int background = skipDigits(text, end + 1, digits, hex);
+
+            if (background > end + 1)
+                end = background;
+        }
+
+        return end - 1;
+    }
+
+    private static int skipDigits(String text, int from, int max, boolean hex)
+    {
+        int i = from;
+
+        while ( i < text.length() && i - from < max )
+        {
+            char c = text.charAt(i);
+
+            if ( (c >= '0' && c <= '9')
+                || ( hex && ( (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') ) ) )
+                i++;
+            else
+                break;
+        }
+
+        return i;
+    }
+
+    /** @return True if the character at the given index would be taken as markdown by Discord */
+    private static boolean needsEscape(String text, int i)
+    {
+        switch ( text.charAt(i) )
+        {
+            case '*': case '~': case '`': case '|': case '\\':
+                return true;
+
+            // Underscores only format at the edge of a word, so "snake_case" is left as it is
+            case '_':
+                return !isWordChar(text, i - 1) || !isWordChar(text, i + 1);
+
+            default:
+                return false;
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Discord to IRC">
+    /**
+     * Converts a Discord message to IRC, splitting it into lines as it goes. A message wholly
+     * wrapped in single underscores, as Discord's "/me" sends, is taken as an action.
+     */
+    public static IRCText toIRC(String text)
+    {
+        boolean isAction = text.length() > 2
+            && text.charAt(0) == '_' && text.charAt(1) != '_'
+            && text.charAt(text.length() - 1) == '_';
+        int     from     = isAction ? 1 : 0;
+        int     to       = isAction ? text.length() - 1 : text.length();
+
+        List<String>  lines = new ArrayList<>();
+        StringBuilder out   = buffer();
+        Markers       open  = new Markers();
+        String        code  = null;
+
+        for (int i = from; i < to; i++)
+        {
+            char c = text.charAt(i);
+
+            if (c == '\n')
+            {
+                lines.add( endLine(out, open) );
+                continue;
+            }
+
+            // Code is passed through as typed, fences included
+            if (c == '`')
+            {
+                String fence = text.startsWith("```", i) && i + 3 <= to
+                    ? "```"
+                    : "`";
+
+                if (code == null)
+                    code = fence;
+                else if ( code.equals(fence) )
+                    code = null;
+
+                out.append(fence);
+                i += fence.length() - 1;
+                continue;
+            }
+
+            if (code != null)
+            {
+                out.append(c);
+                continue;
+            }
+
+            int link = linkEnd(text, i);
+
+            if (link > i)
+            {
+                link = Math.min(link, to);
+                out.append(text, i, link);
+                i = link - 1;
+                continue;
+            }
+
+            if (c == '\\' && i + 1 < to && isMarkdown( text.charAt(i + 1) ))
+            {
+                out.append( text.charAt(++i) );
+                continue;
+            }
+
+            if ( i + 1 < to && text.charAt(i + 1) == c )
+            {
+                char pair = c == '*' ? BOLD
+                    : c == '_' ? UNDERLINE
+                    : c == '~' ? STRIKETHROUGH
+                    : 0;
+
+                if (pair != 0)
+                {
+                    open.toggle(out, pair, c);
+                    i++;
+                    continue;
+                }
+            }
+
+            if ( (c == '*' || c == '_') && isItalic(text, i, from, to, open.isOpen(c)) )
+            {
+                open.toggle(out, ITALIC, c);
+                continue;
+            }
+
+            out.append(c);
+        }
+
+        lines.add( endLine(out, open) );
+        release(out);
+        return new IRCText( isAction, lines.toArray( new String[0] ) );
+    }
+
+    /**
+     * @param closing True if the marker would close italics it opened, rather than open them
+     * @return True if the single "*" or "_" at the given index marks italics
+     */
+    private static boolean isItalic(String text, int i, int from, int to, boolean closing)
+    {
+        char    c      = text.charAt(i);
+        boolean before = i > from && !Character.isWhitespace( text.charAt(i - 1) );
+        boolean after  = i + 1 < to && !Character.isWhitespace( text.charAt(i + 1) );
+
+        if (c == '*')
+            return closing ? before : after;
+
+        // Underscores only format at the edge of a word
+        return closing
+            ? before && !( i + 1 < to && isWordChar(text, i + 1) )
+            : after && !( i > from && isWordChar(text, i - 1) );
+    }
+
+    /** @return The finished line, with markers left unclosed put back as they were typed */
+    private static String endLine(StringBuilder out, Markers open)
+    {
+        open.revert(out);
+        String line = out.toString();
+
+        out.setLength(0);
+        return line;
+    }
+
+    private static boolean isMarkdown(char c)
+    {
+        return c == '*' || c == '_' || c == '~' || c == '`' || c == '|' || c == '\\' || c == '>';
+    }
+
+    /**
+     * Markers opened so far on the current line, in the order opened. IRC codes are toggles that
+     * need not nest, so only unclosed markers have to be remembered, to put them back at the end.
+     */
+    private static class Markers
+    {
+        private final char[] codes     = new char[4];
+        private final char[] markers   = new char[4];
+        private final int[]  positions = new int[4];
+
+        private int count;
+
+        boolean isOpen(char marker)
+        {
+            for (int i = 0; i < count; i++)
+                if (codes[i] == ITALIC && markers[i] == marker)
+                    return true;
+
+            return false;
+        }
+
+        void toggle(StringBuilder out, char code, char marker)
+        {
+            for (int i = 0; i < count; i++)
+                if (codes[i] == code && markers[i] == marker)
+                {
+                    System.arraycopy(codes,     i + 1, codes,     i, count - i - 1);
+                    System.arraycopy(markers,   i + 1, markers,   i, count - i - 1);
+                    System.arraycopy(positions, i + 1, positions, i, count - i - 1);
+                    count--;
+                    out.append(code);
+                    return;
+                }
+
+            // Italics opened by "*" are not closed by "_", so treat those as typed
+            if (count == codes.length || ( code == ITALIC && isOpenOther(marker) ))
+            {
+                out.append( code == ITALIC ? "" + marker : "" + marker + marker );
+                return;
+            }
+
+            codes[count]     = code;
+            markers[count]   = marker;
+            positions[count] = out.length();
+            count++;
+            out.append(code);
+        }
+
+        private boolean isOpenOther(char marker)
+        {
+            for (int i = 0; i < count; i++)
+                if (codes[i] == ITALIC && markers[i] != marker)
+                    return true;
+
+            return false;
+        }
+
+        /** Puts unclosed markers back as typed, latest first so earlier positions hold */
+        void revert(StringBuilder out)
+        {
+            while (count > 0)
+            {
+                count--;
+
+                String typed = codes[count] == ITALIC
+                    ? "" + markers[count]
+                    : "" + markers[count] + markers[count];
+                int    at    = positions[count];
+
+                out.replace(at, at + 1, typed);
+            }
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Shared">
+    /**
+     * @return Index just past a link ("http://" or "https://" up to the next whitespace) starting
+     *         at the given index, or the index itself if no link starts there
+     */
+    private static int linkEnd(String text, int i)
+    {
+        char c = text.charAt(i);
+
+        if ( (c != 'h' && c != 'H') || isWordChar(text, i - 1) )
+            return i;
+
+        if ( !text.regionMatches(true, i, "http://", 0, 7)
+            && !text.regionMatches(true, i, "https://", 0, 8) )
+            return i;
+
+        int end = i;
+
+        while ( end < text.length() && !Character.isWhitespace( text.charAt(end) ) )
+            end++;
+
+        return end;
+    }
+
+    /** @return True if there is a letter or digit at the given index, which may be out of range */
+    private static boolean isWordChar(String text, int i)
+    {
+        return i >= 0 && i < text.length() && Character.isLetterOrDigit( text.charAt(i) );
+    }
+
+    private static StringBuilder buffer()
+    {
+        StringBuilder buffer = BUFFER.get();
+
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /** @return Contents of the given buffer, which is then released */
+    private static String take(StringBuilder buffer)
+    {
+        String text = buffer.toString();
+
+        release(buffer);
+        return text;
+    }
+
+    /** Drops this thread's buffer if it grew too big to keep */
+    private static void release(StringBuilder buffer)
+    {
+        if (buffer.capacity() > MAX_KEPT)
+            BUFFER.remove();
+    }
+    //</editor-fold>
+}
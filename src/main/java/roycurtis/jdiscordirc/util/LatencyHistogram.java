@@ -0,0 +1,104 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies (in nanoseconds) into fixed log-linear buckets, in the style of HdrHistogram:
+ * each power of two is split into 32 linear buckets, so any percentile read back is within about
+ * 3% of the true value. All buckets exist up front, so recording never allocates and never locks.
+ *
+ * Thread-safe. Reads taken while others record are approximate, but never torn.
+ */
+public class LatencyHistogram
+{
+    /** Bits of precision kept below a value's highest bit */
+    private static final int SUB_BITS  = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Values from 2^MAX_BITS nanoseconds (about 18 minutes) up are recorded as the highest */
+    private static final int  MAX_BITS  = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final AtomicLongArray counts =
+        new AtomicLongArray( (MAX_BITS - SUB_BITS + 1) * SUB_COUNT );
+
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum   = new AtomicLong();
+    private final AtomicLong max   = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        long value = Math.max( 0, Math.min(nanos, MAX_VALUE) );
+
+        counts.incrementAndGet( indexOf(value) );
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount()
+    {
+        return total.get();
+    }
+
+    public long getSum()
+    {
+        return sum.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param quantile Quantile to get, from 0 to 1 (e.g. 0.99 for the 99th percentile)
+     * @return Highest value in the bucket holding the given quantile, or 0 if nothing is recorded
+     */
+    public long getQuantile(double quantile)
+    {
+        long count = total.get();
+
+        if (count == 0)
+            return 0;
+
+        long target = Math.max( 1, (long) Math.ceil(quantile * count) );
+        long seen   = 0;
+
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+
+            if (seen >= target)
+                return Math.min( highestValueAt(i), max.get() );
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Values below 32 get a bucket each. Above that, the shift is how many low bits are dropped to
+     * leave the top six, which pick one of 32 buckets within the value's power of two.
+     */
+    private static int indexOf(long value)
+    {
+        if (value < SUB_COUNT)
+            return (int) value;
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+        int sub   = (int) (value >>> shift) - SUB_COUNT;
+
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    private static long highestValueAt(int index)
+    {
+        if (index < SUB_COUNT)
+            return index;
+
+        int shift = index / SUB_COUNT - 1;
+        int sub   = index % SUB_COUNT;
+
+        return ( (long) (sub + SUB_COUNT + 1) << shift ) - 1;
+    }
+}
@@ -0,0 +1,191 @@
+package roycurtis.jdiscordirc.util;
+
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Packs the lines of a message into as few lines as possible that each fit a budget of UTF-8
+ * bytes, as IRC limits lines by bytes rather than characters. Lines of the original message are
+ * joined by a separator. Lines are only broken where a line break is allowed (e.g. after a word),
+ * and words too long to fit are broken between user-perceived characters, so multibyte characters
+ * and combining marks never get split. Only spaces are trimmed from the ends of lines, never IRC
+ * formatting codes, even those Java counts as whitespace.
+ */
+public class LinePacker
+{
+    private final List<String>  packed = new ArrayList<>();
+    private final StringBuilder line   = new StringBuilder();
+    private final int           budget;
+    private final String        separator;
+
+    private int used;
+
+    private LinePacker(int budget, String separator)
+    {
+        this.budget    = Math.max(1, budget);
+        this.separator = separator;
+    }
+
+    /**
+     * @param lines     Lines of the message to pack
+     * @param budget    Most UTF-8 bytes of text each packed line may have
+     * @param separator Text to put between original lines that end up on the same packed line
+     * @return Packed lines, in order
+     */
+    public static List<String> pack(String[] lines, int budget, String separator)
+    {
+        LinePacker packer = new LinePacker(budget, separator);
+
+        for (String text : lines)
+            packer.addLine(text);
+
+        packer.flush();
+        return packer.packed;
+    }
+
+    /** @return Length of the given text once encoded as UTF-8, without encoding it */
+    public static int utf8Length(CharSequence text)
+    {
+        int length = 0;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if ( Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate( text.charAt(i + 1) ) )
+            {
+                length += 4;
+                i++;
+            }
+            else
+                length += 3;
+        }
+
+        return length;
+    }
+
+    private void addLine(String text)
+    {
+        if ( isBlank(text) )
+            return;
+
+        // Separator only goes between lines sharing a packed line; never at either end
+        if (used > 0)
+        {
+            if ( used + utf8Length(separator) <= budget )
+                append(separator);
+            else
+                flush();
+        }
+
+        BreakIterator words = BreakIterator.getLineInstance(Locale.ROOT);
+        words.setText(text);
+
+        for (int start = words.first(), end = words.next();
+             end != BreakIterator.DONE;
+             start = end, end = words.next())
+            addWord( text.substring(start, end) );
+    }
+
+    private void addWord(String word)
+    {
+        int length = utf8Length(word);
+
+        if (used + length <= budget)
+        {
+            append(word);
+            return;
+        }
+
+        flush();
+
+        // Words that start a new line lose their leading whitespace
+        word   = stripLeading(word);
+        length = utf8Length(word);
+
+        if (length <= budget)
+        {
+            append(word);
+            return;
+        }
+
+        BreakIterator chars = BreakIterator.getCharacterInstance(Locale.ROOT);
+        chars.setText(word);
+
+        for (int start = chars.first(), end = chars.next();
+             end != BreakIterator.DONE;
+             start = end, end = chars.next())
+        {
+            String character = word.substring(start, end);
+            int    size      = utf8Length(character);
+
+            if (used + size > budget)
+                flush();
+
+            // A single character bigger than the whole budget is sent as-is, on its own
+            append(character, size);
+        }
+    }
+
+    private void append(String text)
+    {
+        append( text, utf8Length(text) );
+    }
+
+    private void append(String text, int size)
+    {
+        line.append(text);
+        used += size;
+    }
+
+    /** Ends the current packed line, if it has anything but whitespace */
+    private void flush()
+    {
+        int start = 0;
+        int end   = line.length();
+
+        while ( start < end && isSpace( line.charAt(start) ) )
+            start++;
+
+        while ( end > start && isSpace( line.charAt(end - 1) ) )
+            end--;
+
+        if (start < end)
+            packed.add( line.substring(start, end) );
+
+        line.setLength(0);
+        used = 0;
+    }
+
+    private static String stripLeading(String text)
+    {
+        int i = 0;
+
+        while ( i < text.length() && isSpace( text.charAt(i) ) )
+            i++;
+
+        return text.substring(i);
+    }
+
+    /** @return True if the given text has nothing but spaces and formatting codes */
+    private static boolean isBlank(String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+            if ( text.charAt(i) > ' ' && !isSpace( text.charAt(i) ) )
+                return false;
+
+        return true;
+    }
+
+    private static boolean isSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\r' || Character.isSpaceChar(c);
+    }
+}
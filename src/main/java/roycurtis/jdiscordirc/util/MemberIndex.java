@@ -0,0 +1,181 @@
+package roycurtis.jdiscordirc.util;
+
+import net.dv8tion.jda.core.Permission;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.TextChannel;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of guild members by effective name, and of which members can read each bridged channel.
+ * Resolves a mention in constant time, instead of scanning every member of the guild and checking
+ * their permissions for every mention.
+ *
+ * The index is built once from JDA's cache, then kept up to date from member, role and permission
+ * events. Updates are expected from JDA's event thread, while lookups may come from any thread.
+ */
+public class MemberIndex
+{
+    /** Guild ID -> lower-cased effective name -> members with that name */
+    private final Map<String, Map<String, Set<Member>>> names   = new ConcurrentHashMap<>();
+    /** Channel ID -> members that can read that channel */
+    private final Map<String, Set<Member>>              readers = new ConcurrentHashMap<>();
+    /** Member -> name it is currently indexed under */
+    private final Map<Member, String>                   indexed = new ConcurrentHashMap<>();
+
+    /** Throws away the whole index, and rebuilds it for the given channels and their guilds */
+    public synchronized void rebuild(Collection<TextChannel> channels)
+    {
+        names.clear();
+        readers.clear();
+        indexed.clear();
+
+        for (TextChannel channel : channels)
+        {
+            Guild guild = channel.getGuild();
+
+            if ( !names.containsKey( guild.getId() ) )
+            {
+                names.put( guild.getId(), new ConcurrentHashMap<>() );
+                guild.getMembers().forEach(this::addName);
+            }
+
+            readers.put( channel.getId(), ConcurrentHashMap.newKeySet() );
+            updateAccess(channel);
+        }
+    }
+
+    /**
+     * Finds the only member with the given effective name (ignoring case) that can read the given
+     * channel.
+     *
+     * @return Matching member, or null if none or more than one member has that name
+     */
+    public Member resolve(TextChannel channel, String name)
+    {
+        Map<String, Set<Member>> guildNames = names.get( channel.getGuild().getId() );
+        Set<Member>              readable   = readers.get( channel.getId() );
+
+        if (guildNames == null || readable == null)
+            return null;
+
+        Set<Member> matches = guildNames.get( key(name) );
+
+        if (matches == null || matches.size() != 1)
+            return null;
+
+        for (Member member : matches)
+            if ( readable.contains(member) )
+                return member;
+
+        return null;
+    }
+
+    /** Indexes a member that joined a guild */
+    public synchronized void addMember(Member member)
+    {
+        if ( !names.containsKey( member.getGuild().getId() ) )
+            return;
+
+        addName(member);
+        updateAccess(member);
+    }
+
+    /** Removes a member that left a guild from the index */
+    public synchronized void removeMember(Member member)
+    {
+        removeName(member);
+
+        for ( Set<Member> readable : readers.values() )
+            readable.remove(member);
+    }
+
+    /** Re-indexes a member whose effective name may have changed (e.g. nick or username) */
+    public synchronized void updateName(Member member)
+    {
+        if ( !names.containsKey( member.getGuild().getId() ) )
+            return;
+
+        removeName(member);
+        addName(member);
+    }
+
+    /** Re-checks which indexed channels a member can read, e.g. after its roles changed */
+    public synchronized void updateAccess(Member member)
+    {
+        for ( TextChannel channel : member.getGuild().getTextChannels() )
+        {
+            Set<Member> readable = readers.get( channel.getId() );
+
+            if (readable == null)
+                continue;
+
+            if ( member.hasPermission(channel, Permission.MESSAGE_READ) )
+                readable.add(member);
+            else
+                readable.remove(member);
+        }
+    }
+
+    /** Re-checks which members can read a channel, e.g. after its permission overrides changed */
+    public synchronized void updateAccess(TextChannel channel)
+    {
+        Set<Member> readable = readers.get( channel.getId() );
+
+        if (readable == null)
+            return;
+
+        for ( Member member : channel.getGuild().getMembers() )
+            if ( member.hasPermission(channel, Permission.MESSAGE_READ) )
+                readable.add(member);
+            else
+                readable.remove(member);
+    }
+
+    /** Re-checks all indexed channels of a guild, e.g. after a role's permissions changed */
+    public synchronized void updateAccess(Guild guild)
+    {
+        for ( TextChannel channel : guild.getTextChannels() )
+            updateAccess(channel);
+    }
+
+    private void addName(Member member)
+    {
+        String name = key( member.getEffectiveName() );
+
+        names.get( member.getGuild().getId() )
+            .computeIfAbsent( name, k -> ConcurrentHashMap.newKeySet() )
+            .add(member);
+
+        indexed.put(member, name);
+    }
+
+    private void removeName(Member member)
+    {
+        String                   name       = indexed.remove(member);
+        Map<String, Set<Member>> guildNames = names.get( member.getGuild().getId() );
+
+        if (name == null || guildNames == null)
+            return;
+
+        Set<Member> matches = guildNames.get(name);
+
+        if (matches == null)
+            return;
+
+        matches.remove(member);
+
+        if ( matches.isEmpty() )
+            guildNames.remove(name);
+    }
+
+    private static String key(String name)
+    {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,279 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Sends messages asynchronously to one destination, allowing several to be in flight at once.
+ * Messages are handed to the transport strictly in the order they were submitted, so a transport
+ * that processes requests in order (such as JDA's per-channel rate limit bucket) delivers them in
+ * order too. Failed messages are retried ahead of anything not yet sent; a retried message can only
+ * land behind those that were already in flight alongside it.
+ *
+ * Submitting blocks while too many messages are waiting, so that a stalled destination pushes
+ * back on whoever is feeding it, rather than piling up messages in memory. Waiting parks on a lock
+ * rather than a monitor, so a virtual thread that waits frees its carrier thread.
+ *
+ * Thread-safe; callbacks may come from any thread. The transport and listener are never called
+ * with the sender's lock held.
+ */
+public class OrderedSender
+{
+    /** Asynchronously sends one message, calling exactly one of the given callbacks when done */
+    public interface Transport
+    {
+        void send(String msg, Runnable onSuccess, Consumer<Throwable> onFailure);
+    }
+
+    /** Notified of every failed send, from whichever thread reported the failure */
+    public interface FailureListener
+    {
+        void onSendFailed(String msg, Throwable cause, boolean retrying);
+    }
+
+    private final ReentrantLock   lock    = new ReentrantLock();
+    private final Condition       hasRoom = lock.newCondition();
+    private final Deque<Entry>    pending = new ArrayDeque<>();
+    private final Transport       transport;
+    private final FailureListener listener;
+
+    private int     maxInFlight;
+    private int     maxRetries;
+    private int     maxPending;
+    private int     inFlight;
+    /** Whether a thread is handing messages to the transport */
+    private boolean dispatching;
+
+    /**
+     * @param maxInFlight How many messages may be in flight at once
+     * @param maxRetries  How many times a failed message is retried
+     * @param maxPending  How many messages may wait to be sent, before submitting blocks
+     */
+    public OrderedSender(Transport transport, FailureListener listener,
+                         int maxInFlight, int maxRetries, int maxPending)
+    {
+        this.transport   = transport;
+        this.listener    = listener;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxRetries  = Math.max(0, maxRetries);
+        this.maxPending  = Math.max(1, maxPending);
+    }
+
+    /**
+     * Changes the limits of this sender, for messages sent from now on. Messages already in flight
+     * are left to complete, even if more are in flight than the new limit allows.
+     */
+    public void setLimits(int maxInFlight, int maxRetries, int maxPending)
+    {
+        lock.lock();
+        try
+        {
+            this.maxInFlight = Math.max(1, maxInFlight);
+            this.maxRetries  = Math.max(0, maxRetries);
+            this.maxPending  = Math.max(1, maxPending);
+
+            hasRoom.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        dispatch();
+    }
+
+    public void submit(String msg)
+    {
+        submit(msg, null);
+    }
+
+    /**
+     * Queues the given message for sending, and returns without waiting for it to be sent. If too
+     * many messages are already waiting, first blocks until there is room (or until interrupted).
+     *
+     * @param onSent Called once the message is sent, or null if none
+     */
+    public void submit(String msg, Runnable onSent)
+    {
+        lock.lock();
+        try
+        {
+            try
+            {
+                while (pending.size() >= maxPending)
+                    hasRoom.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            pending.addLast( new Entry(msg, onSent) );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        dispatch();
+    }
+
+    /** @return How many messages are either waiting to be sent or still in flight */
+    public int getBacklog()
+    {
+        lock.lock();
+        try
+        {
+            return pending.size() + inFlight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands waiting messages to the transport, while there is room in flight. Only one thread
+     * dispatches at a time, so messages reach the transport in order; others just leave their
+     * messages for it. The transport and callbacks are called without the lock held, so they may
+     * take their time, or call back into this sender, without holding up submitters.
+     */
+    private void dispatch()
+    {
+        lock.lock();
+        try
+        {
+            if (dispatching)
+                return;
+
+            dispatching = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        Entry entry = null;
+
+        try
+        {
+            while ( (entry = next()) != null )
+            {
+                Entry sending = entry;
+
+                try
+                {
+                    transport.send( sending.msg, () -> onSuccess(sending),
+                        ex -> onFailure(sending, ex) );
+                }
+                catch (Exception ex)
+                {
+                    onFailure(sending, ex);
+                }
+            }
+        }
+        finally
+        {
+            // Only still set if the transport threw an error, rather than an exception
+            if (entry != null)
+                stopDispatching();
+        }
+    }
+
+    /** @return Next message to send, counted as in flight; or null once none may be sent */
+    private Entry next()
+    {
+        lock.lock();
+        try
+        {
+            if ( inFlight >= maxInFlight || pending.isEmpty() )
+            {
+                dispatching = false;
+                return null;
+            }
+
+            inFlight++;
+            hasRoom.signalAll();
+            return pending.pollFirst();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void stopDispatching()
+    {
+        lock.lock();
+        try
+        {
+            dispatching = false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess(Entry entry)
+    {
+        if (entry.onSent != null)
+            entry.onSent.run();
+
+        lock.lock();
+        try
+        {
+            inFlight--;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        dispatch();
+    }
+
+    private void onFailure(Entry entry, Throwable cause)
+    {
+        boolean retrying;
+
+        lock.lock();
+        try
+        {
+            retrying = entry.attempts++ < maxRetries;
+            inFlight--;
+
+            if (retrying)
+                pending.addFirst(entry);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            listener.onSendFailed(entry.msg, cause, retrying);
+        }
+        finally
+        {
+            dispatch();
+        }
+    }
+
+    private static class Entry
+    {
+        final String   msg;
+        final Runnable onSent;
+        int            attempts;
+
+        Entry(String msg, Runnable onSent)
+        {
+            this.msg    = msg;
+            this.onSent = onSent;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Persistent queue of messages that could not be sent, kept in a directory of memory-mapped segment
+ * files so that it survives restarts. Appending is a copy into mapped memory, with no system call
+ * or forced write; the OS writes pages back in its own time. This means messages survive the
+ * process dying, but not the machine losing power.
+ *
+ * Each record is written as its length, the time it was appended and its UTF-8 bytes. The length
+ * is written last, so a record cut short by a crash reads as the end of the segment. A separate
+ * mapped cursor file remembers where delivery is up to: a replayed message only counts as delivered
+ * once it is known to be sent, so that messages lost in flight are replayed again. Segments that
+ * are fully delivered are deleted, as are the oldest segments once the outbox outgrows its size
+ * cap.
+ *
+ * Not thread-safe; meant to be used only from the bridge lane of the outbox's route.
+ */
+public class Outbox
+{
+    private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+
+    /** Size of each segment file */
+    private static final int SEGMENT_SIZE = 1 << 20;
+    /** Size of each record's length and timestamp */
+    private static final int HEADER_SIZE  = Integer.BYTES + Long.BYTES;
+    /** Size of the cursor file; a segment ID and an offset into it */
+    private static final int CURSOR_SIZE  = Long.BYTES + Integer.BYTES;
+
+    private static final String SUFFIX = ".seg";
+
+    /** Sends on a replayed message */
+    public interface Delivery
+    {
+        /**
+         * @param onSent To be run on the outbox's thread once the message is sent, which marks it
+         *               (and any skipped before it) as delivered
+         * @return True if the message was accepted for sending, or false to stop replay and keep it
+         *         for later
+         */
+        boolean deliver(String msg, Runnable onSent);
+    }
+
+    private final Deque<Long> segments = new ArrayDeque<>();
+    private final Path        dir;
+    private final int         maxSegments;
+    private final long        maxAge;
+
+    private MappedByteBuffer writer;
+    /** Where delivery is up to; kept on disk */
+    private MappedByteBuffer cursor;
+
+    /** Where replay is up to, in memory; ahead of the cursor by any messages still in flight */
+    private long readSegment;
+    private int  readOffset;
+
+    /**
+     * @param dir      Directory to keep this outbox's files in; created if missing
+     * @param maxBytes Rough cap on the total size of segments kept, rounded up to whole segments
+     * @param maxAgeMs How old a message may get before it is skipped on replay
+     */
+    public Outbox(Path dir, long maxBytes, long maxAgeMs) throws IOException
+    {
+        this.dir         = dir;
+        this.maxSegments = (int) Math.max(1, (maxBytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.maxAge      = maxAgeMs;
+
+        Files.createDirectories(dir);
+
+        List<Long> found = new ArrayList<>();
+
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX) )
+        {
+            for (Path file : stream)
+            {
+                String name = file.getFileName().toString();
+                found.add( Long.parseLong( name.substring(0, name.length() - SUFFIX.length()) ) );
+            }
+        }
+
+        found.sort(null);
+        segments.addAll(found);
+
+        if ( segments.isEmpty() )
+            segments.add(1L);
+
+        writer = map( segments.getLast() );
+        writer.position( endOf(writer) );
+
+        try ( FileChannel channel = FileChannel.open( dir.resolve("cursor"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) )
+        {
+            cursor = channel.map(FileChannel.MapMode.READ_WRITE, 0, CURSOR_SIZE);
+        }
+
+        // A cursor into a segment that no longer exists (or a new cursor) starts at the oldest
+        if ( cursorSegment() < segments.getFirst() || cursorSegment() > segments.getLast() )
+            setCursor(segments.getFirst(), 0);
+
+        readSegment = cursorSegment();
+        readOffset  = cursorOffset();
+    }
+
+    /** @return True if nothing is waiting to be replayed, though some may still be in flight */
+    public boolean isEmpty()
+    {
+        return readSegment == segments.getLast() && readOffset >= writer.position();
+    }
+
+    /**
+     * Makes the next replay start over from the oldest message not yet delivered, e.g. after
+     * reconnecting, as messages that were in flight may have been lost.
+     */
+    public void rewind()
+    {
+        readSegment = cursorSegment();
+        readOffset  = cursorOffset();
+    }
+
+    /** Adds a message to the end of the outbox, dropping the oldest segment if over the cap */
+    public void append(String msg)
+    {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        int    size  = HEADER_SIZE + bytes.length;
+
+        if (size > SEGMENT_SIZE)
+        {
+            LOG.warn("[Outbox] Skipping message too big to keep: {}", msg);
+            return;
+        }
+
+        try
+        {
+            if (writer.remaining() < size)
+                roll();
+        }
+        catch (IOException ex)
+        {
+            LOG.error( "[Outbox] Could not start a new segment in {}: {}", dir, ex.getMessage() );
+            return;
+        }
+
+        int start = writer.position();
+
+        writer.putLong( start + Integer.BYTES, System.currentTimeMillis() );
+        writer.position(start + HEADER_SIZE);
+        writer.put(bytes);
+        writer.putInt(start, bytes.length);
+    }
+
+    /**
+     * Hands every waiting message to the given delivery in order, until it refuses one. Messages
+     * older than the age cap are skipped. A refused message is the first handed over next time.
+     *
+     * @return How many messages were accepted for sending
+     */
+    public int replay(Delivery delivery)
+    {
+        long       oldest   = System.currentTimeMillis() - maxAge;
+        int        accepted = 0;
+        int        expired  = 0;
+        long       mapped   = -1;
+        ByteBuffer buffer   = null;
+
+        while ( !isEmpty() )
+        {
+            long id = readSegment;
+
+            if (id != mapped)
+            {
+                mapped = id;
+                buffer = id == segments.getLast()
+                    ? writer.duplicate()
+                    : mapQuietly(id);
+            }
+
+            int offset = readOffset;
+            int length = buffer == null || offset + HEADER_SIZE > buffer.limit()
+                ? 0
+                : buffer.getInt(offset);
+
+            // End of an older segment; carry on from the start of the next
+            if (length <= 0)
+            {
+                long next = nextSegment(id);
+
+                if ( isDeliveredTo(id, offset) )
+                    setCursor(next, 0);
+
+                readSegment = next;
+                readOffset  = 0;
+                compact();
+                continue;
+            }
+
+            long   written = buffer.getLong(offset + Integer.BYTES);
+            int    end     = offset + HEADER_SIZE + length;
+            byte[] bytes   = new byte[length];
+
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(bytes);
+
+            if (written < oldest)
+            {
+                // Skipped at once, unless waiting on messages before it
+                if ( isDeliveredTo(id, offset) )
+                    setCursor(id, end);
+
+                expired++;
+            }
+            else if ( delivery.deliver( new String(bytes, StandardCharsets.UTF_8),
+                () -> delivered(id, end) ) )
+                accepted++;
+            else
+                break;
+
+            readOffset = end;
+        }
+
+        if (expired > 0)
+            LOG.info("[Outbox] Skipped {} message(s) too old to send, from {}", expired, dir);
+
+        compact();
+        return accepted;
+    }
+
+    /** Forces all appended messages and replay progress to disk */
+    public void flush()
+    {
+        writer.force();
+        cursor.force();
+    }
+
+    /** Moves the cursor past a message now sent, unless it is already past it */
+    private void delivered(long segment, int end)
+    {
+        if ( segment > cursorSegment() || (segment == cursorSegment() && end > cursorOffset()) )
+        {
+            setCursor(segment, end);
+            compact();
+        }
+    }
+
+    /** @return True if everything before the given position is delivered */
+    private boolean isDeliveredTo(long segment, int offset)
+    {
+        return cursorSegment() == segment && cursorOffset() == offset;
+    }
+
+    /** Starts a new segment, dropping the oldest if that puts the outbox over its cap */
+    private void roll() throws IOException
+    {
+        long id = segments.getLast() + 1;
+
+        writer.force();
+        writer = map(id);
+        segments.addLast(id);
+
+        while (segments.size() > maxSegments)
+        {
+            long dropped = segments.removeFirst();
+
+            LOG.warn("[Outbox] {} is full; dropping its oldest messages", dir);
+            Files.deleteIfExists( segmentPath(dropped) );
+
+            if (cursorSegment() <= dropped)
+                setCursor(segments.getFirst(), 0);
+
+            if (readSegment <= dropped)
+            {
+                readSegment = segments.getFirst();
+                readOffset  = 0;
+            }
+        }
+    }
+
+    /** Deletes segments that have been replayed in full */
+    private void compact()
+    {
+        while ( segments.getFirst() < cursorSegment() )
+        {
+            long id = segments.removeFirst();
+
+            try
+            {
+                Files.deleteIfExists( segmentPath(id) );
+            }
+            catch (IOException ex)
+            {
+                LOG.warn( "[Outbox] Could not delete replayed segment {} of {}: {}",
+                    id, dir, ex.getMessage()
+                );
+            }
+        }
+    }
+
+    private MappedByteBuffer map(long id) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( segmentPath(id),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) )
+        {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    /** @return Given older segment mapped for reading, or null if it could not be (e.g. deleted) */
+    private ByteBuffer mapQuietly(long id)
+    {
+        try ( FileChannel channel = FileChannel.open( segmentPath(id), StandardOpenOption.READ ) )
+        {
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch (IOException ex)
+        {
+            LOG.warn( "[Outbox] Could not read segment {} of {}: {}", id, dir, ex.getMessage() );
+            return null;
+        }
+    }
+
+    /** @return ID of the segment that follows the given one */
+    private long nextSegment(long id)
+    {
+        for (long next : segments)
+            if (next > id)
+                return next;
+
+        return segments.getLast();
+    }
+
+    private Path segmentPath(long id)
+    {
+        return dir.resolve( String.format("%016d%s", id, SUFFIX) );
+    }
+
+    /** @return Offset just past the last complete record in the given segment */
+    private static int endOf(ByteBuffer buffer)
+    {
+        int offset = 0;
+
+        while (offset + HEADER_SIZE <= buffer.limit())
+        {
+            int length = buffer.getInt(offset);
+
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.limit())
+                break;
+
+            offset += HEADER_SIZE + length;
+        }
+
+        return offset;
+    }
+
+    private long cursorSegment()
+    {
+        return cursor.getLong(0);
+    }
+
+    private int cursorOffset()
+    {
+        return cursor.getInt(Long.BYTES);
+    }
+
+    private void setCursor(long segment, int offset)
+    {
+        cursor.putLong(0, segment);
+        cursor.putInt(Long.BYTES, offset);
+    }
+}
@@ -0,0 +1,68 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts events over a sliding window of whole seconds, kept in a ring with one slot per second.
+ * Each slot remembers which second it counts, so slots left over from an earlier lap of the ring
+ * are reset as they are reused, and ignored when read. Thread-safe.
+ */
+public class RateMeter
+{
+    private final long[] counts;
+    private final long[] seconds;
+    private final long   created = second();
+
+    /** @param windowSeconds How many of the latest whole seconds the rate is averaged over */
+    public RateMeter(int windowSeconds)
+    {
+        int size = Math.max(1, windowSeconds) + 1;
+
+        counts  = new long[size];
+        seconds = new long[size];
+
+        // No slot has counted any second yet
+        Arrays.fill(seconds, Long.MIN_VALUE);
+    }
+
+    public synchronized void mark()
+    {
+        long now  = second();
+        int  slot = Math.floorMod(now, counts.length);
+
+        if (seconds[slot] != now)
+        {
+            seconds[slot] = now;
+            counts[slot]  = 0;
+        }
+
+        counts[slot]++;
+    }
+
+    /**
+     * @return Events per second, over the window's whole seconds (or those since this meter was
+     *         created, if fewer); the current second is left out, as it is still being counted
+     */
+    public synchronized double getPerSecond()
+    {
+        long now    = second();
+        int  window = counts.length - 1;
+        long total  = 0;
+
+        for (int i = 0; i < counts.length; i++)
+            if ( seconds[i] < now && seconds[i] >= now - window )
+                total += counts[i];
+
+        long elapsed = Math.min(window, now - created);
+
+        return elapsed <= 0
+            ? 0
+            : (double) total / elapsed;
+    }
+
+    private static long second()
+    {
+        return TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() );
+    }
+}
@@ -0,0 +1,321 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects to whichever of a network's servers answers first. Every server is dialled at once, each
+ * on a virtual thread, and the first connection made is kept; the others are closed as they
+ * complete. The server that last proved good is dialled a little ahead of the rest, so that it
+ * wins whenever it is about as fast; the rest are dialled early if it fails first.
+ *
+ * Attempts after the first wait a jittered, exponentially growing delay, starting below a second,
+ * until {@link #onRegistered} tells of a good connection. The address PircBotX asks for is
+ * ignored, as the race decides where to connect. Thread-safe.
+ */
+public class ServerRace extends SocketFactory
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ServerRace.class);
+
+    /** How long the last good server is dialled before the others, in milliseconds */
+    private static final long HEAD_START      = 250;
+    private static final int  CONNECT_TIMEOUT = 10000;
+    /** Port of servers given without one */
+    private static final int  DEFAULT_PORT    = 6667;
+
+    private final List<InetSocketAddress> servers;
+    private final AtomicInteger           attempts = new AtomicInteger(-1);
+
+    private volatile long              baseDelay;
+    private volatile long              maxDelay;
+    private volatile InetSocketAddress preferred;
+    private volatile InetSocketAddress connected;
+
+    /**
+     * @param servers   Servers of the network, as comma separated "host" or "host:port"
+     * @param preferred Server to dial ahead of the rest (e.g. the last one used), or null if none
+     * @param baseDelay Milliseconds to wait, at most, before the first reconnect
+     * @param maxDelay  Milliseconds to wait, at most, between any attempts
+     */
+    public ServerRace(String servers, String preferred, long baseDelay, long maxDelay)
+    {
+        this.servers   = parse(servers);
+        this.preferred = preferred == null || preferred.trim().isEmpty()
+            ? null
+            : parse(preferred).get(0);
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay  = Math.max(this.baseDelay, maxDelay);
+    }
+
+    /** Changes the backoff of attempts from now on */
+    public void setDelays(long baseDelay, long maxDelay)
+    {
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay  = Math.max(this.baseDelay, maxDelay);
+    }
+
+    /**
+     * Marks the current connection as good, once registered with its server. Its server is dialled
+     * ahead of the rest from now on, and the next attempt starts over with the shortest delay.
+     */
+    public void onRegistered()
+    {
+        attempts.set(0);
+
+        if (connected != null)
+            preferred = connected;
+    }
+
+    /** @return The first of the network's servers, as configured; unresolved */
+    public InetSocketAddress getFirst()
+    {
+        return servers.get(0);
+    }
+
+    /** @return The server of the latest connection made, as "host:port", or null if none yet */
+    public String getConnected()
+    {
+        return connected == null
+            ? null
+            : format(connected);
+    }
+
+    /** @return Hostname of the latest connection made's server, or null if none yet */
+    public String getConnectedHost()
+    {
+        return connected == null
+            ? null
+            : connected.getHostString();
+    }
+
+    //<editor-fold desc="SocketFactory (bot thread)">
+    @Override
+    public Socket createSocket() throws IOException
+    {
+        return race();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+        return race();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException
+    {
+        return race();
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+        return race();
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                               int localPort) throws IOException
+    {
+        return race();
+    }
+    //</editor-fold>
+
+    /** Waits out the backoff, then dials every server and returns the first connection made */
+    private Socket race() throws IOException
+    {
+        backOff();
+
+        CompletableFuture<Dialled> won    = new CompletableFuture<>();
+        AtomicInteger              left   = new AtomicInteger( servers.size() );
+        Queue<String>              errors = new ConcurrentLinkedQueue<>();
+        InetSocketAddress          ahead  = servers.contains(preferred)
+            ? preferred
+            : null;
+        CountDownLatch             head   = new CountDownLatch(ahead == null ? 0 : 1);
+
+        for (InetSocketAddress server : servers)
+        {
+            boolean first = ahead == null || ahead.equals(server);
+
+            Thread.ofVirtual().name("IRC dialer " + format(server))
+                .start( () -> dial(server, first, head, won, left, errors) );
+        }
+
+        try
+        {
+            Dialled dialled = won.get();
+
+            connected = dialled.server;
+            LOG.info( "Connected to {}, of {} server(s)", format(connected), servers.size() );
+            return dialled.socket;
+        }
+        catch (InterruptedException ex)
+        {
+            // Whatever connects from now on is closed by its dialer; one that already won is not
+            if ( !won.cancel(false) && !won.isCompletedExceptionally() )
+                try
+                {
+                    won.getNow(null).socket.close();
+                }
+                catch (IOException ignored)
+                {
+
+                }
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+        catch (ExecutionException ex)
+        {
+            throw new IOException( ex.getCause().getMessage() );
+        }
+    }
+
+    /**
+     * Dials one server, and offers the connection as the race's winner. Servers not dialled first
+     * wait until the head start is over, or the server given it has finished dialling. The last
+     * dialer to finish fails the race, if nobody won it.
+     */
+    private void dial(InetSocketAddress server, boolean first, CountDownLatch head,
+                      CompletableFuture<Dialled> won, AtomicInteger left, Queue<String> errors)
+    {
+        Socket socket = new Socket();
+
+        try
+        {
+            if (!first)
+                head.await(HEAD_START, TimeUnit.MILLISECONDS);
+
+            if ( won.isDone() )
+                return;
+
+            // Resolved here, so that slow lookups race too
+            socket.connect( new InetSocketAddress( server.getHostString(), server.getPort() ),
+                CONNECT_TIMEOUT );
+
+            if ( won.complete( new Dialled(server, socket) ) )
+                socket = null;
+        }
+        catch (Exception ex)
+        {
+            errors.add( format(server) + " (" + ex.getMessage() + ")" );
+        }
+        finally
+        {
+            if (first)
+                head.countDown();
+
+            if (socket != null)
+                try
+                {
+                    socket.close();
+                }
+                catch (IOException ignored)
+                {
+
+                }
+
+            if (left.decrementAndGet() == 0)
+                won.completeExceptionally( new IOException(
+                    "Could not connect to any server: " + String.join(", ", errors) ) );
+        }
+    }
+
+    /**
+     * Sleeps before every attempt but the very first. The n-th attempt since the last good
+     * connection waits between half and all of baseDelay * 2^n, capped at maxDelay, so that many
+     * bridges dropped at once do not all come back at once.
+     */
+    private void backOff() throws InterruptedIOException
+    {
+        int attempt = attempts.getAndIncrement();
+
+        if (attempt < 0)
+            return;
+
+        long ceiling = Math.min( maxDelay, baseDelay << Math.min(attempt, 20) );
+        long delay   = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+
+        LOG.debug("Waiting {} ms before connecting (attempt {})", delay, attempt + 1);
+
+        try
+        {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    /** @return Given comma separated "host" or "host:port" servers, unresolved */
+    private static List<InetSocketAddress> parse(String servers)
+    {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+
+        for ( String server : servers.split(",") )
+        {
+            String entry = server.trim();
+            int    colon = entry.lastIndexOf(':');
+
+            if ( entry.isEmpty() )
+                continue;
+
+            try
+            {
+                // Only a single colon can separate a port; more make an IPv6 address
+                parsed.add( colon > 0 && colon == entry.indexOf(':')
+                    ? InetSocketAddress.createUnresolved( entry.substring(0, colon),
+                        Integer.parseInt( entry.substring(colon + 1) ) )
+                    : InetSocketAddress.createUnresolved(entry, DEFAULT_PORT) );
+            }
+            catch (IllegalArgumentException ex)
+            {
+                throw new RuntimeException("Invalid config: IRC server " + entry);
+            }
+        }
+
+        if ( parsed.isEmpty() )
+            throw new RuntimeException("Invalid config: no IRC server given");
+
+        return parsed;
+    }
+
+    private static String format(InetSocketAddress server)
+    {
+        return server.getHostString() + ":" + server.getPort();
+    }
+
+    /** Connection made to one of the servers */
+    private static class Dialled
+    {
+        final InetSocketAddress server;
+        final Socket            socket;
+
+        Dialled(InetSocketAddress server, Socket socket)
+        {
+            this.server = server;
+            this.socket = socket;
+        }
+    }
+}
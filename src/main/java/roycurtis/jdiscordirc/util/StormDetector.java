@@ -0,0 +1,169 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Spots storms of presence events (joins, parts, quits and nick changes), such as those caused by
+ * netsplits, and turns them into one summary per window instead of a message per event.
+ *
+ * The first few events of a window are let through as usual. Any more events in the same window
+ * are only counted, and summarized when the window ends. Quits that look like a netsplit (i.e. a
+ * reason of two server names) are always counted, as they never come alone. Memory use per window
+ * is fixed, no matter how big the storm. Not thread-safe; meant to be used from a single lane.
+ */
+public class StormDetector
+{
+    /**
+     * Netsplit quit reasons are the names of the two servers that split, e.g. "a.net b.net", or
+     * "*.net *.split" on networks that mask them
+     */
+    private static final Pattern NETSPLIT   = Pattern.compile(
+        "^([\\w*.-]+\\.[\\w*.-]+) ([\\w*.-]+\\.[\\w*.-]+)$"
+    );
+    /** How many distinct netsplits to name in a single summary */
+    private static final int     MAX_SPLITS = 3;
+
+    /** Kinds of presence events, along with how they're described in summaries */
+    public enum Kind
+    {
+        QUIT("quit"), JOIN("joined"), PART("left"), NICK("changed nick");
+
+        final String verb;
+
+        Kind(String verb)
+        {
+            this.verb = verb;
+        }
+    }
+
+    private final int[]        counted = new int[ Kind.values().length ];
+    private final List<String> splits  = new ArrayList<>(MAX_SPLITS);
+
+    private long window;
+    private int  threshold;
+    private long windowEnd;
+    private int  seen;
+    private int  totalCounted;
+
+    /**
+     * @param windowMs  Length of a window in milliseconds, or 0 to disable storm detection
+     * @param threshold How many events of a window are let through, before the rest are counted
+     */
+    public StormDetector(int windowMs, int threshold)
+    {
+        this.window    = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.threshold = threshold;
+    }
+
+    /** Changes the window and threshold; a window already under way keeps its end */
+    public void setLimits(int windowMs, int threshold)
+    {
+        this.window    = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Offers a presence event to the detector.
+     *
+     * @param kind   Kind of event
+     * @param reason Quit reason, if the event is a quit, else null
+     * @return True if the event should be sent as usual, false if it was counted for a summary
+     */
+    public boolean offer(Kind kind, String reason)
+    {
+        if (window <= 0)
+            return true;
+
+        long now = System.nanoTime();
+
+        // Start a new window once the last one has ended and been summarized
+        if ( totalCounted == 0 && (seen == 0 || now - windowEnd > 0) )
+        {
+            windowEnd = now + window;
+            seen      = 0;
+        }
+
+        seen++;
+
+        String split = kind == Kind.QUIT && reason != null
+            ? getNetsplit(reason)
+            : null;
+
+        if (split == null && seen <= threshold)
+            return true;
+
+        counted[ kind.ordinal() ]++;
+        totalCounted++;
+
+        if ( split != null && splits.size() < MAX_SPLITS && !splits.contains(split) )
+            splits.add(split);
+
+        return false;
+    }
+
+    /** @return Nanoseconds until a summary is due, or {@link Long#MAX_VALUE} if none is pending */
+    public long nanosUntilDue()
+    {
+        return totalCounted == 0
+            ? Long.MAX_VALUE
+            : windowEnd - System.nanoTime();
+    }
+
+    /**
+     * Ends the current window, if a summary is due.
+     *
+     * @return Summary of the events counted in the window (e.g. "3 users quit, 1 user joined"), or
+     *         null if none is due yet
+     */
+    public String summarizeIfDue()
+    {
+        if (nanosUntilDue() > 0)
+            return null;
+
+        StringBuilder summary = new StringBuilder();
+        boolean       first   = true;
+
+        for ( Kind kind : Kind.values() )
+        {
+            int count = counted[ kind.ordinal() ];
+
+            if (count == 0)
+                continue;
+
+            summary.append(first ? "" : ", ")
+                .append(count)
+                .append(count == 1 ? " user " : " users ")
+                .append(kind.verb);
+
+            if (kind == Kind.QUIT && !splits.isEmpty())
+                summary.append(" (netsplit ")
+                    .append( String.join(", ", splits) )
+                    .append(')');
+
+            first = false;
+        }
+
+        for (int i = 0; i < counted.length; i++)
+            counted[i] = 0;
+
+        splits.clear();
+        totalCounted = 0;
+        seen         = 0;
+
+        return summary.toString();
+    }
+
+    /** @return Description of the split if the given quit reason is a netsplit, else null */
+    private static String getNetsplit(String reason)
+    {
+        Matcher matcher = NETSPLIT.matcher(reason);
+
+        return matcher.matches()
+            ? matcher.group(1) + " ↔ " + matcher.group(2)
+            : null;
+    }
+}
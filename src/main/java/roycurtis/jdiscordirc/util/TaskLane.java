@@ -0,0 +1,442 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs queued tasks one at a time on its own virtual thread, strictly in the order they were
+ * queued. The thread parks while the lane is empty, and drains bursts without pausing. Tasks that
+ * block (e.g. on a full sender) free their carrier thread, rather than holding a platform thread
+ * per lane.
+ *
+ * A lane may have a {@link Deferral}, for work that gets held back until a deadline (such as chat
+ * being coalesced). Held work is flushed when due, and before any task that is not itself
+ * {@link Deferrable}, so that nothing overtakes it.
+ *
+ * A lane may also be bounded. Once it holds as many chat and presence tasks as it allows, each
+ * new one makes the lane drop a waiting task (or the new one), as chosen by its {@link Overload}
+ * policy. Tasks taken off the queue to be run still count towards the bound until they have run,
+ * and no more are taken at once than the bound; so the lane never holds more chat and presence
+ * than it allows. Control tasks are never dropped, and do not count towards the bound.
+ */
+public class TaskLane
+{
+    private static final Logger LOG = LoggerFactory.getLogger(TaskLane.class);
+
+    /** Work held back by a lane's tasks, to be flushed later on the lane's thread */
+    public interface Deferral
+    {
+        /** @return Nanoseconds until held work is due, or {@link Long#MAX_VALUE} if none is held */
+        long nanosUntilDue();
+
+        /** Performs any held work right away */
+        void flush();
+    }
+
+    /** Marks tasks that may add to a lane's deferred work, rather than having to follow it */
+    public interface Deferrable extends Runnable { }
+
+    /** What a task carries, which decides whether it may be dropped when the lane is full */
+    public enum Kind { CONTROL, CHAT, PRESENCE }
+
+    /** Times a lane's tasks, as given along with them; called on the lane's thread */
+    public interface Meter
+    {
+        /**
+         * @param waited Nanoseconds the task waited in the lane, before it was run
+         * @param took   Nanoseconds the task took to run
+         */
+        void record(long waited, long took);
+    }
+
+    /** Which tasks a full lane drops first */
+    public enum Overload
+    {
+        /** Drops the oldest waiting chat first, then the oldest presence */
+        DROP_CHAT,
+        /** Drops the oldest waiting presence first, then the oldest chat */
+        DROP_PRESENCE,
+        /** Drops like {@link #DROP_PRESENCE}, and a summary of what was dropped is expected */
+        SUMMARIZE
+    }
+
+    /** Notified as a bounded lane becomes overloaded and recovers */
+    public interface OverloadListener
+    {
+        /** Called on the submitting thread, when the lane has to drop its first task */
+        void onOverloaded(TaskLane lane);
+
+        /** Called on the submitting thread, for every task dropped */
+        void onDropped(TaskLane lane, Kind kind);
+
+        /** Called on the lane's thread, once it has run everything waiting since overloading */
+        void onRecovered(TaskLane lane, int droppedChat, int droppedPresence);
+    }
+
+    private final ReentrantLock    lock     = new ReentrantLock();
+    private final Condition        notEmpty = lock.newCondition();
+    private final Deque<Entry>     queue    = new ArrayDeque<>();
+    private final List<Entry>      batch    = new ArrayList<>();
+    private final String           name;
+    private final Deferral         deferral;
+    private final OverloadListener listener;
+
+    private volatile Overload policy;
+
+    private Thread  thread;
+    private int     capacity;
+    /** How many chat and presence tasks are held; waiting, or taken off the queue but not run */
+    private int     droppable;
+    private boolean overloaded;
+    private int     droppedChat;
+    private int     droppedPresence;
+
+    /**
+     * @param name     Name of the lane's thread
+     * @param deferral Held back work of this lane's tasks, or null if none
+     * @param capacity How many chat and presence tasks may wait before some are dropped
+     * @param policy   Which tasks are dropped first, once full
+     * @param listener Listener told of overloads, or null if none
+     */
+    public TaskLane(String name, Deferral deferral,
+                    int capacity, Overload policy, OverloadListener listener)
+    {
+        this.name     = name;
+        this.deferral = deferral;
+        this.capacity = Math.max(1, capacity);
+        this.policy   = policy;
+        this.listener = listener;
+    }
+
+    public TaskLane(String name, Deferral deferral)
+    {
+        this(name, deferral, Integer.MAX_VALUE, Overload.DROP_PRESENCE, null);
+    }
+
+    public TaskLane(String name)
+    {
+        this(name, null);
+    }
+
+    public void start()
+    {
+        thread = Thread.ofVirtual().name(name).start(this::loop);
+    }
+
+    public void stop()
+    {
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Overload getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Changes how many chat and presence tasks may wait, and which are dropped first. Tasks already
+     * waiting beyond a smaller bound are kept, until each new task pushes out an older one.
+     */
+    public void setBounds(int capacity, Overload policy)
+    {
+        lock.lock();
+        try
+        {
+            this.capacity = Math.max(1, capacity);
+            this.policy   = policy;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Queues a control task, which is never dropped */
+    public void submit(Runnable task)
+    {
+        submit(Kind.CONTROL, task);
+    }
+
+    /**
+     * Queues a task to be run on this lane's thread, after every task queued before it. If the
+     * lane is full, a chat or presence task (possibly this one) is dropped to make room.
+     */
+    public void submit(Kind kind, Runnable task)
+    {
+        submit(kind, task, null);
+    }
+
+    /**
+     * Queues a task like {@link #submit(Kind, Runnable)}, timing how long it waits and runs.
+     *
+     * @param meter Meter told of the task's times once it has run, or null to not time it
+     */
+    public void submit(Kind kind, Runnable task, Meter meter)
+    {
+        Kind    dropped = null;
+        boolean first   = false;
+        boolean keep    = true;
+
+        lock.lock();
+        try
+        {
+            if (kind != Kind.CONTROL && droppable >= capacity)
+            {
+                int waiting = droppable;
+
+                dropped = drop(kind);
+                first   = !overloaded;
+
+                overloaded = true;
+                if (dropped == Kind.CHAT) droppedChat++;
+                else                      droppedPresence++;
+
+                // The new task is kept, unless it was the one dropped
+                keep = droppable < waiting;
+            }
+
+            if (keep)
+            {
+                queue.addLast( new Entry(kind, task, meter) );
+
+                if (kind != Kind.CONTROL)
+                    droppable++;
+
+                notEmpty.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (dropped != null && listener != null)
+        {
+            if (first)
+                listener.onOverloaded(this);
+
+            listener.onDropped(this, dropped);
+        }
+    }
+
+    /** @return How many tasks are waiting to be run */
+    public int getBacklog()
+    {
+        lock.lock();
+        try
+        {
+            return queue.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room in a full lane, by dropping the oldest waiting task of the kind the policy drops
+     * first. If none is waiting, the new task is dropped if it is of that kind; otherwise, the
+     * oldest waiting task of the other kind is. Only called with the lock held.
+     *
+     * @return Kind of task dropped
+     */
+    private Kind drop(Kind incoming)
+    {
+        Kind first = policy == Overload.DROP_CHAT
+            ? Kind.CHAT
+            : Kind.PRESENCE;
+        Kind other = first == Kind.CHAT
+            ? Kind.PRESENCE
+            : Kind.CHAT;
+
+        if ( removeOldest(first) )
+            return first;
+        else if (incoming == first)
+            return first;
+        else if ( removeOldest(other) )
+            return other;
+        else
+            return incoming;
+    }
+
+    /** @return True if a waiting task of the given kind was found and removed */
+    private boolean removeOldest(Kind kind)
+    {
+        Iterator<Entry> it = queue.iterator();
+
+        while ( it.hasNext() )
+            if (it.next().kind == kind)
+            {
+                it.remove();
+                droppable--;
+                return true;
+            }
+
+        return false;
+    }
+
+    private void loop()
+    {
+        while ( !Thread.currentThread().isInterrupted() ) try
+        {
+            pump();
+        }
+        catch (InterruptedException ex)
+        {
+            return;
+        }
+    }
+
+    private void pump() throws InterruptedException
+    {
+        long due = deferral == null
+            ? Long.MAX_VALUE
+            : deferral.nanosUntilDue();
+
+        lock.lockInterruptibly();
+        try
+        {
+            if ( queue.isEmpty() )
+            {
+                if (due == Long.MAX_VALUE)
+                    notEmpty.await();
+                else if (due > 0)
+                    notEmpty.awaitNanos(due);
+            }
+
+            // Takes no more at once than the bound, so the batch cannot hold more than allowed
+            for (int i = 0; i < capacity && !queue.isEmpty(); i++)
+                batch.add( queue.pollFirst() );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( batch.isEmpty() )
+        {
+            if ( deferral != null && deferral.nanosUntilDue() <= 0 )
+                run(deferral::flush);
+
+            return;
+        }
+
+        for (Entry entry : batch)
+        {
+            if ( deferral != null && !(entry.task instanceof Deferrable) )
+                run(deferral::flush);
+
+            run(entry);
+
+            if (entry.kind != Kind.CONTROL)
+                release();
+        }
+
+        LOG.trace( "[{}] Pumped {} events; {} remain", name, batch.size(), getBacklog() );
+        batch.clear();
+        checkRecovered();
+    }
+
+    /** Stops counting a chat or presence task towards the bound, once it has run */
+    private void release()
+    {
+        lock.lock();
+        try
+        {
+            droppable--;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Tells the listener if the lane has caught up, since it was last overloaded */
+    private void checkRecovered()
+    {
+        int chat;
+        int presence;
+
+        lock.lock();
+        try
+        {
+            if ( !overloaded || !queue.isEmpty() )
+                return;
+
+            chat     = droppedChat;
+            presence = droppedPresence;
+
+            overloaded      = false;
+            droppedChat     = 0;
+            droppedPresence = 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        LOG.info("[{}] Caught up, after dropping {} chat and {} presence task(s)",
+            name, chat, presence
+        );
+
+        if (listener != null)
+            listener.onRecovered(this, chat, presence);
+    }
+
+    private void run(Entry entry)
+    {
+        if (entry.meter == null)
+        {
+            run(entry.task);
+            return;
+        }
+
+        long started = System.nanoTime();
+
+        run(entry.task);
+        entry.meter.record( started - entry.queued, System.nanoTime() - started );
+    }
+
+    private void run(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (Exception ex)
+        {
+            LOG.error( "[{}] Exception during bridge event: {}", name, ex.getMessage() );
+        }
+    }
+
+    private static class Entry
+    {
+        final Kind     kind;
+        final Runnable task;
+        final Meter    meter;
+        /** When the task was queued, if it is timed */
+        final long     queued;
+
+        Entry(Kind kind, Runnable task, Meter meter)
+        {
+            this.kind   = kind;
+            this.task   = task;
+            this.meter  = meter;
+            this.queued = meter == null ? 0 : System.nanoTime();
+        }
+    }
+}
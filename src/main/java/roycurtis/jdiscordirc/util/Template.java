@@ -0,0 +1,142 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message template, such as "<**%s**> %s", parsed once into literal text and argument slots so
+ * that rendering it never has to parse it again. Supports "%s" for the next argument, "%2$s" for a
+ * specific argument and "%%" for a literal percent sign. Immutable and thread-safe.
+ */
+public class Template
+{
+    /** Builders above this size are not kept, so one huge message does not pin its memory */
+    private static final int MAX_KEPT = 4096;
+
+    /** Per-thread builder reused by every render, to avoid allocating one per message */
+    private static final ThreadLocal<StringBuilder> BUILDER =
+        ThreadLocal.withInitial( () -> new StringBuilder(256) );
+
+    private final String   pattern;
+    /** Literal text before each argument slot, plus the text after the last slot */
+    private final String[] literals;
+    /** Index of the argument for each slot */
+    private final int[]    slots;
+
+    private Template(String pattern, String[] literals, int[] slots)
+    {
+        this.pattern  = pattern;
+        this.literals = literals;
+        this.slots    = slots;
+    }
+
+    /**
+     * Parses the given pattern into a template.
+     *
+     * @throws IllegalArgumentException If the pattern has an unsupported "%" specifier
+     */
+    public static Template parse(String pattern)
+    {
+        List<String>  literals = new ArrayList<>();
+        List<Integer> slots    = new ArrayList<>();
+        StringBuilder literal  = new StringBuilder();
+        int           next     = 0;
+
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            char c = pattern.charAt(i);
+
+            if (c != '%')
+            {
+                literal.append(c);
+                continue;
+            }
+
+            if ( i + 1 < pattern.length() && pattern.charAt(i + 1) == '%' )
+            {
+                literal.append('%');
+                i++;
+                continue;
+            }
+
+            int end  = pattern.indexOf('s', i);
+            int slot = end == i + 1
+                ? next++
+                : parsePosition(pattern, i + 1, end);
+
+            if (slot < 0)
+                throw new IllegalArgumentException("Bad specifier in template: " + pattern);
+
+            slots.add(slot);
+            literals.add( literal.toString() );
+            literal.setLength(0);
+            i = end;
+        }
+
+        literals.add( literal.toString() );
+
+        int[] slotArray = new int[ slots.size() ];
+        for (int i = 0; i < slotArray.length; i++)
+            slotArray[i] = slots.get(i);
+
+        return new Template( pattern, literals.toArray(new String[0]), slotArray );
+    }
+
+    /** @return Zero-based argument index of a "%N$s" specifier's "N$" part, or -1 if invalid */
+    private static int parsePosition(String pattern, int start, int end)
+    {
+        if ( end < start + 2 || pattern.charAt(end - 1) != '$' )
+            return -1;
+
+        try
+        {
+            return Integer.parseInt( pattern.substring(start, end - 1) ) - 1;
+        }
+        catch (NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
+
+    /** @return How many arguments this template uses, i.e. the highest argument it refers to */
+    public int getArity()
+    {
+        int arity = 0;
+
+        for (int slot : slots)
+            arity = Math.max(arity, slot + 1);
+
+        return arity;
+    }
+
+    /** Renders this template with the given arguments, onto the end of the given builder */
+    public StringBuilder appendTo(StringBuilder out, Object... args)
+    {
+        for (int i = 0; i < slots.length; i++)
+            out.append( literals[i] ).append( args[ slots[i] ] );
+
+        return out.append( literals[slots.length] );
+    }
+
+    /** @return This template rendered with the given arguments */
+    public String render(Object... args)
+    {
+        StringBuilder out = BUILDER.get();
+
+        out.setLength(0);
+
+        String text = appendTo(out, args).toString();
+
+        // Drops this thread's builder if it grew too big to keep
+        if (out.capacity() > MAX_KEPT)
+            BUILDER.remove();
+
+        return text;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern;
+    }
+}
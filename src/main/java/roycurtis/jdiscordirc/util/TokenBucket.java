@@ -0,0 +1,64 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic token bucket rate limiter; holds up to a given amount of tokens, and gains one token per
+ * interval. Thread-safe.
+ */
+public class TokenBucket
+{
+    private int    capacity;
+    private long   nanosPerToken;
+    private double tokens;
+    private long   lastRefill;
+
+    /**
+     * @param capacity   Maximum tokens the bucket holds, i.e. the size of a burst
+     * @param intervalMs Milliseconds it takes to gain one token
+     */
+    public TokenBucket(int capacity, long intervalMs)
+    {
+        this.capacity      = Math.max(1, capacity);
+        this.nanosPerToken = TimeUnit.MILLISECONDS.toNanos( Math.max(1, intervalMs) );
+        this.tokens        = this.capacity;
+        this.lastRefill    = System.nanoTime();
+    }
+
+    /**
+     * Changes the size of a burst and the rate of refill, keeping the tokens already held (up to
+     * the new capacity).
+     */
+    public synchronized void setRate(int capacity, long intervalMs)
+    {
+        this.capacity      = Math.max(1, capacity);
+        this.nanosPerToken = TimeUnit.MILLISECONDS.toNanos( Math.max(1, intervalMs) );
+        this.tokens        = Math.min(tokens, this.capacity);
+    }
+
+    /** Takes a token, blocking until one is available */
+    public void acquire() throws InterruptedException
+    {
+        long wait;
+
+        while ( (wait = tryAcquire()) > 0 )
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /** @return 0 if a token was taken, else nanoseconds until one should be available */
+    public synchronized long tryAcquire()
+    {
+        long now = System.nanoTime();
+
+        tokens     = Math.min( capacity, tokens + (double) (now - lastRefill) / nanosPerToken );
+        lastRefill = now;
+
+        if (tokens >= 1)
+        {
+            tokens--;
+            return 0;
+        }
+
+        return (long) Math.ceil( (1 - tokens) * nanosPerToken );
+    }
+}
@@ -0,0 +1,489 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Append-only record of bridged chat, kept in a directory of memory-mapped segment files in the
+ * same way as {@link Outbox}. Each segment has an index file alongside it, holding a fixed-size
+ * entry per record: its time, where it starts, and hashes of its channel and nick. Lookups walk
+ * the index back from the newest entry, stop at the first entry older than asked for, and only
+ * read records whose hashes match; so recent lines are found just as fast however big the
+ * transcript grows.
+ *
+ * Each record is written as its length, time, flags, channel, nick and UTF-8 text. As in the
+ * outbox, the length is written last, and so is each index entry's time; anything cut short by a
+ * crash reads as the end of its segment or index. Records that made it without their index entry
+ * are indexed again on opening. Segments past the age cap are deleted, oldest first.
+ *
+ * Not thread-safe; meant to be used only from the transcript's own lane.
+ */
+public class Transcript
+{
+    private static final Logger LOG = LoggerFactory.getLogger(Transcript.class);
+
+    /** Size of each segment file */
+    private static final int SEGMENT_SIZE = 1 << 22;
+    /** Size of each index file; a segment is also full once its index is */
+    private static final int INDEX_SIZE   = 1 << 20;
+    /** Size of each index entry; a time, an offset, and channel and nick hashes */
+    private static final int ENTRY_SIZE   = Long.BYTES + 3 * Integer.BYTES;
+    private static final int MAX_ENTRIES  = INDEX_SIZE / ENTRY_SIZE;
+    /** Size of each record's length, time, flags, and channel and nick lengths */
+    private static final int HEADER_SIZE  = Integer.BYTES + Long.BYTES + 3;
+    /** Longest channel or nick kept, in UTF-8 bytes */
+    private static final int MAX_NAME     = 255;
+
+    private static final byte FROM_DISCORD = 1;
+    private static final byte ACTION       = 2;
+
+    private static final String SUFFIX       = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /** A line of chat, as recorded */
+    public static class Line
+    {
+        /** When the line was recorded, in milliseconds since the epoch */
+        public final long    time;
+        public final boolean fromDiscord;
+        public final boolean isAction;
+        public final String  channel;
+        public final String  nick;
+        public final String  text;
+
+        Line(long time, boolean fromDiscord, boolean isAction,
+             String channel, String nick, String text)
+        {
+            this.time        = time;
+            this.fromDiscord = fromDiscord;
+            this.isAction    = isAction;
+            this.channel     = channel;
+            this.nick        = nick;
+            this.text        = text;
+        }
+    }
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final Path          dir;
+    private final long          maxAge;
+
+    /** Time of the latest record; kept from going backwards, so index times stay in order */
+    private long latest;
+
+    /**
+     * @param dir      Directory to keep the transcript's files in; created if missing
+     * @param maxAgeMs How old a segment's newest record may get before it is deleted, or 0 to keep
+     *                 every segment
+     */
+    public Transcript(Path dir, long maxAgeMs) throws IOException
+    {
+        this.dir    = dir;
+        this.maxAge = maxAgeMs;
+
+        Files.createDirectories(dir);
+
+        List<Long> found = new ArrayList<>();
+
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX) )
+        {
+            for (Path file : stream)
+            {
+                String name = file.getFileName().toString();
+                found.add( Long.parseLong( name.substring(0, name.length() - SUFFIX.length()) ) );
+            }
+        }
+
+        found.sort(null);
+
+        for (long id : found)
+            segments.add( open(id) );
+
+        if ( segments.isEmpty() )
+            segments.add( open(1) );
+
+        Segment last = last();
+
+        recover(last);
+        latest = last.newest;
+
+        expire();
+        LOG.debug("[Transcript] Opened {} segment(s) in {}", segments.size(), dir);
+    }
+
+    /** Records a line of chat at the end of the transcript */
+    public void append(long time, String channel, boolean fromDiscord, boolean isAction,
+                       String nick, String text)
+    {
+        byte[] channelBytes = name(channel);
+        byte[] nickBytes    = name(nick);
+        byte[] textBytes    = text.getBytes(StandardCharsets.UTF_8);
+        int    length       = 3 + channelBytes.length + nickBytes.length + textBytes.length;
+        int    size         = HEADER_SIZE - 3 + length;
+
+        if (size > SEGMENT_SIZE)
+        {
+            LOG.warn("[Transcript] Skipping line too big to keep, by {}", nick);
+            return;
+        }
+
+        Segment segment = last();
+
+        try
+        {
+            if (segment.end + size > SEGMENT_SIZE || segment.count >= MAX_ENTRIES)
+                segment = roll();
+        }
+        catch (IOException ex)
+        {
+            LOG.error( "[Transcript] Could not start a new segment in {}: {}",
+                dir, ex.getMessage()
+            );
+            return;
+        }
+
+        byte flags = (byte) ( (fromDiscord ? FROM_DISCORD : 0) | (isAction ? ACTION : 0) );
+        int  start = segment.end;
+        int  at    = start + HEADER_SIZE;
+
+        latest = Math.max(latest, time);
+
+        MappedByteBuffer data = segment.data;
+
+        data.putLong(start + Integer.BYTES, latest);
+        data.put(start + Integer.BYTES + Long.BYTES, flags);
+        data.put( start + Integer.BYTES + Long.BYTES + 1, (byte) channelBytes.length );
+        data.put( start + Integer.BYTES + Long.BYTES + 2, (byte) nickBytes.length );
+        data.put(at, channelBytes);
+        data.put(at + channelBytes.length, nickBytes);
+        data.put(at + channelBytes.length + nickBytes.length, textBytes);
+        data.putInt(start, length);
+
+        index(segment, latest, start, channel, nick);
+        segment.end = start + size;
+    }
+
+    /** @return Up to the given amount of the newest lines in the given channel, oldest first */
+    public List<Line> last(String channel, int limit)
+    {
+        return find(channel, null, Long.MIN_VALUE, limit, line -> true);
+    }
+
+    /**
+     * @return Up to the given amount of the newest lines by the given nick in the given channel,
+     *         since the given time, oldest first; nicks are matched ignoring case
+     */
+    public List<Line> byNick(String channel, String nick, long since, int limit)
+    {
+        return find( channel, hashOf(nick), since, limit,
+            line -> line.nick.equalsIgnoreCase(nick)
+        );
+    }
+
+    /**
+     * @return Up to the given amount of the newest lines in the given channel since the given
+     *         time, which contain the given text ignoring case, oldest first
+     */
+    public List<Line> search(String channel, String text, long since, int limit)
+    {
+        String needle = text.toLowerCase(Locale.ROOT);
+
+        return find( channel, null, since, limit,
+            line -> line.text.toLowerCase(Locale.ROOT).contains(needle)
+        );
+    }
+
+    /** Forces all recorded lines to disk */
+    public void flush()
+    {
+        Segment last = last();
+
+        last.data.force();
+        last.index.force();
+    }
+
+    /**
+     * Walks the index back from the newest entry, reading the records of those whose hashes
+     * match, until enough lines are found or entries get older than the given time.
+     *
+     * @param nickHash Hash the nick of each record has to have, or null to allow any
+     */
+    private List<Line> find(String channel, Integer nickHash, long since, int limit,
+                            Predicate<Line> match)
+    {
+        List<Line> found       = new ArrayList<>();
+        int        channelHash = hashOf(channel);
+
+        search:
+        for (int s = segments.size() - 1; s >= 0 && found.size() < limit; s--)
+        {
+            Segment segment = segments.get(s);
+
+            if (segment.count == 0)
+                continue;
+
+            if (segment.newest < since)
+                break;
+
+            for (int i = segment.count - 1; i >= 0; i--)
+            {
+                int entry = i * ENTRY_SIZE;
+
+                if (segment.index.getLong(entry) < since)
+                    break search;
+
+                if (segment.index.getInt(entry + Long.BYTES + Integer.BYTES) != channelHash)
+                    continue;
+
+                if ( nickHash != null
+                    && segment.index.getInt(entry + Long.BYTES + 2 * Integer.BYTES) != nickHash )
+                    continue;
+
+                Line line = read( segment, segment.index.getInt(entry + Long.BYTES) );
+
+                if ( line == null || !line.channel.equalsIgnoreCase(channel) || !match.test(line) )
+                    continue;
+
+                found.add(line);
+
+                if (found.size() >= limit)
+                    break search;
+            }
+        }
+
+        Collections.reverse(found);
+        return found;
+    }
+
+    /** @return Record at the given offset of the given segment, or null if there is none */
+    private static Line read(Segment segment, int offset)
+    {
+        MappedByteBuffer data = segment.data;
+
+        if (offset < 0 || offset + HEADER_SIZE > data.limit())
+            return null;
+
+        int length = data.getInt(offset);
+
+        if (length < 3 || offset + HEADER_SIZE - 3 + length > data.limit())
+            return null;
+
+        long time          = data.getLong(offset + Integer.BYTES);
+        byte flags         = data.get(offset + Integer.BYTES + Long.BYTES);
+        int  channelLength = data.get(offset + Integer.BYTES + Long.BYTES + 1) & 0xFF;
+        int  nickLength    = data.get(offset + Integer.BYTES + Long.BYTES + 2) & 0xFF;
+        int  textLength    = length - 3 - channelLength - nickLength;
+        int  at            = offset + HEADER_SIZE;
+
+        if (textLength < 0)
+            return null;
+
+        return new Line( time, (flags & FROM_DISCORD) != 0, (flags & ACTION) != 0,
+            string(data, at, channelLength),
+            string(data, at + channelLength, nickLength),
+            string(data, at + channelLength + nickLength, textLength)
+        );
+    }
+
+    /** Adds an index entry for a record, writing its time last so the entry is complete */
+    private static void index(Segment segment, long time, int offset, String channel, String nick)
+    {
+        int entry = segment.count * ENTRY_SIZE;
+
+        segment.index.putInt(entry + Long.BYTES, offset);
+        segment.index.putInt( entry + Long.BYTES + Integer.BYTES, hashOf(channel) );
+        segment.index.putInt( entry + Long.BYTES + 2 * Integer.BYTES, hashOf(nick) );
+        segment.index.putLong(entry, time);
+
+        segment.newest = time;
+        segment.count++;
+    }
+
+    /**
+     * Finds where the given segment's records end, indexing any complete records that follow the
+     * last indexed one (i.e. written just before a crash).
+     */
+    private static void recover(Segment segment)
+    {
+        int end = 0;
+
+        if (segment.count > 0)
+        {
+            int offset = segment.index.getInt( (segment.count - 1) * ENTRY_SIZE + Long.BYTES );
+
+            end = offset + HEADER_SIZE - 3 + segment.data.getInt(offset);
+        }
+
+        int recovered = 0;
+
+        while (segment.count < MAX_ENTRIES)
+        {
+            Line line = read(segment, end);
+
+            if (line == null)
+                break;
+
+            index(segment, line.time, end, line.channel, line.nick);
+            end += HEADER_SIZE - 3 + segment.data.getInt(end);
+            recovered++;
+        }
+
+        segment.end = end;
+
+        if (recovered > 0)
+            LOG.info("[Transcript] Indexed {} line(s) left unindexed by a crash", recovered);
+    }
+
+    /** Starts a new segment, deleting any that are past the age cap */
+    private Segment roll() throws IOException
+    {
+        Segment last = last();
+
+        last.data.force();
+        last.index.force();
+
+        Segment next = open(last.id + 1);
+
+        segments.add(next);
+        expire();
+        return next;
+    }
+
+    /** Deletes the oldest segments, while their newest record is past the age cap */
+    private void expire()
+    {
+        if (maxAge <= 0)
+            return;
+
+        long oldest = System.currentTimeMillis() - maxAge;
+
+        while ( segments.size() > 1 && segments.get(0).newest < oldest )
+        {
+            Segment expired = segments.remove(0);
+
+            try
+            {
+                Files.deleteIfExists( indexPath(expired.id) );
+                Files.deleteIfExists( segmentPath(expired.id) );
+            }
+            catch (IOException ex)
+            {
+                LOG.warn( "[Transcript] Could not delete expired segment {} of {}: {}",
+                    expired.id, dir, ex.getMessage()
+                );
+            }
+        }
+    }
+
+    /** Maps the given segment and its index, creating both if missing */
+    private Segment open(long id) throws IOException
+    {
+        Segment segment = new Segment(id, map( segmentPath(id), SEGMENT_SIZE ),
+            map( indexPath(id), INDEX_SIZE )
+        );
+
+        // Entries are complete up to the first without a time
+        while ( segment.count < MAX_ENTRIES
+            && segment.index.getLong(segment.count * ENTRY_SIZE) != 0 )
+            segment.count++;
+
+        if (segment.count > 0)
+            segment.newest = segment.index.getLong( (segment.count - 1) * ENTRY_SIZE );
+
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) )
+        {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private Segment last()
+    {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Path segmentPath(long id)
+    {
+        return dir.resolve( String.format("%016d%s", id, SUFFIX) );
+    }
+
+    private Path indexPath(long id)
+    {
+        return dir.resolve( String.format("%016d%s", id, INDEX_SUFFIX) );
+    }
+
+    /** @return Hash of the given channel or nick, ignoring case */
+    private static int hashOf(String name)
+    {
+        return name.toLowerCase(Locale.ROOT).hashCode();
+    }
+
+    /**
+     * @return Given channel or nick as UTF-8, cut short if too long to keep; never in the middle
+     *         of a character
+     */
+    static byte[] name(String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length <= MAX_NAME)
+            return bytes;
+
+        int length = MAX_NAME;
+
+        // Backs off continuation bytes (10xxxxxx), to the start of the character that was cut
+        while ( length > 0 && (bytes[length] & 0xC0) == 0x80 )
+            length--;
+
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private static String string(MappedByteBuffer data, int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+
+        data.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** A segment file and its index, both mapped */
+    private static class Segment
+    {
+        final long             id;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+
+        /** How many entries the index has */
+        int  count;
+        /** Offset just past the last record; only kept for the newest segment */
+        int  end;
+        /** Time of the newest record */
+        long newest;
+
+        Segment(long id, MappedByteBuffer data, MappedByteBuffer index)
+        {
+            this.id    = id;
+            this.data  = data;
+            this.index = index;
+        }
+    }
+}
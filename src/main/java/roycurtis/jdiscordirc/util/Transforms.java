@@ -0,0 +1,68 @@
+package roycurtis.jdiscordirc.util;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The text transformation stages messages go through on their way across the bridge, as plain
+ * functions of strings. Keeping them free of JDA and PircBotX types means each stage can be driven
+ * and measured on its own, with generated input.
+ */
+public class Transforms
+{
+    private static final Pattern MENTION = Pattern.compile("\\B@([\\S]+)\\b");
+
+    /**
+     * Joins a Discord message's text with the URLs of its attachments (e.g. uploaded images).
+     *
+     * @return Trimmed text followed by each URL, or an empty string if there is neither
+     */
+    public static String withAttachments(String content, List<String> urls)
+    {
+        String text = content.trim();
+
+        if ( urls.isEmpty() )
+            return text;
+
+        String joined = String.join(" ", urls);
+
+        return text.isEmpty()
+            ? joined
+            : text + " " + joined;
+    }
+
+    /**
+     * Rewrites "@name" mentions in a message sent from IRC into real Discord mentions.
+     *
+     * @param msg     Message to rewrite
+     * @param resolve Given a mentioned name, returns the mention to replace it with, or null to
+     *                leave that name as-is
+     * @return Rewritten message, or the given message itself if it has no mentions
+     */
+    public static String rewriteMentions(String msg, Function<String, String> resolve)
+    {
+        Matcher matcher = MENTION.matcher(msg);
+
+        // Skip processing mentions if none seem to exist
+        if ( !matcher.find() )
+            return msg;
+
+        // Have to reset from above one-time use of find
+        matcher.reset();
+        StringBuffer buffer = new StringBuffer();
+
+        // Iterate through any detected mentions and try to link to member
+        while ( matcher.find() )
+        {
+            String mention = resolve.apply( matcher.group(1) );
+
+            if (mention != null)
+                matcher.appendReplacement( buffer, Matcher.quoteReplacement(mention) );
+        }
+
+        matcher.appendTail(buffer);
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package roycurtis.jdiscordirc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Posts messages to a Discord webhook, over a shared HTTP client that keeps its connections open
+ * for reuse. Requests are paced by the webhook's own rate limit, as given in the headers of every
+ * response: once none are left, the next request waits for the limit to reset. A request that is
+ * rate limited anyway (HTTP 429) is sent again after the wait Discord asks for, and does not count
+ * as a failure.
+ *
+ * Discord may run overlapping requests to a webhook in any order, so this is meant for an
+ * {@link OrderedSender} that allows only one message in flight.
+ */
+public class WebhookTransport implements OrderedSender.Transport
+{
+    private static final Logger LOG = LoggerFactory.getLogger(WebhookTransport.class);
+
+    /** How many times in a row a message may be rate limited, before it counts as failed */
+    private static final int      MAX_LIMITED = 5;
+    private static final Duration TIMEOUT     = Duration.ofSeconds(15);
+    private static final Pattern  RETRY_AFTER =
+        Pattern.compile("\"retry_after\"\\s*:\\s*([0-9.]+)");
+
+    private final HttpClient client;
+    private final URI        uri;
+
+    /** When the webhook's rate limit resets, in {@link System#nanoTime()} terms, if none left */
+    private volatile long resetAt;
+
+    /** @param url The webhook's URL, as given by Discord */
+    public WebhookTransport(HttpClient client, String url)
+    {
+        this.client = client;
+        // Waiting for the message to be created is what makes a success mean it was sent
+        this.uri    = URI.create( url + (url.contains("?") ? "&" : "?") + "wait=true" );
+    }
+
+    /** @param payload The message as a JSON object, as made by {@link #payload} */
+    @Override
+    public void send(String payload, Runnable onSuccess, Consumer<Throwable> onFailure)
+    {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+            .timeout(TIMEOUT)
+            .header("Content-Type", "application/json")
+            .POST( HttpRequest.BodyPublishers.ofString(payload) )
+            .build();
+
+        attempt(request, 0, onSuccess, onFailure);
+    }
+
+    private void attempt(HttpRequest request, int limited,
+                         Runnable onSuccess, Consumer<Throwable> onFailure)
+    {
+        long     wait  = resetAt - System.nanoTime();
+        Executor after = wait > 0
+            ? CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS)
+            : Runnable::run;
+
+        CompletableFuture.runAsync( () -> {}, after )
+            .thenCompose( v -> client.sendAsync( request, HttpResponse.BodyHandlers.ofString() ) )
+            .whenComplete( (response, ex) -> {
+                if (ex != null)
+                {
+                    onFailure.accept( ex instanceof CompletionException && ex.getCause() != null
+                        ? ex.getCause()
+                        : ex );
+                    return;
+                }
+
+                long now  = System.nanoTime();
+                int  code = response.statusCode();
+
+                updateLimit(response, now);
+
+                if (code == 429 && limited < MAX_LIMITED)
+                {
+                    long retry = retryAfter(response);
+
+                    LOG.debug("Rate limited by webhook; retrying in {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(retry) );
+                    resetAt = Math.max(resetAt, now + retry);
+                    attempt(request, limited + 1, onSuccess, onFailure);
+                }
+                else if (code >= 200 && code < 300)
+                    onSuccess.run();
+                else
+                    onFailure.accept( new IOException( "Webhook responded with HTTP " + code
+                        + ": " + response.body() ) );
+            });
+    }
+
+    /** Notes when the limit resets, if the given response used up the last request before then */
+    private void updateLimit(HttpResponse<String> response, long now)
+    {
+        String remaining  = response.headers().firstValue("X-RateLimit-Remaining").orElse(null);
+        String resetAfter = response.headers().firstValue("X-RateLimit-Reset-After").orElse(null);
+
+        if ( remaining == null || resetAfter == null || !remaining.trim().equals("0") )
+            return;
+
+        long reset = seconds(resetAfter);
+
+        if (reset > 0)
+            resetAt = Math.max(resetAt, now + reset);
+    }
+
+    /** @return Nanoseconds to wait before retrying a rate limited request; 1 second if unknown */
+    private static long retryAfter(HttpResponse<String> response)
+    {
+        long wait = seconds( response.headers().firstValue("Retry-After").orElse("") );
+
+        if (wait <= 0)
+        {
+            Matcher match = RETRY_AFTER.matcher( response.body() );
+
+            if ( match.find() )
+                wait = seconds( match.group(1) );
+        }
+
+        return wait > 0
+            ? wait
+            : TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /** @return Given (possibly fractional) seconds in nanoseconds, or 0 if not a number */
+    private static long seconds(String value)
+    {
+        try
+        {
+            return (long) ( Double.parseDouble( value.trim() ) * 1e9 );
+        }
+        catch (NumberFormatException ex)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Makes the JSON body of a webhook message. Only users may be mentioned, so that chat from IRC
+     * can never ping everyone, or a role.
+     *
+     * @param username Name to post the message under, or null for the webhook's own
+     */
+    public static String payload(String username, String content)
+    {
+        StringBuilder json = new StringBuilder("{\"content\":");
+
+        quote(json, content);
+
+        if (username != null)
+            quote( json.append(",\"username\":"), username );
+
+        return json.append(",\"allowed_mentions\":{\"parse\":[\"users\"]}}").toString();
+    }
+
+    private static void quote(StringBuilder json, String text)
+    {
+        json.append('"');
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            switch (c)
+            {
+                case '"':  json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n");  break;
+                case '\r': json.append("\\r");  break;
+                case '\t': json.append("\\t");  break;
+
+                default:
+                    if (c < 0x20)
+                        json.append( String.format("\\u%04x", (int) c) );
+                    else
+                        json.append(c);
+            }
+        }
+
+        json.append('"');
+    }
+}
@@ -0,0 +1,46 @@
+package roycurtis.jdiscordirc.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every benchmark of the bridge's text transformations, reporting throughput along with the
+ * allocation rate from JMH's GC profiler. Run from the project directory with:
+ *
+ * <pre>
+ * mvn test-compile exec:java
+ * </pre>
+ *
+ * Any arguments are taken as regexes of the benchmarks to run instead of all, e.g. by adding
+ * "-Dexec.args=Emoji".
+ */
+public class Benchmarks
+{
+    public static void main(String[] args) throws RunnerException
+    {
+        OptionsBuilder options = new OptionsBuilder();
+
+        if (args.length == 0)
+            options.include( Benchmarks.class.getPackage().getName() + "\\..*Benchmark" );
+        else for (String pattern : args)
+            options.include(pattern);
+
+        Options built = options
+            .addProfiler(GCProfiler.class)
+            .timeUnit(TimeUnit.MICROSECONDS)
+            .warmupIterations(3)
+            .warmupTime( TimeValue.seconds(1) )
+            .measurementIterations(5)
+            .measurementTime( TimeValue.seconds(1) )
+            .forks(1)
+            .build();
+
+        new Runner(built).run();
+    }
+}
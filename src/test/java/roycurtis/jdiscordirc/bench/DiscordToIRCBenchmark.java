@@ -0,0 +1,110 @@
+package roycurtis.jdiscordirc.bench;
+
+import com.vdurmont.emoji.EmojiParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import roycurtis.jdiscordirc.util.EmojiTranscoder;
+import roycurtis.jdiscordirc.util.FormatTranscoder;
+import roycurtis.jdiscordirc.util.FormatTranscoder.IRCText;
+import roycurtis.jdiscordirc.util.LinePacker;
+import roycurtis.jdiscordirc.util.Transforms;
+
+import java.util.List;
+
+/**
+ * Stages of a Discord message's way to IRC, as in {@code BridgeManager.onDiscordMessage}: joining
+ * attachments, emoji aliasing, action detection with line splitting, and line packing. Stages
+ * that were originally done otherwise are measured both ways, as is the whole of each path.
+ */
+public class DiscordToIRCBenchmark
+{
+    /** Bytes left of an IRC line for chat, after a typical prefix and nick */
+    private static final int BUDGET = 400;
+
+    private static final EmojiTranscoder TRANSCODER = new EmojiTranscoder();
+
+    //<editor-fold desc="Stages">
+    @Benchmark
+    public String attachmentsOriginal(Inputs in)
+    {
+        return joinAttachments(in.discord, in.attachments);
+    }
+
+    @Benchmark
+    public String attachments(Inputs in)
+    {
+        return Transforms.withAttachments(in.discord, in.attachments);
+    }
+
+    @Benchmark
+    public String emojiParser(Inputs in)
+    {
+        return EmojiParser.parseToAliases(in.discord);
+    }
+
+    @Benchmark
+    public String emojiTranscoder(Inputs in)
+    {
+        return TRANSCODER.toAliases(in.discord);
+    }
+
+    @Benchmark
+    public String[] linesOriginal(Inputs in)
+    {
+        return splitLines(in.discord);
+    }
+
+    @Benchmark
+    public IRCText formatTranscoder(Inputs in)
+    {
+        return FormatTranscoder.toIRC(in.discord);
+    }
+
+    @Benchmark
+    public List<String> linePacker(Inputs in)
+    {
+        return LinePacker.pack(in.discord.split("\n"), BUDGET, " | ");
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Whole path">
+    @Benchmark
+    public String[] pathOriginal(Inputs in)
+    {
+        String msg = joinAttachments(in.discord, in.attachments);
+
+        return splitLines( EmojiParser.parseToAliases( msg.trim() ) );
+    }
+
+    @Benchmark
+    public List<String> path(Inputs in)
+    {
+        String  msg = Transforms.withAttachments(in.discord, in.attachments);
+        IRCText irc = FormatTranscoder.toIRC( TRANSCODER.toAliases(msg) );
+
+        return LinePacker.pack(irc.lines, BUDGET, " | ");
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Original code">
+    /** Attachments, as originally joined to a message */
+    private static String joinAttachments(String content, List<String> urls)
+    {
+        String   msg      = content.trim();
+        String[] attaches = urls.toArray( new String[0] );
+
+        if (attaches.length > 0)
+            msg += " " + String.join(" ", attaches);
+
+        return msg;
+    }
+
+    /** Action detection and line splitting, as originally done */
+    private static String[] splitLines(String msg)
+    {
+        if ( msg.startsWith("_") && msg.endsWith("_") )
+            msg = msg.substring( 1, msg.length() - 1 );
+
+        return msg.split("\n");
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,24 @@
+package roycurtis.jdiscordirc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.pircbotx.Colors;
+import roycurtis.jdiscordirc.util.FormatTranscoder;
+
+/**
+ * IRC formatting on an IRC line's way to Discord, as in {@code IRCManager.onMessage}: originally
+ * stripped with PircBotX's regexes, and now transcoded into markdown in a single pass.
+ */
+public class IRCToDiscordBenchmark
+{
+    @Benchmark
+    public String colorsRemoved(Inputs in)
+    {
+        return Colors.removeFormattingAndColors(in.irc);
+    }
+
+    @Benchmark
+    public String formatTranscoder(Inputs in)
+    {
+        return FormatTranscoder.toDiscord(in.irc);
+    }
+}
@@ -0,0 +1,147 @@
+package roycurtis.jdiscordirc.bench;
+
+import com.vdurmont.emoji.Emoji;
+import com.vdurmont.emoji.EmojiManager;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated chat for the benchmarks, the same on every run. Each kind of input comes as a Discord
+ * message, as typed, and as an IRC line with formatting codes.
+ */
+@State(Scope.Benchmark)
+public class Inputs
+{
+    /** Kinds of chat the bridge sees */
+    public enum Kind
+    {
+        /** A few words, as most chat is */
+        SHORT,
+        /** Several long lines pasted at once */
+        PASTE,
+        /** Words mixed with plenty of emoji */
+        EMOJI,
+        /** Words mixed with plenty of "@name" mentions */
+        MENTIONS
+    }
+
+    /** How many members the guild has, for mentions to be looked up among */
+    public static final int MEMBERS = 2000;
+
+    private static final String[] WORDS = {
+        "the", "server", "is", "back", "up", "now", "anyone", "want", "to", "play", "later",
+        "tonight", "lol", "yeah", "I", "think", "so", "check", "this", "out", "https://example.com",
+        "nice", "thanks", "brb", "what", "happened", "restart", "again", "sounds", "good"
+    };
+    private static final String[] IRC_CODES = {
+        "\u0002", "\u001D", "\u001F", "\u000F", "\u000304", "\u000312,01", "\u0003"
+    };
+
+    @Param({"SHORT", "PASTE", "EMOJI", "MENTIONS"})
+    public Kind kind;
+
+    /** Discord message, as typed */
+    public String       discord;
+    /** URLs of the Discord message's attachments */
+    public List<String> attachments;
+    /** IRC line, with formatting codes */
+    public String       irc;
+    /** Effective names of the guild's members, with a few shared by more than one */
+    public List<String> members;
+
+    @Setup
+    public void generate()
+    {
+        Random random = new Random( kind.ordinal() );
+
+        members = new ArrayList<>();
+
+        for (int i = 0; i < MEMBERS; i++)
+            members.add( i % 100 == 0 ? "Twin" : "user" + i );
+
+        attachments = kind == Kind.PASTE
+            ? List.of("https://cdn.discordapp.com/attachments/1/2/paste.txt")
+            : Collections.emptyList();
+
+        switch (kind)
+        {
+            case SHORT:
+                discord = sentence(random, 8, 0, 0);
+                irc     = format(random, discord);
+                break;
+
+            case PASTE:
+                StringBuilder paste = new StringBuilder();
+
+                for (int i = 0; i < 3; i++)
+                    paste.append(i == 0 ? "" : "\n").append( sentence(random, 80, 0, 0) );
+
+                discord = paste.toString();
+                irc     = format( random, discord.replace('\n', ' ') );
+                break;
+
+            case EMOJI:
+                discord = sentence(random, 20, 3, 0);
+                irc     = format(random, discord);
+                break;
+
+            case MENTIONS:
+                discord = sentence(random, 20, 0, 3);
+                irc     = format(random, discord);
+                break;
+        }
+    }
+
+    /**
+     * @param words   How many words the sentence has
+     * @param emoji   One in how many words is followed by an emoji, or 0 for none
+     * @param mention One in how many words is a mention, or 0 for none
+     */
+    private String sentence(Random random, int words, int emoji, int mention)
+    {
+        List<Emoji>   all = new ArrayList<>( EmojiManager.getAll() );
+        StringBuilder out = new StringBuilder();
+
+        for (int i = 0; i < words; i++)
+        {
+            if (i > 0)
+                out.append(' ');
+
+            if ( mention > 0 && random.nextInt(mention) == 0 )
+                out.append('@').append( members.get( random.nextInt(MEMBERS) ) );
+            else
+                out.append( WORDS[ random.nextInt(WORDS.length) ] );
+
+            if ( emoji > 0 && random.nextInt(emoji) == 0 )
+                out.append(' ').append( all.get( random.nextInt( all.size() ) ).getUnicode() );
+        }
+
+        return out.toString();
+    }
+
+    /** @return Given text with IRC formatting codes sprinkled between its words */
+    private static String format(Random random, String text)
+    {
+        StringBuilder out = new StringBuilder();
+
+        for ( String word : text.split(" ") )
+        {
+            if (out.length() > 0)
+                out.append(' ');
+
+            if (random.nextInt(4) == 0)
+                out.append( IRC_CODES[ random.nextInt(IRC_CODES.length) ] );
+
+            out.append(word);
+        }
+
+        return out.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package roycurtis.jdiscordirc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import roycurtis.jdiscordirc.util.Transforms;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Mention rewriting, as in {@code DiscordManager.sendMessageWithMentions}. Originally each mention
+ * was resolved by scanning every member of the guild by name, as JDA's
+ * {@code getMembersByEffectiveName} does; now it is a lookup in {@code MemberIndex}. Both are
+ * modelled over plain names, so that no live guild is needed.
+ */
+@State(Scope.Benchmark)
+public class MentionBenchmark
+{
+    /** Lower-cased name -> mention, or null if the name is shared; as MemberIndex keeps them */
+    private final Map<String, String> index = new HashMap<>();
+
+    @Setup
+    public void buildIndex(Inputs in)
+    {
+        for (int i = 0; i < in.members.size(); i++)
+        {
+            String key = in.members.get(i).toLowerCase(Locale.ROOT);
+
+            index.put( key, index.containsKey(key) ? null : "<@" + i + ">" );
+        }
+    }
+
+    @Benchmark
+    public String mentionsScanned(Inputs in)
+    {
+        return Transforms.rewriteMentions( in.discord, name -> {
+            String mention = null;
+            int    matches = 0;
+
+            for (int i = 0; i < in.members.size(); i++)
+                if ( in.members.get(i).equalsIgnoreCase(name) )
+                {
+                    mention = "<@" + i + ">";
+                    matches++;
+                }
+
+            return matches == 1
+                ? mention
+                : null;
+        });
+    }
+
+    @Benchmark
+    public String mentionsIndexed(Inputs in)
+    {
+        return Transforms.rewriteMentions( in.discord,
+            name -> index.get( name.toLowerCase(Locale.ROOT) ) );
+    }
+}
@@ -0,0 +1,196 @@
+package roycurtis.jdiscordirc.managers;
+
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.ChannelType;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.SelfUser;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.core.managers.Presence;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-ins for JDA's client and entities, for one guild with one text channel. They answer only
+ * what the bridge asks: chat from Discord's text and attachments, the channel and member it came
+ * from, and the channel's members for mentions. Discord's gateway has no stand-in, so tests hand
+ * the bridge chat as JDA would.
+ *
+ * Neither has Discord's REST API. Chat the bot posts itself (e.g. notices, and IRC joins and quits)
+ * is recorded as it is handed over, but then fails to send; chat from IRC is meant to go by webhook
+ * instead, to a {@link StandInWebhook}.
+ */
+class FakeDiscord
+{
+    private final Map<String, Member>   members = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> posts   = new LinkedBlockingQueue<>();
+    private final Guild                 guild;
+    private final TextChannel           channel;
+    private final JDA                   client;
+
+    FakeDiscord(String channelId)
+    {
+        SelfUser self     = fake( SelfUser.class, "self", (method, args) -> {
+            switch (method)
+            {
+                case "getName": return "Bridge";
+                case "getId":   return "0";
+                default:        return null;
+            }
+        });
+        Presence presence = fake( Presence.class, "presence", (method, args) -> null );
+
+        this.guild   = fake( Guild.class, "guild", (method, args) -> {
+            switch (method)
+            {
+                case "getId":      return "1";
+                case "getMember":  return members.get( ((User) args[0]).getName() );
+                case "getMembers": return new ArrayList<>( members.values() );
+                default:           return null;
+            }
+        });
+        this.channel = fake( TextChannel.class, channelId, (method, args) -> {
+            switch (method)
+            {
+                case "getId":      return channelId;
+                case "getName":    return "bridge";
+                case "getType":    return ChannelType.TEXT;
+                case "getGuild":   return guild;
+                case "getMembers": return new ArrayList<>( members.values() );
+                case "canTalk":    return true;
+
+                case "sendMessage":
+                    posts.add( String.valueOf(args[0]) );
+                    return null;
+
+                default: return null;
+            }
+        });
+        this.client  = fake( JDA.class, "client", (method, args) -> {
+            switch (method)
+            {
+                case "getSelfUser":    return self;
+                case "getPresence":    return presence;
+                case "getGuilds":      return List.of(guild);
+                case "getTextChannels":
+                    return List.of(channel);
+                case "getTextChannelById":
+                    return channelId.equals(args[0])
+                        ? channel
+                        : null;
+                case "getStatus":      return JDA.Status.CONNECTED;
+                default:               return null;
+            }
+        });
+    }
+
+    /** @return Client to hand the Discord manager, in place of logging in */
+    JDA getClient()
+    {
+        return client;
+    }
+
+    /** @return Next chat the bot tried to post itself, or null if none within the timeout */
+    String takePost(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return posts.poll(timeout, unit);
+    }
+
+    /**
+     * @return Event of a plain message, without attachments, by the member of the given name; the
+     *         member is made up the first time it is named
+     */
+    MessageReceivedEvent message(String who, String text)
+    {
+        Member  member  = members.computeIfAbsent(who, this::member);
+        User    user    = member.getUser();
+        Message message = fake( Message.class, text, (method, args) -> {
+            switch (method)
+            {
+                case "getId":          return "200";
+                case "getContent":
+                case "getRawContent":
+                case "getStrippedContent":
+                    return text;
+                case "getAttachments": return Collections.emptyList();
+                case "getAuthor":      return user;
+                case "getChannel":
+                case "getTextChannel":
+                    return channel;
+                case "getGuild":       return guild;
+                case "getChannelType": return ChannelType.TEXT;
+                case "isFromType":     return args[0] == ChannelType.TEXT;
+                default:               return null;
+            }
+        });
+
+        return new MessageReceivedEvent(client, 0, message);
+    }
+
+    private Member member(String who)
+    {
+        String id   = String.valueOf( 100 + members.size() );
+        User   user = fake( User.class, who, (method, args) -> {
+            switch (method)
+            {
+                case "getName": return who;
+                case "getId":   return id;
+                default:        return null;
+            }
+        });
+
+        return fake( Member.class, who, (method, args) -> {
+            switch (method)
+            {
+                case "getEffectiveName": return who;
+                case "getUser":          return user;
+                case "getGuild":         return guild;
+                case "getAsMention":     return "<@" + id + ">";
+                case "hasPermission":    return true;
+                default:                 return null;
+            }
+        });
+    }
+
+    /** Answers a call to a stand-in, by name of the method called */
+    private interface Answers
+    {
+        Object answer(String method, Object[] args);
+    }
+
+    /** @return Stand-in for the given interface; whatever it does not answer is null, 0 or false */
+    private static <T> T fake(Class<T> type, String description, Answers answers)
+    {
+        Object proxy = Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type },
+            (self, method, args) -> {
+                switch ( method.getName() )
+                {
+                    case "equals":   return self == args[0];
+                    case "hashCode": return System.identityHashCode(self);
+                    case "toString": return description;
+                }
+
+                Object   answer  = answers.answer(method.getName(), args);
+                Class<?> returns = method.getReturnType();
+
+                // Primitives cannot be null, so get their zero value instead
+                return answer == null && returns.isPrimitive() && returns != void.class
+                    ? Array.get( Array.newInstance(returns, 1), 0 )
+                    : answer;
+            });
+
+        return type.cast(proxy);
+    }
+}
@@ -0,0 +1,424 @@
+package roycurtis.jdiscordirc.managers;
+
+import net.dv8tion.jda.core.events.ReadyEvent;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+import roycurtis.jdiscordirc.managers.StandInIRCServer.Received;
+import roycurtis.jdiscordirc.managers.StandInWebhook.Posted;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static roycurtis.jdiscordirc.JDiscordIRC.BRIDGE;
+import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
+import static roycurtis.jdiscordirc.JDiscordIRC.DISCORD;
+import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+import static roycurtis.jdiscordirc.JDiscordIRC.METRICS;
+
+/**
+ * Load tests of the whole bridge, between a stand-in IRC server and a stand-in Discord: chat is
+ * sent both ways under a few profiles of traffic, and its latency and throughput are measured as it
+ * arrives, then checked against what the metrics report. Chat from Discord is handed to the
+ * Discord manager as JDA would; chat from IRC is posted to a stand-in webhook.
+ *
+ * The profiles run in order, on one bridge: steady chat, bursts, a netsplit, and reconnect flaps.
+ * Each prints its latencies and throughput.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class LoadTest
+{
+    private static final String CHANNEL    = "#load";
+    private static final String CHANNEL_ID = "1234";
+
+    private static final long TIMEOUT_MS  = 10000;
+    /** Most a steady trip's 99th percentile may take, on the loopback interface */
+    private static final long P99_MS      = 1000;
+    /** How much later than measured here a trip may be reported, for its histogram's precision */
+    private static final long SLACK_MS    = 5;
+    private static final int  STORM_MS    = 1000;
+
+    private static final Pattern BRIDGED = Pattern.compile(
+        "jdiscordirc_bridged_total\\{direction=\"(\\w+)\"} (\\d+)");
+    private static final Pattern LATENCY = Pattern.compile(
+        "jdiscordirc_latency_seconds\\{direction=\"(\\w+)\",event=\"chat\",stage=\"end_to_end\","
+            + "quantile=\"([0-9.]+)\"} ([0-9.]+)");
+
+    @TempDir
+    static Path dir;
+
+    private static StandInIRCServer irc;
+    private static StandInWebhook   webhook;
+    private static FakeDiscord      discord;
+
+    @BeforeAll
+    public static void startBridge() throws Exception
+    {
+        irc     = new StandInIRCServer();
+        webhook = new StandInWebhook();
+        discord = new FakeDiscord(CHANNEL_ID);
+
+        CONFIG.init( writeConfig() );
+        BRIDGE.init();
+        DISCORD.init( discord.getClient() );
+        DISCORD.onReady( new ReadyEvent( discord.getClient(), 0 ) );
+        IRC.init();
+
+        assertTrue( awaitJoined(true), "Did not join " + CHANNEL );
+    }
+
+    @AfterAll
+    public static void stopBridge() throws Exception
+    {
+        BRIDGE.shutdown();
+        webhook.close();
+        irc.close();
+    }
+
+    /** Chat at a steady rate both ways; latency stays low, and is reported as measured */
+    @Test
+    @Order(1)
+    public void steadyChat() throws Exception
+    {
+        Trips[] trips = chat("steady", 200, 5);
+
+        for (Trips trip : trips)
+        {
+            assertTrue( trip.quantile(0.99) < TimeUnit.MILLISECONDS.toNanos(P99_MS),
+                trip.toString() );
+
+            // The bridge times only part of each trip, so never reports more than measured here
+            for ( double quantile : new double[] {0.5, 0.99} )
+                assertTrue( latency(trip.direction, quantile)
+                        <= trip.quantile(quantile) + TimeUnit.MILLISECONDS.toNanos(SLACK_MS),
+                    trip.direction + " p" + quantile + " reported as "
+                        + latency(trip.direction, quantile) + " ns; " + trip );
+        }
+
+        // Rates are of whole seconds, so wait for the last one to end
+        Thread.sleep(1000);
+        assertTrue( METRICS.getIRCBridgedPerSecond() > 0 );
+        assertTrue( METRICS.getDiscordBridgedPerSecond() > 0 );
+    }
+
+    /** Chat all at once both ways; none is dropped, and all of it arrives in order */
+    @Test
+    @Order(2)
+    public void bursts() throws Exception
+    {
+        long dropped = METRICS.getDiscordLaneDropped() + METRICS.getIRCLaneDropped();
+
+        for (int i = 0; i < 3; i++)
+            chat("burst " + i, 300, 0);
+
+        assertEquals( dropped, METRICS.getDiscordLaneDropped() + METRICS.getIRCLaneDropped() );
+    }
+
+    /** Chat during a netsplit keeps flowing, while the split's quits make a single summary */
+    @Test
+    @Order(3)
+    public void netsplit() throws Exception
+    {
+        int users = 30;
+
+        for (int i = 0; i < users; i++)
+            irc.join("user" + i, CHANNEL);
+
+        // Lets the joins' own storm be summarized, before the split
+        Thread.sleep(STORM_MS * 2);
+        while ( discord.takePost(0, TimeUnit.MILLISECONDS) != null );
+
+        Trips[] trips = chat( "split", users, 5,
+            i -> irc.quit("user" + i, "hub.stand.in leaf.stand.in") );
+
+        for (Trips trip : trips)
+            assertTrue( trip.quantile(0.99) < TimeUnit.MILLISECONDS.toNanos(P99_MS),
+                trip.toString() );
+
+        String summary = null;
+        long   until   = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+
+        while (summary == null && System.nanoTime() - until < 0)
+        {
+            String post = discord.takePost(100, TimeUnit.MILLISECONDS);
+
+            assertFalse( post != null && post.contains("quit the server"),
+                "Quit posted by itself: " + post );
+
+            if ( post != null && post.contains("quit") )
+                summary = post;
+        }
+
+        assertNotNull(summary, "Netsplit was not summarized");
+        assertTrue( summary.contains(users + " users quit (netsplit"), summary );
+    }
+
+    /** Chat from Discord while IRC is down is held, and arrives in order once reconnected */
+    @Test
+    @Order(4)
+    public void reconnectFlaps() throws Exception
+    {
+        int  flaps      = 3;
+        int  held       = 20;
+        long reconnects = METRICS.getIRCReconnects();
+
+        for (int flap = 0; flap < flaps; flap++)
+        {
+            irc.drop();
+            assertTrue( awaitJoined(false), "Did not notice the connection drop" );
+
+            long[] sent = new long[held];
+
+            for (int i = 0; i < held; i++)
+            {
+                sent[i] = System.nanoTime();
+                DISCORD.onMessageReceived( discord.message("alice", "flap " + flap + " " + i) );
+            }
+
+            irc.reopen();
+            assertTrue( awaitJoined(true), "Did not rejoin after flap " + flap );
+
+            long[] arrived = arrivedOnIRC("flap " + flap, held);
+
+            System.out.println( new Trips("to_irc", "flap " + flap, sent, arrived) );
+        }
+
+        assertEquals( reconnects + flaps, METRICS.getIRCReconnects() );
+    }
+
+    //<editor-fold desc="Traffic">
+    /** Sends chat both ways, with no extra events */
+    private static Trips[] chat(String name, int count, long gapMs) throws Exception
+    {
+        return chat(name, count, gapMs, i -> {});
+    }
+
+    /**
+     * Sends the given amount of chat each way, alternating sides, then waits for all of it to
+     * arrive in order.
+     *
+     * @param gapMs Milliseconds to wait between each pair of messages, or 0 to send all at once
+     * @param also  Done along with each pair, e.g. to make other events on IRC
+     * @return Trips towards IRC, then towards Discord
+     */
+    private static Trips[] chat(String name, int count, long gapMs, Step also) throws Exception
+    {
+        long[] toIRC     = new long[count];
+        long[] toDiscord = new long[count];
+        long   bridged   = bridged("to_irc") + bridged("to_discord");
+
+        for (int i = 0; i < count; i++)
+        {
+            toIRC[i] = System.nanoTime();
+            DISCORD.onMessageReceived( discord.message("alice", name + " " + i) );
+
+            toDiscord[i] = System.nanoTime();
+            irc.say("bob", CHANNEL, name + " " + i);
+
+            also.run(i);
+
+            if (gapMs > 0)
+                Thread.sleep(gapMs);
+        }
+
+        Trips[] trips = {
+            new Trips( "to_irc", name, toIRC, arrivedOnIRC(name, count) ),
+            new Trips( "to_discord", name, toDiscord, arrivedOnDiscord(name, count) )
+        };
+
+        for (Trips trip : trips)
+            System.out.println(trip);
+
+        // Each message counts as bridged once sent, which may be just after it arrived
+        assertTrue( await( () -> bridged("to_irc") + bridged("to_discord"), bridged + 2 * count ),
+            "Not every message was counted as bridged" );
+
+        return trips;
+    }
+
+    /** @return When each of the given messages arrived on IRC, after checking they are in order */
+    private static long[] arrivedOnIRC(String name, int count) throws InterruptedException
+    {
+        long[] arrived = new long[count];
+
+        for (int i = 0; i < count; )
+        {
+            Received line = irc.take(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            assertNotNull(line, "Only " + i + " of " + name + " reached IRC");
+
+            // Skips the bridge's own notices, e.g. of reconnecting
+            if ( line.text.startsWith("•••") )
+                continue;
+
+            assertEquals( "<alice> " + name + " " + i, line.text );
+            arrived[i++] = line.at;
+        }
+
+        return arrived;
+    }
+
+    /** @return When each of the given messages arrived on Discord, after checking their order */
+    private static long[] arrivedOnDiscord(String name, int count) throws InterruptedException
+    {
+        long[] arrived = new long[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            Posted post = webhook.take(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            assertNotNull(post, "Only " + i + " of " + name + " reached Discord");
+            assertEquals( "bob", post.username );
+            assertEquals( name + " " + i, post.content );
+            arrived[i] = post.at;
+        }
+
+        return arrived;
+    }
+
+    /** Something done along with each message sent */
+    private interface Step
+    {
+        void run(int i) throws Exception;
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Setup and metrics">
+    private static File writeConfig() throws Exception
+    {
+        Path config = dir.resolve("config.properties");
+
+        Files.write( config, List.of(
+            "discord.token = unused",
+            "discord.url = http://localhost",
+            "discord.channel = " + CHANNEL_ID,
+            "discord.webhooks = " + CHANNEL_ID + " -> " + webhook.getUrl(),
+            "discord.coalesce = 0",
+            "discord.retries = 0",
+            "discord.sendBacklog = 1000",
+            "irc.server = " + irc.getAddress(),
+            "irc.lastServer =",
+            "irc.channel = " + CHANNEL,
+            "irc.nickname = Bridge",
+            "irc.username = bridge",
+            "irc.realname = Load test",
+            "irc.reconnectDelay = 50",
+            "irc.reconnectMaxDelay = 200",
+            "irc.floodBurst = 1000",
+            "irc.floodInterval = 1",
+            "irc.sendBacklog = 1000",
+            "bridge.queueSize = 5000",
+            "bridge.stormWindow = " + STORM_MS,
+            "bridge.outbox = " + dir.resolve("outbox"),
+            "bridge.transcript ="
+        ), StandardCharsets.UTF_8 );
+
+        return config.toFile();
+    }
+
+    /** @return True once IRC has joined (or left) the bridged channel, or false if it timed out */
+    private static boolean awaitJoined(boolean joined) throws InterruptedException
+    {
+        return await( () -> IRC.isAvailable(CHANNEL) == joined ? 1 : 0, 1 );
+    }
+
+    /** @return True once the given value reaches the given target, or false if it timed out */
+    private static boolean await(LongSupplier value, long target) throws InterruptedException
+    {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+
+        while (value.getAsLong() < target)
+        {
+            if (System.nanoTime() - until > 0)
+                return false;
+
+            Thread.sleep(1);
+        }
+
+        return true;
+    }
+
+    /** @return How many messages the metrics report as bridged in the given direction */
+    private static long bridged(String direction)
+    {
+        Matcher match = BRIDGED.matcher( METRICS.getReport() );
+
+        while ( match.find() )
+            if ( match.group(1).equals(direction) )
+                return Long.parseLong( match.group(2) );
+
+        return 0;
+    }
+
+    /** @return Given quantile of trips in the given direction, as reported, in nanoseconds */
+    private static long latency(String direction, double quantile)
+    {
+        Matcher match = LATENCY.matcher( METRICS.getReport() );
+
+        while ( match.find() )
+            if ( match.group(1).equals(direction)
+                && Double.parseDouble( match.group(2) ) == quantile )
+                return (long) ( Double.parseDouble( match.group(3) ) * 1e9 );
+
+        fail("No " + quantile + " quantile reported for " + direction);
+        return 0;
+    }
+    //</editor-fold>
+
+    /** Latencies of one direction's chat, as measured from sending to arrival */
+    private static class Trips
+    {
+        final String direction;
+        final String name;
+        final long[] sorted;
+        /** Messages per second, from the first being sent until the last arrived */
+        final double perSecond;
+
+        Trips(String direction, String name, long[] sent, long[] arrived)
+        {
+            this.direction = direction;
+            this.name      = name;
+            this.sorted    = new long[sent.length];
+
+            for (int i = 0; i < sent.length; i++)
+                sorted[i] = arrived[i] - sent[i];
+
+            Arrays.sort(sorted);
+
+            long took = arrived[arrived.length - 1] - sent[0];
+
+            this.perSecond = sent.length / (took / 1e9);
+        }
+
+        long quantile(double quantile)
+        {
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+
+            return sorted[ Math.max(0, Math.min(index, sorted.length - 1)) ];
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( Locale.ROOT,
+                "%s, %s: %d messages; p50 %.2f ms, p99 %.2f ms, p999 %.2f ms; %.0f messages/s",
+                name, direction, sorted.length,
+                quantile(0.5) / 1e6, quantile(0.99) / 1e6, quantile(0.999) / 1e6, perSecond
+            );
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package roycurtis.jdiscordirc.managers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Just enough of an IRC server, on the loopback interface, for the bridge to register with it, join
+ * channels and chat. One client is served at a time. Chat the client sends to a channel is queued
+ * for the test to take, along with when it arrived; chat, joins and quits of other users are made
+ * up by the test. The test may also drop the client, and hold off its reconnecting for a while.
+ */
+class StandInIRCServer implements AutoCloseable
+{
+    static final String HOST = "stand.in";
+
+    private final ServerSocket            listener;
+    private final Thread                  acceptor;
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+
+    private volatile Writer         out;
+    private volatile Socket         client;
+    private volatile String         nick;
+    /** Counted down while clients may connect; a fresh latch holds them off */
+    private volatile CountDownLatch open = new CountDownLatch(0);
+
+    StandInIRCServer() throws IOException
+    {
+        listener = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+        acceptor = new Thread(this::serve, "Stand-in IRC server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** @return This server's address, as the bridge's "irc.server" config takes it */
+    String getAddress()
+    {
+        return listener.getInetAddress().getHostAddress() + ":" + listener.getLocalPort();
+    }
+
+    /** Sends chat to the given channel from the given (made up) user */
+    void say(String from, String channel, String text) throws IOException
+    {
+        send(":" + from + "!" + from + "@" + HOST + " PRIVMSG " + channel + " :" + text);
+    }
+
+    /** Makes the given (made up) user join the given channel */
+    void join(String who, String channel) throws IOException
+    {
+        send(":" + who + "!" + who + "@" + HOST + " JOIN :" + channel);
+    }
+
+    /** Makes the given (made up) user quit, e.g. with "a.net b.net" as the reason of a netsplit */
+    void quit(String who, String reason) throws IOException
+    {
+        send(":" + who + "!" + who + "@" + HOST + " QUIT :" + reason);
+    }
+
+    /** Drops the client's connection, and holds off any reconnect until {@link #reopen()} */
+    void drop() throws IOException
+    {
+        open = new CountDownLatch(1);
+
+        Socket current = client;
+
+        if (current != null)
+            current.close();
+    }
+
+    /** Lets the client connect again, after {@link #drop()} */
+    void reopen()
+    {
+        open.countDown();
+    }
+
+    /** @return The next chat sent by the client to a channel, or null if none within the timeout */
+    Received take(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return received.poll(timeout, unit);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        listener.close();
+        acceptor.interrupt();
+        open.countDown();
+    }
+
+    private void serve()
+    {
+        while ( !listener.isClosed() ) try
+        {
+            // A client reconnecting while held off waits in the listener's backlog
+            open.await();
+
+            try ( Socket accepted = listener.accept() )
+            {
+                accepted.setTcpNoDelay(true);
+                client = accepted;
+                out    = new OutputStreamWriter( accepted.getOutputStream(),
+                    StandardCharsets.UTF_8 );
+
+                BufferedReader in = new BufferedReader(
+                    new InputStreamReader( accepted.getInputStream(), StandardCharsets.UTF_8 )
+                );
+
+                for ( String line = in.readLine(); line != null; line = in.readLine() )
+                    handle(line);
+            }
+        }
+        catch (IOException ignored)
+        {
+            // Client gone, or server closed
+        }
+        catch (InterruptedException ex)
+        {
+            return;
+        }
+    }
+
+    private void handle(String line) throws IOException
+    {
+        String[] parts   = line.split(" ", 3);
+        String   command = parts[0].toUpperCase(Locale.ROOT);
+
+        switch (command)
+        {
+            case "NICK":
+                nick = parts[1];
+                break;
+
+            case "USER":
+                send(":" + HOST + " 001 " + nick + " :Welcome to the stand-in network " + nick);
+                send(":" + HOST + " 002 " + nick + " :Your host is " + HOST);
+                send(":" + HOST + " 003 " + nick + " :This server was created just now");
+                send(":" + HOST + " 004 " + nick + " " + HOST + " standin-1 iow ov");
+                send(":" + HOST + " 005 " + nick
+                    + " CHANTYPES=# PREFIX=(ov)@+ NETWORK=StandIn :are supported by this server");
+                send(":" + HOST + " 376 " + nick + " :End of /MOTD command.");
+                break;
+
+            case "PING":
+                send(":" + HOST + " PONG " + HOST + " " + parts[1]);
+                break;
+
+            case "JOIN":
+                String channel = parts[1];
+
+                send(":" + nick + "!" + nick + "@" + HOST + " JOIN :" + channel);
+                send(":" + HOST + " 353 " + nick + " = " + channel + " :@" + nick);
+                send(":" + HOST + " 366 " + nick + " " + channel + " :End of /NAMES list.");
+                break;
+
+            case "PRIVMSG":
+                String text = parts[2].startsWith(":")
+                    ? parts[2].substring(1)
+                    : parts[2];
+
+                received.add( new Received( parts[1], text, System.nanoTime() ) );
+                break;
+
+            case "QUIT":
+                send("ERROR :Closing link");
+                break;
+
+            default:
+                // Anything else (e.g. CAP, WHO, MODE) is ignored, as by a minimal server
+        }
+    }
+
+    private synchronized void send(String line) throws IOException
+    {
+        Writer writer = out;
+
+        if (writer == null)
+            throw new IOException("No client connected");
+
+        writer.write(line + "\r\n");
+        writer.flush();
+    }
+
+    /** Chat received from the client */
+    static class Received
+    {
+        final String target;
+        final String text;
+        /** When it arrived, in {@link System#nanoTime()} terms */
+        final long   at;
+
+        Received(String target, String text, long at)
+        {
+            this.target = target;
+            this.text   = text;
+            this.at     = at;
+        }
+    }
+}
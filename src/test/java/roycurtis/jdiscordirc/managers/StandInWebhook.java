@@ -0,0 +1,114 @@
+package roycurtis.jdiscordirc.managers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for a Discord webhook, on the loopback interface. Every message posted to it is taken
+ * as Discord would take it, and queued for the test along with when it arrived.
+ */
+class StandInWebhook implements AutoCloseable
+{
+    private static final String  PATH     = "/api/webhooks/1/stand-in";
+    private static final Pattern CONTENT  = field("content");
+    private static final Pattern USERNAME = field("username");
+
+    private final HttpServer            server;
+    private final BlockingQueue<Posted> posted = new LinkedBlockingQueue<>();
+
+    StandInWebhook() throws IOException
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0
+        );
+        server.createContext(PATH, this::serve);
+        server.start();
+    }
+
+    /** @return This webhook's URL, as the bridge's "discord.webhooks" config takes it */
+    String getUrl()
+    {
+        InetSocketAddress address = server.getAddress();
+
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + PATH;
+    }
+
+    /** @return The next message posted, or null if none within the timeout */
+    Posted take(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return posted.poll(timeout, unit);
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String json;
+
+        try ( InputStream in = exchange.getRequestBody() )
+        {
+            json = new String( in.readAllBytes(), StandardCharsets.UTF_8 );
+        }
+
+        long   at   = System.nanoTime();
+        byte[] body = "{\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8);
+
+        posted.add( new Posted( value(USERNAME, json), value(CONTENT, json), at ) );
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try ( OutputStream out = exchange.getResponseBody() )
+        {
+            out.write(body);
+        }
+    }
+
+    private static Pattern field(String name)
+    {
+        return Pattern.compile("\"" + name + "\":\"((?:[^\"\\\\]|\\\\.)*)\"");
+    }
+
+    /** @return Given string field of the given JSON, unescaped, or null if missing */
+    private static String value(Pattern field, String json)
+    {
+        Matcher match = field.matcher(json);
+
+        return match.find()
+            ? match.group(1).replace("\\n", "\n").replace("\\\"", "\"").replace("\\\\", "\\")
+            : null;
+    }
+
+    /** Message posted to the webhook */
+    static class Posted
+    {
+        /** Name the message was posted under, or null for the webhook's own */
+        final String username;
+        final String content;
+        /** When it arrived, in {@link System#nanoTime()} terms */
+        final long   at;
+
+        Posted(String username, String content, long at)
+        {
+            this.username = username;
+            this.content  = content;
+            this.at       = at;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package roycurtis.jdiscordirc.managers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import roycurtis.jdiscordirc.managers.StandInIRCServer.Received;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static roycurtis.jdiscordirc.JDiscordIRC.BRIDGE;
+import static roycurtis.jdiscordirc.JDiscordIRC.CONFIG;
+import static roycurtis.jdiscordirc.JDiscordIRC.IRC;
+import static roycurtis.jdiscordirc.JDiscordIRC.METRICS;
+
+/**
+ * Starts the bridge's IRC side against a stand-in server, and times how long it takes before chat
+ * from Discord reaches the channel. Discord's gateway has no stand-in, so its side is not started;
+ * the chat is handed to the bridge as JDA would, once IRC has joined.
+ */
+public class StartupTest
+{
+    private static final String CHANNEL = "#bridge";
+    private static final String DISCORD = "1234";
+
+    /** How long the bridge may take to join and send its first line, against a local server */
+    private static final long LIMIT_MS = 5000;
+
+    private static final Pattern MILESTONE =
+        Pattern.compile("jdiscordirc_startup_seconds\\{milestone=\"(\\w+)\"} ([0-9.]+)");
+
+    @TempDir
+    Path dir;
+
+    private StandInIRCServer server;
+
+    @AfterEach
+    public void stopServer() throws Exception
+    {
+        BRIDGE.shutdown();
+
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void bridgesFirstMessageSoonAfterStart() throws Exception
+    {
+        server = new StandInIRCServer();
+
+        long start = System.nanoTime();
+
+        CONFIG.init( writeConfig() );
+        BRIDGE.init();
+        IRC.init();
+
+        long joined = awaitJoined(LIMIT_MS);
+
+        assertTrue( joined > 0, "Did not join " + CHANNEL + " within " + LIMIT_MS + " ms" );
+
+        BRIDGE.onDiscordMessage( BRIDGE.getRouteByIRC(CHANNEL),
+            new FakeDiscord(DISCORD).message("alice", "hello") );
+
+        Received first = takeChat(LIMIT_MS);
+
+        assertNotNull(first, "First message did not reach IRC");
+        assertEquals(CHANNEL, first.target);
+        assertTrue( first.text.endsWith("> hello"), first.text );
+
+        long toJoin  = TimeUnit.NANOSECONDS.toMillis(joined - start);
+        long toFirst = TimeUnit.NANOSECONDS.toMillis(first.at - start);
+
+        System.out.println("Joined after " + toJoin + " ms; first message after " + toFirst
+            + " ms");
+        assertTrue(toFirst < LIMIT_MS, "First message took " + toFirst + " ms");
+
+        // Each milestone of the IRC side is reported, in the order reached
+        String report = METRICS.getReport();
+
+        assertTrue( milestone(report, "irc_registered") > 0, report );
+        assertTrue( milestone(report, "irc_joined") >= milestone(report, "irc_registered") );
+        assertTrue( milestone(report, "first_bridged") >= milestone(report, "irc_joined") );
+    }
+
+    private File writeConfig() throws Exception
+    {
+        Path config = dir.resolve("config.properties");
+
+        Files.write( config, List.of(
+            "irc.server = " + server.getAddress(),
+            "irc.lastServer =",
+            "irc.channel = " + CHANNEL,
+            "irc.nickname = Bridge",
+            "irc.username = bridge",
+            "irc.realname = Startup test",
+            "discord.channel = " + DISCORD,
+            "bridge.outbox =",
+            "bridge.transcript ="
+        ), StandardCharsets.UTF_8 );
+
+        return config.toFile();
+    }
+
+    /** @return When IRC joined the bridged channel, in {@link System#nanoTime()} terms, or 0 */
+    private static long awaitJoined(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        while ( !IRC.isAvailable(CHANNEL) )
+        {
+            if (System.nanoTime() - deadline > 0)
+                return 0;
+
+            Thread.sleep(1);
+        }
+
+        return System.nanoTime();
+    }
+
+    /** @return Next chat the bridge sent to IRC, skipping its own notices, or null if none */
+    private Received takeChat(long timeoutMs) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        while (true)
+        {
+            Received line = server.take( deadline - System.nanoTime(), TimeUnit.NANOSECONDS );
+
+            // e.g. "••• Waiting for connection to Discord...", as Discord is never started
+            if ( line == null || !line.text.startsWith("•••") )
+                return line;
+        }
+    }
+
+    /** @return Seconds from launch to the given milestone, as reported, or -1 if not reported */
+    private static double milestone(String report, String name)
+    {
+        Matcher match = MILESTONE.matcher(report);
+
+        while ( match.find() )
+            if ( match.group(1).equals(name) )
+                return Double.parseDouble( match.group(2) );
+
+        return -1;
+    }
+}
@@ -0,0 +1,89 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatCoalescerTest
+{
+    /** Lines are merged by newlines, keeping when the oldest was received */
+    @Test
+    public void mergesLines()
+    {
+        ChatCoalescer coalescer = new ChatCoalescer(250, 100);
+
+        assertTrue( coalescer.isEmpty() );
+        assertNull( coalescer.add(null, "<alice> hi", 1) );
+        assertNull( coalescer.add(null, "<bob> hello", 2) );
+        assertFalse( coalescer.isEmpty() );
+        assertEquals( 1, coalescer.getReceived() );
+
+        assertEquals( "<alice> hi\n<bob> hello", coalescer.flush() );
+        assertTrue( coalescer.isEmpty() );
+        assertNull( coalescer.flush() );
+    }
+
+    /** A line that would take the merged message over its limit flushes it, and starts the next */
+    @Test
+    public void flushesAtLimit()
+    {
+        ChatCoalescer coalescer = new ChatCoalescer(250, 10);
+
+        assertNull( coalescer.add(null, "12345", 1) );
+        assertNull( coalescer.add(null, "1234", 2) );
+        assertEquals( "12345\n1234", coalescer.add(null, "x", 3) );
+        assertEquals( 3, coalescer.getReceived() );
+        assertEquals( "x", coalescer.flush() );
+    }
+
+    /** Only lines of the same author are merged */
+    @Test
+    public void flushesOnNewAuthor()
+    {
+        ChatCoalescer coalescer = new ChatCoalescer(250, 100);
+
+        assertNull( coalescer.add("alice", "hi", 1) );
+        assertNull( coalescer.add("alice", "again", 2) );
+        assertEquals( "alice", coalescer.getAuthor() );
+
+        assertEquals( "hi\nagain", coalescer.add("bob", "hello", 3) );
+        assertEquals( "bob", coalescer.getAuthor() );
+        assertEquals( "hello", coalescer.add(null, "<carol> hey", 4) );
+        assertNull( coalescer.getAuthor() );
+    }
+
+    /** The deadline runs from the first pending line, and a new window only applies to the next */
+    @Test
+    public void keepsDeadlineOfFirstLine() throws Exception
+    {
+        ChatCoalescer coalescer = new ChatCoalescer(100, 100);
+
+        coalescer.add(null, "first", 1);
+        Thread.sleep(60);
+        coalescer.add(null, "second", 2);
+        coalescer.setWindow(10000);
+
+        long left = coalescer.nanosUntilDeadline();
+
+        assertTrue( left <= TimeUnit.MILLISECONDS.toNanos(40), "Deadline moved: " + left );
+
+        coalescer.flush();
+        coalescer.add(null, "third", 3);
+
+        assertTrue( coalescer.nanosUntilDeadline() > TimeUnit.MILLISECONDS.toNanos(5000) );
+    }
+
+    /** A window of 0 disables merging */
+    @Test
+    public void disabledByZeroWindow()
+    {
+        ChatCoalescer coalescer = new ChatCoalescer(0, 100);
+
+        assertFalse( coalescer.isEnabled() );
+
+        coalescer.setWindow(250);
+        assertTrue( coalescer.isEnabled() );
+    }
+}
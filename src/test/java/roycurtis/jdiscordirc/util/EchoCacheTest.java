@@ -0,0 +1,100 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EchoCacheTest
+{
+    private final EchoCache cache = new EchoCache(64, 60000);
+
+    /** Chat is only an echo if tagged with its author, however reformatted */
+    @Test
+    public void matchesTaggedChatOfSameAuthor()
+    {
+        cache.record("Alice", "lol, *that* was fast");
+
+        assertTrue( cache.contains("<alice> LOL, that was fast") );
+        assertTrue( cache.contains("[Alice]   lol, that was fast") );
+        assertTrue( cache.contains("**<Alice>** lol, _that_ was fast") );
+        assertTrue( cache.contains("\u0002<Alice>\u000F lol, that was fast") );
+    }
+
+    /** A relay may tag chat with its own nick too, ahead of the author's */
+    @Test
+    public void matchesChatTaggedTwice()
+    {
+        cache.record("alice", "lol");
+
+        assertTrue( cache.contains("<relay> <alice> lol") );
+        assertTrue( cache.contains("[relay] [alice] lol") );
+    }
+
+    /** Users typing the same as was just bridged are not echoes */
+    @Test
+    public void ignoresUntaggedChat()
+    {
+        cache.record("alice", "lol");
+
+        assertFalse( cache.contains("lol") );
+        assertFalse( cache.contains("LOL") );
+        assertFalse( cache.contains("alice lol") );
+    }
+
+    @Test
+    public void ignoresChatOfOtherAuthors()
+    {
+        cache.record("alice", "lol");
+
+        assertFalse( cache.contains("<someone> LOL") );
+        assertFalse( cache.contains("<relay> <someone> lol") );
+        assertFalse( cache.contains("<alice> lol!") );
+    }
+
+    /** The author and text are told apart, however the text starts */
+    @Test
+    public void separatesAuthorFromText()
+    {
+        cache.record("alice", "bob lol");
+
+        assertFalse( cache.contains("<alice bob> lol") );
+        assertTrue( cache.contains("<alice> bob lol") );
+    }
+
+    /** Actions relayed as "* nick text", as IRC clients show them */
+    @Test
+    public void matchesActions()
+    {
+        cache.record("alice", "_waves at **everyone**_");
+
+        assertTrue( cache.contains("* alice waves at everyone") );
+        assertTrue( cache.contains("*  Alice  Waves at everyone") );
+        assertFalse( cache.contains("* bob waves at everyone") );
+        assertFalse( cache.contains("alice waves at everyone") );
+    }
+
+    @Test
+    public void forgetsAfterWindow() throws Exception
+    {
+        EchoCache brief = new EchoCache(64, 50);
+
+        brief.record("alice", "lol");
+        assertTrue( brief.contains("<alice> lol") );
+
+        Thread.sleep(100);
+        assertFalse( brief.contains("<alice> lol") );
+    }
+
+    /** A full cache forgets the oldest chat, rather than growing */
+    @Test
+    public void staysBounded()
+    {
+        EchoCache small = new EchoCache(8, 60000);
+
+        for (int i = 0; i < 1000; i++)
+            small.record("alice", "msg " + i);
+
+        assertTrue( small.contains("<alice> msg 999") );
+        assertFalse( small.contains("<alice> msg 0") );
+    }
+}
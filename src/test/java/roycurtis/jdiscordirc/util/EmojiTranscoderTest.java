@@ -0,0 +1,116 @@
+package roycurtis.jdiscordirc.util;
+
+import com.vdurmont.emoji.Emoji;
+import com.vdurmont.emoji.EmojiManager;
+import com.vdurmont.emoji.EmojiParser;
+import com.vdurmont.emoji.Fitzpatrick;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Checks the transcoder against emoji-java's own parser, as the golden output */
+public class EmojiTranscoderTest
+{
+    private static final String          ZWJ        = "\u200D";
+    private static final String          VS16       = "\uFE0F";
+    private static final EmojiTranscoder TRANSCODER = new EmojiTranscoder();
+
+    private final List<String> mismatches = new ArrayList<>();
+
+    /** Every emoji in emoji-java's table, alone, amid text, repeated and with modifiers */
+    @Test
+    public void matchesParserForEveryEmoji()
+    {
+        List<Emoji> all  = new ArrayList<>( EmojiManager.getAll() );
+        int         seen = 0;
+
+        for (Emoji emoji : all)
+        {
+            String unicode = emoji.getUnicode();
+            String next    = all.get( (seen++ + 1) % all.size() ).getUnicode();
+
+            check(unicode);
+            check("hi " + unicode + " there");
+            check(unicode + unicode);
+            check(unicode + VS16 + " ok");
+            check(unicode + ZWJ + next);
+            check("é" + unicode + "日");
+
+            for ( Fitzpatrick skin : Fitzpatrick.values() )
+                check("a" + unicode + skin.unicode + "b");
+        }
+
+        assertMatched();
+    }
+
+    /** Sequences built of several code points, and symbols that may or may not be emoji */
+    @Test
+    public void matchesParserForSequencesAndSymbols()
+    {
+        String[] texts = {
+            // ZWJ sequences: family, rainbow flag, skin toned profession
+            "👨\u200D👩\u200D👧\u200D👦", "🏳\uFE0F\u200D🌈", "👩🏽\u200D💻",
+            // Skin tones, alone and after emoji that do not take them
+            "👍🏽", "👍🏻👍🏿", "🏽", "❤🏽",
+            // Keycaps and regional indicator flags
+            "1\uFE0F\u20E3", "#\u20E3", "*\u20E3", "🇬🇧🇫🇷", "🇬",
+            // BMP symbols, with and without variation selectors
+            "©", "®", "™", "↔", "↔\uFE0F", "☀", "☀\uFE0F", "✂", "⌚", "♥\uFE0E", "〰",
+            // Non-ASCII text with no emoji at all
+            "café", "日本語", "Ωmega", "é", " ",
+            // Lone surrogates, which are not code points of their own
+            "\uD83D", "x\uDE00y", "\uD83D😀"
+        };
+
+        for (String text : texts)
+        {
+            check(text);
+            check("<nick> " + text + " tail");
+        }
+
+        assertMatched();
+    }
+
+    /** Plain ASCII is left alone, as the fast path assumes; every pair of ASCII characters */
+    @Test
+    public void leavesAsciiAlone()
+    {
+        for (char a = 0; a < 0x80; a++)
+            for (char b = 0; b < 0x80; b++)
+            {
+                String text = "" + a + b;
+
+                assertSame( text, TRANSCODER.toAliases(text) );
+                check(text);
+            }
+
+        assertMatched();
+    }
+
+    private void check(String text)
+    {
+        String expected = EmojiParser.parseToAliases(text);
+        String actual   = TRANSCODER.toAliases(text);
+
+        if ( !expected.equals(actual) )
+            mismatches.add( codePoints(text) + ": expected \"" + expected + "\", got \""
+                + actual + "\"" );
+    }
+
+    private void assertMatched()
+    {
+        assertTrue( mismatches.isEmpty(), mismatches.size() + " mismatch(es), e.g.\n"
+            + String.join( "\n", mismatches.subList( 0, Math.min(20, mismatches.size()) ) ) );
+    }
+
+    private static String codePoints(String text)
+    {
+        StringBuilder out = new StringBuilder();
+
+        text.codePoints().forEach( cp -> out.append( String.format("U+%04X ", cp) ) );
+        return out.toString().trim();
+    }
+}
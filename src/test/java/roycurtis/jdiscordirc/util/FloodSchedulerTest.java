@@ -0,0 +1,164 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static roycurtis.jdiscordirc.util.FloodScheduler.Priority.*;
+
+public class FloodSchedulerTest
+{
+    private final List<String> sent   = Collections.synchronizedList( new ArrayList<>() );
+    private final List<Long>   sentAt = Collections.synchronizedList( new ArrayList<>() );
+
+    private FloodScheduler scheduler;
+
+    @AfterEach
+    public void stopScheduler()
+    {
+        if (scheduler != null)
+            scheduler.stop();
+    }
+
+    /** Lines are sent no faster than the bucket allows, once its burst is spent */
+    @Test
+    public void pacesLinesByBucket() throws Exception
+    {
+        scheduler = new FloodScheduler( new TokenBucket(2, 50), 10, 100, this::summary );
+
+        CountDownLatch done = new CountDownLatch(12);
+
+        for (int i = 0; i < 12; i++)
+            scheduler.submit( CHAT, "#chan", line("chat " + i, done) );
+
+        scheduler.start();
+        assertTrue( done.await(5, TimeUnit.SECONDS) );
+
+        long took = TimeUnit.NANOSECONDS.toMillis( sentAt.get(11) - sentAt.get(0) );
+
+        // The first two go out at once, then ten more at 50 ms each
+        assertTrue( took >= 450, "Sent too fast: " + took + " ms" );
+        assertEquals( 0, scheduler.getBacklog() );
+    }
+
+    /** Chat goes ahead of actions, notices and away changes that were waiting before it */
+    @Test
+    public void sendsByPriority() throws Exception
+    {
+        scheduler = new FloodScheduler( new TokenBucket(1, 10), 10, 100, this::summary );
+
+        CountDownLatch done = new CountDownLatch(4);
+
+        scheduler.submit( AWAY,   "bot",   line("away",   done) );
+        scheduler.submit( NOTICE, "#chan", line("join",   done) );
+        scheduler.submit( ACTION, "#chan", line("action", done) );
+        scheduler.submit( CHAT,   "#chan", line("chat",   done) );
+        scheduler.start();
+
+        assertTrue( done.await(5, TimeUnit.SECONDS) );
+        assertEquals( List.of("chat", "action", "join", "away"), sent );
+    }
+
+    /** Notices beyond the backlog are skipped, and summed up in one line after the rest */
+    @Test
+    public void summarizesSkippedNotices() throws Exception
+    {
+        scheduler = new FloodScheduler( new TokenBucket(1, 10), 2, 100, this::summary );
+
+        for (int i = 0; i < 5; i++)
+            scheduler.submit( NOTICE, "#chan", line("join " + i, null) );
+
+        scheduler.start();
+
+        assertTrue( awaitSent(3) );
+        assertEquals( List.of("join 0", "join 1", "3 skipped for #chan"), sent );
+    }
+
+    /** Notices that may not be skipped are all sent, though they count towards the backlog */
+    @Test
+    public void neverSkipsUnskippableNotices() throws Exception
+    {
+        scheduler = new FloodScheduler( new TokenBucket(1, 10), 2, 100, this::summary );
+
+        for (int i = 0; i < 4; i++)
+            scheduler.submit( NOTICE, "nick", line("reply " + i, null), false );
+
+        scheduler.submit( NOTICE, "#chan", line("join", null) );
+        scheduler.start();
+
+        assertTrue( awaitSent(5) );
+        assertEquals( List.of("reply 0", "reply 1", "reply 2", "reply 3", "1 skipped for #chan"),
+            sent );
+    }
+
+    /** Only the latest away change is kept */
+    @Test
+    public void keepsLatestAway() throws Exception
+    {
+        scheduler = new FloodScheduler( new TokenBucket(1, 10), 10, 100, this::summary );
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        scheduler.submit( AWAY, "bot", line("away 1", null) );
+        scheduler.submit( AWAY, "bot", line("away 2", done) );
+        scheduler.start();
+
+        assertTrue( done.await(5, TimeUnit.SECONDS) );
+        assertEquals( List.of("away 2"), sent );
+    }
+
+    /** Submitting chat blocks while the chat backlog is full, until a line is sent */
+    @Test
+    public void blocksChatWhileFull() throws Exception
+    {
+        scheduler = new FloodScheduler( new TokenBucket(1, 10), 10, 2, this::summary );
+        scheduler.submit( CHAT,   "#chan", line("chat 0", null) );
+        scheduler.submit( ACTION, "#chan", line("action", null) );
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread         blocked   = new Thread( () -> {
+            scheduler.submit( CHAT, "#chan", line("chat 1", null) );
+            submitted.countDown();
+        });
+
+        blocked.start();
+        assertFalse( submitted.await(200, TimeUnit.MILLISECONDS), "Submit did not block" );
+
+        scheduler.start();
+        assertTrue( submitted.await(5, TimeUnit.SECONDS), "Submit did not resume" );
+    }
+
+    private Runnable line(String text, CountDownLatch done)
+    {
+        return () -> {
+            sentAt.add( System.nanoTime() );
+            sent.add(text);
+
+            if (done != null)
+                done.countDown();
+        };
+    }
+
+    private Runnable summary(String target, int skipped)
+    {
+        return line(skipped + " skipped for " + target, null);
+    }
+
+    private boolean awaitSent(int count) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while ( sent.size() < count && System.nanoTime() < deadline )
+            Thread.sleep(10);
+
+        // Gives anything sent beyond the expected count a chance to show up
+        Thread.sleep(100);
+        return sent.size() >= count;
+    }
+}
@@ -0,0 +1,166 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+import roycurtis.jdiscordirc.util.FormatTranscoder.IRCText;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FormatTranscoderTest
+{
+    private static final String BOLD      = "\u0002";
+    private static final String COLOR     = "\u0003";
+    private static final String HEX_COLOR = "\u0004";
+    private static final String RESET     = "\u000F";
+    private static final String MONOSPACE = "\u0011";
+    private static final String ITALIC    = "\u001D";
+    private static final String STRIKE    = "\u001E";
+    private static final String UNDERLINE = "\u001F";
+
+    private static final String WORD_BREAK = "\u200B";
+
+    //<editor-fold desc="IRC to Discord">
+    /** Each IRC style becomes its markdown */
+    @Test
+    public void convertsStylesToMarkdown()
+    {
+        assertEquals( "**b** *i* __u__ ~~s~~ `m`", FormatTranscoder.toDiscord( BOLD + "b" + BOLD
+            + " " + ITALIC + "i" + ITALIC + " " + UNDERLINE + "u" + UNDERLINE + " " + STRIKE + "s"
+            + STRIKE + " " + MONOSPACE + "m" + MONOSPACE ) );
+    }
+
+    /** Styles nest, and any left on are closed at the end, innermost first */
+    @Test
+    public void nestsStyles()
+    {
+        assertEquals( "**b *bi***",
+            FormatTranscoder.toDiscord(BOLD + "b " + ITALIC + "bi" + ITALIC + BOLD) );
+        assertEquals( "**b *bi***", FormatTranscoder.toDiscord(BOLD + "b " + ITALIC + "bi") );
+        assertEquals( "***x***y", FormatTranscoder.toDiscord(BOLD + ITALIC + "x" + RESET + "y") );
+    }
+
+    /** Styles turned on together are reordered, rather than closed and reopened, when one ends */
+    @Test
+    public void reordersStylesTurnedOnTogether()
+    {
+        String markdown = FormatTranscoder.toDiscord(BOLD + ITALIC + "bi" + BOLD + " i" + ITALIC);
+
+        assertEquals("***bi** i*", markdown);
+
+        // The markdown converts back to the same codes
+        assertArrayEquals( new String[] { BOLD + ITALIC + "bi" + BOLD + " i" + ITALIC },
+            FormatTranscoder.toIRC(markdown).lines );
+    }
+
+    /** Overlapping styles are closed and reopened, without their markers running together */
+    @Test
+    public void reopensOverlappingStyles()
+    {
+        assertEquals( "**b*bi***" + WORD_BREAK + "*i*",
+            FormatTranscoder.toDiscord(BOLD + "b" + ITALIC + "bi" + BOLD + "i" + ITALIC) );
+        assertEquals( "**b ~~bs~~**~~s~~",
+            FormatTranscoder.toDiscord(BOLD + "b " + STRIKE + "bs" + BOLD + "s" + STRIKE) );
+    }
+
+    /** Spaces are kept outside markers, and styles wrapping nothing are dropped */
+    @Test
+    public void keepsSpacesOutsideMarkers()
+    {
+        assertEquals( " **bold** ", FormatTranscoder.toDiscord(BOLD + " bold " + BOLD) );
+        assertEquals( "ab", FormatTranscoder.toDiscord("a" + BOLD + BOLD + "b") );
+        assertEquals( "a b", FormatTranscoder.toDiscord("a" + ITALIC + " " + ITALIC + "b") );
+        assertEquals( "` code `", FormatTranscoder.toDiscord(MONOSPACE + " code " + MONOSPACE) );
+    }
+
+    /** Colors, and codes Discord cannot show, are dropped along with their arguments */
+    @Test
+    public void dropsColors()
+    {
+        assertEquals( "red, 3 and hex", FormatTranscoder.toDiscord( COLOR + "04,12red"
+            + COLOR + ", 3 and " + HEX_COLOR + "FF00FFhex" + HEX_COLOR ) );
+        assertEquals( "1,2", FormatTranscoder.toDiscord(COLOR + "041,2") );
+    }
+
+    /** Literal markdown is escaped, except underscores inside words */
+    @Test
+    public void escapesLiteralMarkdown()
+    {
+        assertEquals( "2\\*3 \\~\\~x\\~\\~ \\`y\\` a\\|b snake_case \\_edge\\_ \\\\",
+            FormatTranscoder.toDiscord("2*3 ~~x~~ `y` a|b snake_case _edge_ \\") );
+    }
+
+    /** Links are left alone, as escaping them would break them */
+    @Test
+    public void leavesLinksAlone()
+    {
+        assertEquals( "see https://example.com/a_b*c_ \\*ok\\*",
+            FormatTranscoder.toDiscord("see https://example.com/a_b*c_ *ok*") );
+    }
+
+    /** Nothing in code is escaped, and backticks there cannot end it early */
+    @Test
+    public void passesCodeThrough()
+    {
+        assertEquals( "`x*y'z_`", FormatTranscoder.toDiscord(MONOSPACE + "x*y`z_" + MONOSPACE) );
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Discord to IRC">
+    /** Markdown becomes IRC codes, wherever IRC has an equivalent */
+    @Test
+    public void convertsMarkdownToCodes()
+    {
+        assertArrayEquals( new String[] { BOLD + "b" + BOLD + " " + ITALIC + "i" + ITALIC + " "
+            + ITALIC + "j" + ITALIC + " " + UNDERLINE + "u" + UNDERLINE + " " + STRIKE + "s"
+            + STRIKE }, lines("**b** *i* _j_ __u__ ~~s~~") );
+        assertArrayEquals( new String[] { BOLD + ITALIC + "both" + BOLD + ITALIC },
+            lines("***both***") );
+    }
+
+    /** Markers never closed on their line, or not at a word's edge, stay as typed */
+    @Test
+    public void keepsUnclosedMarkers()
+    {
+        assertArrayEquals( new String[] { "2 * 3 and **open" }, lines("2 * 3 and **open") );
+        assertArrayEquals( new String[] { "snake_case_name" }, lines("snake_case_name") );
+        assertArrayEquals( new String[] { "*a", "b*" }, lines("*a\nb*") );
+    }
+
+    /** Escaped markdown shows as typed, without its backslash */
+    @Test
+    public void unescapesMarkdown()
+    {
+        assertArrayEquals( new String[] { "*literal* \\n" }, lines("\\*literal\\* \\n") );
+    }
+
+    /** Code and links are passed through as typed */
+    @Test
+    public void passesCodeAndLinksThrough()
+    {
+        assertArrayEquals( new String[] { "`**not bold**` " + BOLD + "bold" + BOLD },
+            lines("`**not bold**` **bold**") );
+        assertArrayEquals( new String[] { "```", "*x*", "```" }, lines("```\n*x*\n```") );
+        assertArrayEquals( new String[] { "https://example.com/a_b_c" },
+            lines("https://example.com/a_b_c") );
+    }
+
+    /** A message wholly wrapped in single underscores is an action, as sent by "/me" */
+    @Test
+    public void detectsActions()
+    {
+        IRCText action = FormatTranscoder.toIRC("_waves **hard**_");
+
+        assertTrue(action.isAction);
+        assertArrayEquals( new String[] { "waves " + BOLD + "hard" + BOLD }, action.lines );
+
+        assertFalse( FormatTranscoder.toIRC("__underlined__").isAction );
+        assertFalse( FormatTranscoder.toIRC("snake_case_").isAction );
+        assertFalse( FormatTranscoder.toIRC("__").isAction );
+        assertFalse( FormatTranscoder.toIRC("*waves*").isAction );
+    }
+    //</editor-fold>
+
+    private static String[] lines(String markdown)
+    {
+        return FormatTranscoder.toIRC(markdown).lines;
+    }
+}
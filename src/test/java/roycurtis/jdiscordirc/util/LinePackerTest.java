@@ -0,0 +1,108 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LinePackerTest
+{
+    private static final String SEPARATOR = " | ";
+
+    /** Lengths are counted in UTF-8 bytes, with surrogate pairs as one four byte character */
+    @Test
+    public void countsUtf8Bytes()
+    {
+        String[] texts = {
+            "abc", "\u00E9", "\u20ACuro", "\uD83D\uDE00", "a\uD83D\uDE00\u00E9\u20AC"
+        };
+
+        for (String text : texts)
+            assertEquals( text.getBytes(StandardCharsets.UTF_8).length,
+                LinePacker.utf8Length(text), text );
+    }
+
+    /** Lines are joined by the separator while they fit, but never start or end with it */
+    @Test
+    public void joinsLinesWithSeparator()
+    {
+        assertEquals( List.of("one | two | three"), pack(80, "one", "two", "three") );
+        assertEquals( List.of("one | two", "three"), pack(9, "one", "two", "three") );
+
+        // Blank lines add nothing, not even a separator
+        assertEquals( List.of("one | two"), pack(80, "one", "", "   ", "two") );
+        assertEquals( List.of(), pack(80, "", " ") );
+    }
+
+    /** A line that would only fit without the separator starts a new packed line */
+    @Test
+    public void breaksBeforeSeparatorThatDoesNotFit()
+    {
+        assertEquals( List.of("abcd", "ef"), pack(6, "abcd", "ef") );
+        assertEquals( List.of("abc | d"), pack(7, "abc", "d") );
+    }
+
+    /** Lines are broken after whole words where possible, dropping the space at the break */
+    @Test
+    public void breaksBetweenWords()
+    {
+        assertEquals( List.of("the quick", "brown fox"), pack(10, "the quick brown fox") );
+        assertEquals( List.of("one | two", "three four"), pack(10, "one", "two three four") );
+    }
+
+    /** Words too long for a whole line are broken between characters */
+    @Test
+    public void breaksLongWordsBetweenCharacters()
+    {
+        assertEquals( List.of("a", "abcde", "fgh b"), pack(5, "a abcdefgh b") );
+    }
+
+    /** No packed line goes over the budget in bytes, nor splits a multibyte character */
+    @Test
+    public void keepsToByteBudgetWithMultibyteText()
+    {
+        // Two byte characters, so only two fit in five bytes
+        assertEquals( List.of("\u00E9\u00E9", "\u00E9\u00E9", "\u00E9"),
+            pack(5, "\u00E9".repeat(5)) );
+
+        // A letter and its combining accent stay together, though the next letter would fit
+        assertEquals( List.of("e\u0301", "e\u0301"), pack(4, "e\u0301e\u0301") );
+
+        // Four byte emoji, three byte euro signs and letters with a combining accent
+        String       text   = "\uD83D\uDE00\uD83D\uDE00\u20ACe\u0301\uD83D\uDE00 "
+            + "e\u0301e\u0301e\u0301e\u0301 \u20AC\u20AC\u20AC";
+        List<String> packed = pack(7, text);
+
+        for (String line : packed)
+        {
+            assertTrue( line.getBytes(StandardCharsets.UTF_8).length <= 7, line );
+            assertFalse( Character.isLowSurrogate( line.charAt(0) ), line );
+            assertTrue( line.charAt(0) != '\u0301', line );
+        }
+
+        // Nothing is lost but the spaces at the breaks
+        assertEquals( text.replace(" ", ""), String.join("", packed).replace(" ", "") );
+    }
+
+    /** A single character bigger than the whole budget is sent on its own line, rather than lost */
+    @Test
+    public void keepsCharacterBiggerThanBudget()
+    {
+        assertEquals( List.of("a", "\uD83D\uDE00", "b"), pack(3, "a\uD83D\uDE00b") );
+    }
+
+    /** Formatting codes are kept at the ends of lines, though Java counts them as whitespace */
+    @Test
+    public void keepsFormattingCodes()
+    {
+        assertEquals( List.of("\u0002bold\u0002 | x\u001F"),
+            pack(80, " \u0002bold\u0002", "x\u001F ") );
+    }
+
+    private static List<String> pack(int budget, String... lines)
+    {
+        return LinePacker.pack(lines, budget, SEPARATOR);
+    }
+}
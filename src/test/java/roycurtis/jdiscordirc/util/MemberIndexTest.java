@@ -0,0 +1,202 @@
+package roycurtis.jdiscordirc.util;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses stand-ins for JDA's entities, which answer only what the index asks of them: names, guild
+ * membership and whether a member can read a channel.
+ */
+public class MemberIndexTest
+{
+    private final List<Member>             members = new ArrayList<>();
+    private final List<TextChannel>        texts   = new ArrayList<>();
+    private final Map<Member, String>      name    = new HashMap<>();
+    private final Map<Member, Set<String>> reads   = new HashMap<>();
+    private final MemberIndex              index   = new MemberIndex();
+
+    private Guild       guild;
+    private TextChannel general;
+    private TextChannel staff;
+
+    @BeforeEach
+    public void createGuild()
+    {
+        guild   = fake( Guild.class, "guild", (method, args) -> {
+            switch (method)
+            {
+                case "getId":           return "1";
+                case "getMembers":      return new ArrayList<>(members);
+                case "getTextChannels": return new ArrayList<>(texts);
+                default:                return null;
+            }
+        });
+        general = channel("10");
+        staff   = channel("11");
+    }
+
+    /** A unique name resolves to its member, ignoring case */
+    @Test
+    public void resolvesUniqueName()
+    {
+        Member bob = member("Bob", general);
+
+        index.rebuild( List.of(general) );
+
+        assertSame( bob, index.resolve(general, "bob") );
+        assertSame( bob, index.resolve(general, "BOB") );
+        assertNull( index.resolve(general, "nobody") );
+    }
+
+    /** A name shared by more than one member resolves to nobody, rather than either of them */
+    @Test
+    public void ambiguousNameResolvesToNobody()
+    {
+        member("Sam", general);
+        member("sam", general);
+
+        index.rebuild( List.of(general) );
+
+        assertNull( index.resolve(general, "Sam") );
+    }
+
+    /** A name is ambiguous even if only one of the members sharing it can read the channel */
+    @Test
+    public void nameSharedWithNonReaderIsAmbiguous()
+    {
+        member("Sam", general, staff);
+        member("Sam", general);
+
+        index.rebuild( List.of(general, staff) );
+
+        assertNull( index.resolve(staff, "Sam") );
+    }
+
+    /** A member that cannot read the channel is never resolved there */
+    @Test
+    public void ignoresMembersThatCannotRead()
+    {
+        Member bob = member("Bob", general);
+
+        index.rebuild( List.of(general, staff) );
+
+        assertSame( bob, index.resolve(general, "Bob") );
+        assertNull( index.resolve(staff, "Bob") );
+    }
+
+    /** Ambiguity comes and goes as members join, leave and change name */
+    @Test
+    public void tracksAmbiguityAcrossUpdates()
+    {
+        Member first = member("Sam", general);
+
+        index.rebuild( List.of(general) );
+        assertSame( first, index.resolve(general, "sam") );
+
+        Member second = member("SAM", general);
+
+        index.addMember(second);
+        assertNull( index.resolve(general, "sam"), "Joining did not make the name ambiguous" );
+
+        name.put(second, "Samantha");
+        index.updateName(second);
+        assertSame( first, index.resolve(general, "sam") );
+        assertSame( second, index.resolve(general, "samantha") );
+
+        index.removeMember(first);
+        members.remove(first);
+        assertNull( index.resolve(general, "sam") );
+    }
+
+    /** Losing or gaining access to a channel is picked up once the member is updated */
+    @Test
+    public void tracksAccessChanges()
+    {
+        Member bob = member("Bob", general);
+
+        index.rebuild( List.of(general, staff) );
+        assertNull( index.resolve(staff, "Bob") );
+
+        reads.get(bob).add( staff.getId() );
+        index.updateAccess(bob);
+        assertSame( bob, index.resolve(staff, "Bob") );
+
+        reads.get(bob).remove( general.getId() );
+        index.updateAccess(general);
+        assertNull( index.resolve(general, "Bob") );
+    }
+
+    private TextChannel channel(String id)
+    {
+        TextChannel channel = fake( TextChannel.class, "#" + id, (method, args) -> {
+            switch (method)
+            {
+                case "getId":    return id;
+                case "getGuild": return guild;
+                default:         return null;
+            }
+        });
+
+        texts.add(channel);
+        return channel;
+    }
+
+    private Member member(String effectiveName, TextChannel... readable)
+    {
+        Set<String> ids    = new HashSet<>();
+        Member[]    self   = new Member[1];
+        Member      member = fake( Member.class, effectiveName, (method, args) -> {
+            switch (method)
+            {
+                case "getEffectiveName": return name.get( self[0] );
+                case "getGuild":         return guild;
+                case "hasPermission":    return ids.contains( ((TextChannel) args[0]).getId() );
+                default:                 return null;
+            }
+        });
+
+        for (TextChannel channel : readable)
+            ids.add( channel.getId() );
+
+        self[0] = member;
+        members.add(member);
+        name.put(member, effectiveName);
+        reads.put(member, ids);
+        return member;
+    }
+
+    /** Answers a stand-in's calls by method name, besides equals and hashCode (by identity) */
+    private interface Answers
+    {
+        Object answer(String method, Object[] args);
+    }
+
+    private static <T> T fake(Class<T> type, String description, Answers answers)
+    {
+        Object proxy = Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type },
+            (self, method, args) -> {
+                switch ( method.getName() )
+                {
+                    case "equals":   return self == args[0];
+                    case "hashCode": return System.identityHashCode(self);
+                    case "toString": return description;
+                    default:         return answers.answer(method.getName(), args);
+                }
+            });
+
+        return type.cast(proxy);
+    }
+}
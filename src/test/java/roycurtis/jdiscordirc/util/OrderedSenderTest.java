@@ -0,0 +1,206 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OrderedSenderTest
+{
+    /** Round trip time of the stubbed channel, in milliseconds */
+    private static final int RTT = 50;
+
+    private final ScheduledExecutorService network = Executors.newScheduledThreadPool(4);
+    private final List<String>             handed  = synchronizedList();
+    private final List<String>             failed  = synchronizedList();
+
+    @AfterEach
+    public void stopNetwork()
+    {
+        network.shutdownNow();
+    }
+
+    /** Several messages are in flight at once, so throughput is not bound to one per round trip */
+    @Test
+    public void pipelinesInOrder() throws Exception
+    {
+        int            count  = 40;
+        CountDownLatch sent   = new CountDownLatch(count);
+        OrderedSender  sender = new OrderedSender( (msg, onSuccess, onFailure) -> {
+            handed.add(msg);
+            network.schedule(onSuccess, RTT, TimeUnit.MILLISECONDS);
+        }, this::onFailed, 4, 2, 50);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++)
+            sender.submit("msg " + i, sent::countDown);
+
+        assertTrue( sent.await(10, TimeUnit.SECONDS) );
+
+        long took = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+
+        assertEquals( numbered(count), handed );
+        assertTrue( took < count * RTT / 2, "Took " + took + " ms; one at a time takes "
+            + count * RTT + " ms" );
+        assertEquals( 0, sender.getBacklog() );
+    }
+
+    /** A failed message is retried before anything after it is sent */
+    @Test
+    public void retriesAheadOfNewMessages() throws Exception
+    {
+        CountDownLatch sent   = new CountDownLatch(3);
+        boolean[]      fail   = { true };
+        OrderedSender  sender = new OrderedSender( (msg, onSuccess, onFailure) -> {
+            handed.add(msg);
+
+            if ( msg.equals("msg 1") && fail[0] )
+            {
+                fail[0] = false;
+                network.execute( () -> onFailure.accept( new RuntimeException("503") ) );
+            }
+            else
+                network.execute(onSuccess);
+        }, this::onFailed, 1, 2, 50);
+
+        for (int i = 0; i < 3; i++)
+            sender.submit("msg " + i, sent::countDown);
+
+        assertTrue( sent.await(5, TimeUnit.SECONDS) );
+        assertEquals( List.of("msg 0", "msg 1", "msg 1", "msg 2"), handed );
+        assertEquals( List.of("msg 1 (retrying)"), failed );
+    }
+
+    /** A message that keeps failing is given up on, and does not hold up the rest */
+    @Test
+    public void givesUpAfterRetries() throws Exception
+    {
+        CountDownLatch after  = new CountDownLatch(1);
+        OrderedSender  sender = new OrderedSender( (msg, onSuccess, onFailure) -> {
+            handed.add(msg);
+
+            if ( msg.equals("doomed") )
+                network.execute( () -> onFailure.accept( new RuntimeException("400") ) );
+            else
+                network.execute(onSuccess);
+        }, this::onFailed, 1, 2, 50);
+
+        sender.submit("doomed", () -> fail("Doomed message reported as sent"));
+        sender.submit("after", after::countDown);
+
+        assertTrue( after.await(5, TimeUnit.SECONDS) );
+        assertEquals( List.of("doomed", "doomed", "doomed", "after"), handed );
+        assertEquals( List.of("doomed (retrying)", "doomed (retrying)", "doomed (giving up)"),
+            failed );
+    }
+
+    /** Submitting blocks while the backlog is full, until a send completes */
+    @Test
+    public void blocksWhileFull() throws Exception
+    {
+        List<Runnable> inFlight = Collections.synchronizedList(new ArrayList<>());
+        OrderedSender  sender   = new OrderedSender( (msg, onSuccess, onFailure) ->
+            inFlight.add(onSuccess), this::onFailed, 1, 0, 2);
+
+        // One in flight, and two waiting
+        for (int i = 0; i < 3; i++)
+            sender.submit("msg " + i);
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread         blocked   = new Thread( () -> {
+            sender.submit("msg 3");
+            submitted.countDown();
+        });
+
+        blocked.start();
+        assertFalse( submitted.await(200, TimeUnit.MILLISECONDS), "Submit did not block" );
+
+        inFlight.get(0).run();
+        assertTrue( submitted.await(5, TimeUnit.SECONDS), "Submit did not resume" );
+        assertEquals( 3, sender.getBacklog() );
+    }
+
+    /** A listener that throws loses no message, and sending carries on after it */
+    @Test
+    public void survivesThrowingListener() throws Exception
+    {
+        CountDownLatch sent   = new CountDownLatch(1);
+        OrderedSender  sender = new OrderedSender( (msg, onSuccess, onFailure) -> {
+            handed.add(msg);
+
+            if ( handed.size() == 1 )
+                network.execute( () -> onFailure.accept( new RuntimeException("500") ) );
+            else
+                network.execute(onSuccess);
+        }, (msg, cause, retrying) -> {
+            throw new NullPointerException("No route");
+        }, 1, 2, 50);
+
+        sender.submit("msg 0");
+        sender.submit("msg 1", sent::countDown);
+
+        assertTrue( sent.await(5, TimeUnit.SECONDS), "Sending stopped after the listener threw" );
+        assertEquals( List.of("msg 0", "msg 0", "msg 1"), handed );
+    }
+
+    /** The transport is called without the sender's lock, so other threads are not held up */
+    @Test
+    public void callsTransportWithoutLock() throws Exception
+    {
+        CountDownLatch  sent   = new CountDownLatch(1);
+        OrderedSender[] self   = new OrderedSender[1];
+        OrderedSender   sender = new OrderedSender( (msg, onSuccess, onFailure) -> {
+            // Would time out if the lock were held, as another thread needs it
+            CountDownLatch asked = new CountDownLatch(1);
+
+            network.execute( () -> {
+                self[0].getBacklog();
+                asked.countDown();
+            });
+
+            try
+            {
+                assertTrue( asked.await(1, TimeUnit.SECONDS), "Transport held the lock" );
+                onSuccess.run();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, this::onFailed, 1, 0, 50);
+
+        self[0] = sender;
+        sender.submit("msg 0", sent::countDown);
+
+        assertTrue( sent.await(5, TimeUnit.SECONDS) );
+    }
+
+    private void onFailed(String msg, Throwable cause, boolean retrying)
+    {
+        failed.add( msg + (retrying ? " (retrying)" : " (giving up)") );
+    }
+
+    private static List<String> synchronizedList()
+    {
+        return Collections.synchronizedList( new ArrayList<>() );
+    }
+
+    private static List<String> numbered(int count)
+    {
+        List<String> msgs = new ArrayList<>();
+
+        for (int i = 0; i < count; i++)
+            msgs.add("msg " + i);
+
+        return msgs;
+    }
+}
@@ -0,0 +1,179 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboxTest
+{
+    private static final long MAX_BYTES = 8 << 20;
+    private static final long MAX_AGE   = 60_000;
+
+    @TempDir
+    Path dir;
+
+    private final List<String>   replayed = new ArrayList<>();
+    private final List<Runnable> unsent   = new ArrayList<>();
+
+    /** Held messages are replayed in order, and only once */
+    @Test
+    public void replaysInOrder() throws Exception
+    {
+        Outbox outbox = open();
+
+        append(outbox, "one", "two", "three");
+
+        assertEquals( 3, outbox.replay(this::sendNow) );
+        assertEquals( List.of("one", "two", "three"), replayed );
+        assertTrue( outbox.isEmpty() );
+        assertEquals( 0, outbox.replay(this::sendNow) );
+    }
+
+    /** Held messages survive the outbox being reopened, as after a restart */
+    @Test
+    public void keepsMessagesAcrossReopening() throws Exception
+    {
+        Outbox outbox = open();
+
+        append(outbox, "one", "two", "ünïcödé 😀");
+        outbox.flush();
+
+        Outbox reopened = open();
+
+        assertFalse( reopened.isEmpty() );
+        assertEquals( 3, reopened.replay(this::sendNow) );
+        assertEquals( List.of("one", "two", "ünïcödé 😀"), replayed );
+    }
+
+    /** Only messages known to be sent count as delivered; the rest come back after reopening */
+    @Test
+    public void keepsUnsentMessagesAcrossReopening() throws Exception
+    {
+        Outbox outbox = open();
+
+        append(outbox, "one", "two", "three");
+        assertEquals( 3, outbox.replay(this::sendLater) );
+        assertTrue( outbox.isEmpty(), "Messages in flight were handed over again" );
+
+        unsent.get(0).run();
+        outbox.flush();
+        replayed.clear();
+
+        Outbox reopened = open();
+
+        reopened.replay(this::sendNow);
+        assertEquals( List.of("two", "three"), replayed );
+        assertTrue( open().isEmpty(), "Delivered messages were kept" );
+    }
+
+    /** Rewinding hands over messages in flight again, as they may have been lost */
+    @Test
+    public void rewindReplaysMessagesInFlight() throws Exception
+    {
+        Outbox outbox = open();
+
+        append(outbox, "one", "two");
+        outbox.replay(this::sendLater);
+        unsent.get(0).run();
+
+        outbox.rewind();
+        replayed.clear();
+
+        assertFalse( outbox.isEmpty() );
+        assertEquals( 1, outbox.replay(this::sendNow) );
+        assertEquals( List.of("two"), replayed );
+    }
+
+    /** A refused message stops replay, and is the first handed over next time */
+    @Test
+    public void refusalStopsReplay() throws Exception
+    {
+        Outbox outbox = open();
+
+        append(outbox, "one", "two", "three");
+
+        int accepted = outbox.replay( (msg, onSent) -> {
+            if ( msg.equals("two") )
+                return false;
+
+            return sendNow(msg, onSent);
+        });
+
+        assertEquals( 1, accepted );
+        assertFalse( outbox.isEmpty() );
+
+        replayed.clear();
+        assertEquals( 2, outbox.replay(this::sendNow) );
+        assertEquals( List.of("two", "three"), replayed );
+    }
+
+    /** Messages older than the age cap are skipped */
+    @Test
+    public void skipsExpiredMessages() throws Exception
+    {
+        Outbox outbox = new Outbox(dir, MAX_BYTES, 50);
+
+        append(outbox, "old");
+        Thread.sleep(100);
+        append(outbox, "new");
+
+        assertEquals( 1, outbox.replay(this::sendNow) );
+        assertEquals( List.of("new"), replayed );
+        assertTrue( open().isEmpty(), "Skipped message kept for next time" );
+    }
+
+    /** Once over its size cap, the outbox drops its oldest messages, keeping the rest in order */
+    @Test
+    public void dropsOldestWhenFull() throws Exception
+    {
+        Outbox outbox = new Outbox(dir, 1 << 20, MAX_AGE);
+        String padding = "x".repeat(1000);
+        int    count   = 3000;
+
+        for (int i = 0; i < count; i++)
+            outbox.append(i + " " + padding);
+
+        outbox.replay(this::sendNow);
+
+        assertFalse( replayed.isEmpty() );
+        assertTrue( replayed.size() < count, "Nothing was dropped" );
+        assertEquals( (count - 1) + " " + padding, replayed.get(replayed.size() - 1) );
+
+        int first = Integer.parseInt( replayed.get(0).split(" ")[0] );
+
+        for (int i = 0; i < replayed.size(); i++)
+            assertEquals( (first + i) + " " + padding, replayed.get(i) );
+    }
+
+    private Outbox open() throws Exception
+    {
+        return new Outbox(dir, MAX_BYTES, MAX_AGE);
+    }
+
+    private static void append(Outbox outbox, String... msgs)
+    {
+        for (String msg : msgs)
+            outbox.append(msg);
+    }
+
+    /** Delivery that sends at once */
+    private boolean sendNow(String msg, Runnable onSent)
+    {
+        replayed.add(msg);
+        onSent.run();
+        return true;
+    }
+
+    /** Delivery that accepts the message, but leaves it to the test to say when it was sent */
+    private boolean sendLater(String msg, Runnable onSent)
+    {
+        replayed.add(msg);
+        unsent.add(onSent);
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerRaceTest
+{
+    private final ServerSocket up   = listen();
+    private final ServerSocket also = listen();
+    /** Port nothing listens on, as its listener is closed straight away */
+    private final int          down = closedPort();
+
+    @AfterEach
+    public void close() throws IOException
+    {
+        up.close();
+        also.close();
+    }
+
+    /** The race connects to a server that answers, past those that refuse */
+    @Test
+    public void connectsToServerThatAnswers() throws Exception
+    {
+        ServerRace race = new ServerRace( address(down) + ", " + address(up), null, 1, 1 );
+
+        try ( Socket socket = race.createSocket("ignored", 1) )
+        {
+            assertEquals( up.getLocalPort(), socket.getPort() );
+            assertEquals( address(up), race.getConnected() );
+        }
+    }
+
+    /** The preferred server wins when it answers, and becomes preferred once registered with */
+    @Test
+    public void prefersLastGoodServer() throws Exception
+    {
+        ServerRace race = new ServerRace( address(up) + "," + address(also), address(also), 1, 1 );
+
+        try ( Socket socket = race.createSocket() )
+        {
+            assertEquals( also.getLocalPort(), socket.getPort() );
+        }
+
+        race.onRegistered();
+
+        try ( Socket socket = race.createSocket() )
+        {
+            assertEquals( also.getLocalPort(), socket.getPort() );
+        }
+    }
+
+    /** The race fails, naming every server, if none answers */
+    @Test
+    public void failsIfNoServerAnswers()
+    {
+        ServerRace  race = new ServerRace( address(down), null, 1, 1 );
+        IOException ex   = assertThrows( IOException.class, race::createSocket );
+
+        assertTrue( ex.getMessage().contains( address(down) ), ex.getMessage() );
+    }
+
+    /** The first server is given as configured, with the default port if none */
+    @Test
+    public void givesFirstServer()
+    {
+        ServerRace race = new ServerRace("irc.example.net, irc.example.org:7000", null, 1, 1);
+
+        assertEquals( "irc.example.net", race.getFirst().getHostString() );
+        assertEquals( 6667, race.getFirst().getPort() );
+        assertThrows( RuntimeException.class, () -> new ServerRace(" , ", null, 1, 1) );
+    }
+
+    private static ServerSocket listen()
+    {
+        try
+        {
+            return new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() );
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static int closedPort()
+    {
+        try ( ServerSocket socket = listen() )
+        {
+            return socket.getLocalPort();
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static String address(int port)
+    {
+        return InetAddress.getLoopbackAddress().getHostAddress() + ":" + port;
+    }
+
+    private static String address(ServerSocket socket)
+    {
+        return address( socket.getLocalPort() );
+    }
+}
@@ -0,0 +1,56 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static roycurtis.jdiscordirc.util.StormDetector.Kind.*;
+
+public class StormDetectorTest
+{
+    /** The first events of a window go through, and the rest are summed up once it ends */
+    @Test
+    public void summarizesEventsBeyondThreshold() throws Exception
+    {
+        StormDetector storm = new StormDetector(100, 2);
+
+        assertTrue( storm.offer(JOIN, null) );
+        assertTrue( storm.offer(JOIN, null) );
+        assertFalse( storm.offer(JOIN, null) );
+        assertFalse( storm.offer(PART, null) );
+        assertFalse( storm.offer(JOIN, null) );
+        assertNull( storm.summarizeIfDue(), "Summarized before the window ended" );
+
+        Thread.sleep(150);
+        assertEquals( "2 users joined, 1 user left", storm.summarizeIfDue() );
+        assertEquals( Long.MAX_VALUE, storm.nanosUntilDue() );
+    }
+
+    /** Netsplit quits are always counted, including those with masked server names */
+    @Test
+    public void countsNetsplits() throws Exception
+    {
+        StormDetector storm = new StormDetector(100, 5);
+
+        assertFalse( storm.offer(QUIT, "hub.example.net leaf.example.net") );
+        assertFalse( storm.offer(QUIT, "*.net *.split") );
+        assertFalse( storm.offer(QUIT, "*.net *.split") );
+        assertTrue( storm.offer(QUIT, "Quit: bye") );
+        assertTrue( storm.offer(QUIT, "Ping timeout") );
+
+        Thread.sleep(150);
+        assertEquals( "3 users quit (netsplit hub.example.net ↔ leaf.example.net, *.net ↔ *.split)",
+            storm.summarizeIfDue() );
+    }
+
+    /** A window of 0 lets everything through */
+    @Test
+    public void disabledByZeroWindow()
+    {
+        StormDetector storm = new StormDetector(0, 0);
+
+        for (int i = 0; i < 100; i++)
+            assertTrue( storm.offer(QUIT, "*.net *.split") );
+
+        assertEquals( Long.MAX_VALUE, storm.nanosUntilDue() );
+    }
+}
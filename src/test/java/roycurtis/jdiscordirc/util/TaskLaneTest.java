@@ -0,0 +1,491 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TaskLaneTest
+{
+    private final List<TaskLane> lanes = new ArrayList<>();
+
+    @AfterEach
+    public void stopLanes()
+    {
+        lanes.forEach(TaskLane::stop);
+    }
+
+    //<editor-fold desc="Dispatching">
+    /** An idle lane parks, rather than polling for work */
+    @Test
+    public void idleLaneDoesNotPoll() throws Exception
+    {
+        AtomicInteger checks = new AtomicInteger();
+        TaskLane      lane   = start( new TaskLane( "Idle", new TaskLane.Deferral()
+        {
+            @Override
+            public long nanosUntilDue()
+            {
+                checks.incrementAndGet();
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public void flush() { }
+        }));
+
+        // Lets the lane settle after the task, before counting
+        awaitRun(lane);
+        Thread.sleep(100);
+        int before = checks.get();
+
+        Thread.sleep(500);
+        assertEquals(before, checks.get(), "Lane woke up with nothing to do");
+    }
+
+    /**
+     * Many idle lanes together use next to no CPU time, as none of their threads wakes up. Wakes
+     * are counted by each lane asking its deferral when held work is due, rather than by CPU time
+     * of the whole process, which anything else running would add to.
+     */
+    @Test
+    public void idleLanesDoNotWake() throws Exception
+    {
+        AtomicInteger     wakes    = new AtomicInteger();
+        TaskLane.Deferral counting = new TaskLane.Deferral()
+        {
+            @Override
+            public long nanosUntilDue()
+            {
+                wakes.incrementAndGet();
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public void flush() { }
+        };
+
+        for (int i = 0; i < 100; i++)
+            awaitRun( start( new TaskLane("Idle " + i, counting) ) );
+
+        // Lets the lanes settle after their tasks, before counting
+        Thread.sleep(100);
+        int before = wakes.get();
+
+        Thread.sleep(1000);
+
+        int woke = wakes.get() - before;
+
+        assertEquals( 0, woke, "Idle lanes woke " + woke + " times in a second" );
+    }
+
+    /** A burst is drained at once and in order, far beyond the old 100 tasks per second */
+    @Test
+    public void drainsBurstsInOrder() throws Exception
+    {
+        int            count    = 200_000;
+        int[]          next     = new int[1];
+        AtomicInteger  misorder = new AtomicInteger();
+        CountDownLatch done     = new CountDownLatch(1);
+        TaskLane       lane     = start( new TaskLane("Burst") );
+        long           start    = System.nanoTime();
+
+        for (int i = 0; i < count; i++)
+        {
+            int expected = i;
+
+            lane.submit( () -> {
+                if (next[0]++ != expected)
+                    misorder.incrementAndGet();
+
+                if (next[0] == count)
+                    done.countDown();
+            });
+        }
+
+        assertTrue( done.await(10, TimeUnit.SECONDS), "Burst not drained; ran " + next[0] );
+        assertEquals( 0, misorder.get(), "Tasks ran out of order" );
+
+        double perSecond = count / ( (System.nanoTime() - start) / 1e9 );
+
+        assertTrue(perSecond > 50_000, "Drained only " + (long) perSecond + " tasks per second");
+    }
+
+    /** A metered task has its wait in the lane and its run timed separately */
+    @Test
+    public void metersWaitAndRun() throws Exception
+    {
+        long[]         times = new long[2];
+        CountDownLatch timed = new CountDownLatch(1);
+        TaskLane       lane  = start( new TaskLane("Metered") );
+
+        lane.submit( () -> sleep(100) );
+        lane.submit( TaskLane.Kind.CHAT, () -> sleep(50), (waited, took) -> {
+            times[0] = waited;
+            times[1] = took;
+            timed.countDown();
+        });
+
+        assertTrue( timed.await(5, TimeUnit.SECONDS) );
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(times[0]);
+        long took   = TimeUnit.NANOSECONDS.toMillis(times[1]);
+
+        assertTrue( waited >= 90 && waited < 1000, "Waited " + waited + " ms" );
+        assertTrue( took >= 45 && took < 1000, "Took " + took + " ms" );
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Ordering and independence">
+    /** Held back work is flushed before any task that may not join it, so nothing overtakes it */
+    @Test
+    public void flushesDeferredWorkBeforeOtherTasks() throws Exception
+    {
+        List<String> held = new ArrayList<>();
+        List<String> ran  = new ArrayList<>();
+        TaskLane     lane = start( new TaskLane( "Deferring", new TaskLane.Deferral()
+        {
+            @Override
+            public long nanosUntilDue()
+            {
+                return held.isEmpty()
+                    ? Long.MAX_VALUE
+                    : TimeUnit.SECONDS.toNanos(60);
+            }
+
+            @Override
+            public void flush()
+            {
+                ran.addAll(held);
+                held.clear();
+            }
+        }));
+
+        lane.submit( (TaskLane.Deferrable) () -> held.add("chat 1") );
+        lane.submit( (TaskLane.Deferrable) () -> held.add("chat 2") );
+        lane.submit( () -> ran.add("join") );
+        lane.submit( (TaskLane.Deferrable) () -> held.add("chat 3") );
+        awaitRun(lane);
+
+        assertEquals( List.of("chat 1", "chat 2", "join", "chat 3"), ran );
+    }
+
+    /** Held back work is flushed once due, even if no other task comes along */
+    @Test
+    public void flushesDeferredWorkWhenDue() throws Exception
+    {
+        long           due     = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        CountDownLatch flushed = new CountDownLatch(1);
+        TaskLane       lane    = start( new TaskLane( "Due", new TaskLane.Deferral()
+        {
+            @Override
+            public long nanosUntilDue()
+            {
+                return flushed.getCount() == 0
+                    ? Long.MAX_VALUE
+                    : due - System.nanoTime();
+            }
+
+            @Override
+            public void flush()
+            {
+                flushed.countDown();
+            }
+        }));
+
+        lane.submit( (TaskLane.Deferrable) () -> { } );
+
+        assertTrue( flushed.await(5, TimeUnit.SECONDS) );
+        assertTrue( System.nanoTime() >= due, "Flushed before due" );
+    }
+
+    /**
+     * A lane stalled behind a slow side does not hold up another lane. This only checks two bare
+     * lanes, standing in for the bridge's two directions; not the bridge itself.
+     */
+    @Test
+    public void slowLaneDoesNotStallOtherLane() throws Exception
+    {
+        AtomicInteger slowDone  = new AtomicInteger();
+        TaskLane      toDiscord = start( new TaskLane("To Discord") );
+        TaskLane      toIRC     = start( new TaskLane("To IRC") );
+
+        // As if Discord were slow: each task takes 100 ms, with two seconds' worth queued up
+        for (int i = 0; i < 20; i++)
+            toDiscord.submit( () -> {
+                sleep(100);
+                slowDone.incrementAndGet();
+            });
+
+        long worst = 0;
+
+        for (int i = 0; i < 50; i++)
+        {
+            CountDownLatch ran    = new CountDownLatch(1);
+            long           queued = System.nanoTime();
+
+            toIRC.submit(ran::countDown);
+            assertTrue( ran.await(5, TimeUnit.SECONDS) );
+
+            worst = Math.max( worst, System.nanoTime() - queued );
+            sleep(10);
+        }
+
+        assertTrue( slowDone.get() < 20, "Slow lane caught up too soon to tell" );
+        assertTrue( worst < TimeUnit.MILLISECONDS.toNanos(50), "IRC lane waited up to "
+            + TimeUnit.NANOSECONDS.toMillis(worst) + " ms" );
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Overload">
+    /** A full lane that drops chat first pushes out the oldest waiting chat */
+    @Test
+    public void dropsOldestChatFirst() throws Exception
+    {
+        List<String> ran  = synchronizedList();
+        Listener     told = new Listener();
+        TaskLane     lane = start(
+            new TaskLane("Full", null, 3, TaskLane.Overload.DROP_CHAT, told) );
+        Runnable     open = block(lane);
+
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 1") );
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 2") );
+        lane.submit( TaskLane.Kind.PRESENCE, () -> ran.add("join 1") );
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 3") );
+        lane.submit( TaskLane.Kind.PRESENCE, () -> ran.add("join 2") );
+        open.run();
+        awaitIdle(lane);
+
+        assertEquals( List.of("join 1", "chat 3", "join 2"), ran );
+        assertEquals( List.of("overloaded", "dropped CHAT", "dropped CHAT", "recovered 2 0"),
+            told.events );
+    }
+
+    /** A full lane that drops presence first pushes out the oldest waiting presence */
+    @Test
+    public void dropsOldestPresenceFirst() throws Exception
+    {
+        List<String> ran  = synchronizedList();
+        Listener     told = new Listener();
+        TaskLane     lane = start(
+            new TaskLane("Full", null, 3, TaskLane.Overload.DROP_PRESENCE, told) );
+        Runnable     open = block(lane);
+
+        lane.submit( TaskLane.Kind.PRESENCE, () -> ran.add("join 1") );
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 1") );
+        lane.submit( TaskLane.Kind.PRESENCE, () -> ran.add("join 2") );
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 2") );
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 3") );
+        open.run();
+        awaitIdle(lane);
+
+        assertEquals( List.of("chat 1", "chat 2", "chat 3"), ran );
+        assertEquals(
+            List.of("overloaded", "dropped PRESENCE", "dropped PRESENCE", "recovered 0 2"),
+            told.events );
+    }
+
+    /** With only chat waiting, new presence is what gets dropped, rather than any chat */
+    @Test
+    public void dropsNewTaskOfPreferredKind() throws Exception
+    {
+        List<String> ran  = synchronizedList();
+        TaskLane     lane = start(
+            new TaskLane("Full", null, 2, TaskLane.Overload.DROP_PRESENCE, null) );
+        Runnable     open = block(lane);
+
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 1") );
+        lane.submit( TaskLane.Kind.CHAT,     () -> ran.add("chat 2") );
+        lane.submit( TaskLane.Kind.PRESENCE, () -> ran.add("join") );
+        open.run();
+        awaitRun(lane);
+
+        assertEquals( List.of("chat 1", "chat 2"), ran );
+    }
+
+    /** Control tasks are never dropped, and do not count towards the bound */
+    @Test
+    public void neverDropsControlTasks() throws Exception
+    {
+        AtomicInteger ran  = new AtomicInteger();
+        TaskLane      lane = start(
+            new TaskLane("Full", null, 1, TaskLane.Overload.DROP_CHAT, null) );
+        Runnable      open = block(lane);
+
+        for (int i = 0; i < 100; i++)
+            lane.submit(ran::incrementAndGet);
+
+        lane.submit( TaskLane.Kind.CHAT, ran::incrementAndGet );
+        open.run();
+        awaitRun(lane);
+
+        assertEquals( 101, ran.get() );
+    }
+
+    /**
+     * Fed ten times faster than it can keep up, a lane never holds more tasks than its bound, and
+     * every task is either run or counted as dropped. Tasks held are counted by what was submitted,
+     * less what has run and what was dropped; so they include those the lane has taken off its
+     * queue, but not yet run.
+     */
+    @Test
+    public void staysBoundedUnderSustainedOverload() throws Exception
+    {
+        int           capacity = 50;
+        int           count    = 5000;
+        AtomicInteger ran      = new AtomicInteger();
+        Listener      told     = new Listener();
+        TaskLane      lane     = start( new TaskLane( "Soak", null, capacity,
+            TaskLane.Overload.DROP_CHAT, told) );
+        int           worst    = 0;
+
+        // Each task takes about 1 ms, while ten are submitted per millisecond
+        for (int i = 0; i < count; i++)
+        {
+            lane.submit( TaskLane.Kind.CHAT, () -> {
+                busyWait(1_000_000);
+                ran.incrementAndGet();
+            });
+
+            // Drops are told before submitting returns, so they are all counted by now
+            worst = Math.max( worst, i + 1 - ran.get() - told.dropped.get() );
+
+            if (i % 10 == 9)
+                busyWait(1_000_000);
+        }
+
+        awaitIdle(lane);
+
+        assertTrue( worst <= capacity, "Lane held up to " + worst + " tasks" );
+        assertTrue( ran.get() < count / 2, "Lane kept up too well to tell; ran " + ran.get() );
+        assertEquals( count - ran.get(), told.count("dropped CHAT") );
+
+        // Recovering is told once the lane finds nothing left after a batch
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while ( told.recoveredChat < told.count("dropped CHAT") && System.nanoTime() < deadline )
+            sleep(10);
+
+        assertEquals( told.count("dropped CHAT"), told.recoveredChat, "Recoveries miscounted" );
+    }
+    //</editor-fold>
+
+    private TaskLane start(TaskLane lane)
+    {
+        lanes.add(lane);
+        lane.start();
+        return lane;
+    }
+
+    /** Waits until the lane has run everything queued so far */
+    private static void awaitRun(TaskLane lane) throws InterruptedException
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        lane.submit(ran::countDown);
+        assertTrue( ran.await(5, TimeUnit.SECONDS) );
+    }
+
+    /** Waits until the lane has run everything queued so far, and finished up after it */
+    private static void awaitIdle(TaskLane lane) throws InterruptedException
+    {
+        // The lane tells of recovering after its latest batch, which the first task may be in
+        awaitRun(lane);
+        awaitRun(lane);
+    }
+
+    /**
+     * Holds up the lane until the returned task is run, so that tasks submitted meanwhile wait
+     */
+    private static Runnable block(TaskLane lane) throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch opened  = new CountDownLatch(1);
+
+        lane.submit( () -> {
+            started.countDown();
+
+            try
+            {
+                opened.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertTrue( started.await(5, TimeUnit.SECONDS) );
+        return opened::countDown;
+    }
+
+    private static void busyWait(long nanos)
+    {
+        long until = System.nanoTime() + nanos;
+
+        while (System.nanoTime() < until)
+            Thread.onSpinWait();
+    }
+
+    private static List<String> synchronizedList()
+    {
+        return Collections.synchronizedList( new ArrayList<>() );
+    }
+
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Keeps what a lane told of its overloads, in order */
+    private static class Listener implements TaskLane.OverloadListener
+    {
+        final List<String>  events  = synchronizedList();
+        final AtomicInteger dropped = new AtomicInteger();
+
+        /** Total chat dropped, as told on recovering; only written by the lane's thread */
+        volatile int recoveredChat;
+
+        @Override
+        public void onOverloaded(TaskLane lane)
+        {
+            events.add("overloaded");
+        }
+
+        @Override
+        public void onDropped(TaskLane lane, TaskLane.Kind kind)
+        {
+            events.add("dropped " + kind);
+            dropped.incrementAndGet();
+        }
+
+        @Override
+        public void onRecovered(TaskLane lane, int droppedChat, int droppedPresence)
+        {
+            events.add("recovered " + droppedChat + " " + droppedPresence);
+            recoveredChat += droppedChat;
+        }
+
+        int count(String event)
+        {
+            synchronized (events)
+            {
+                return (int) events.stream().filter(event::equals).count();
+            }
+        }
+    }
+}
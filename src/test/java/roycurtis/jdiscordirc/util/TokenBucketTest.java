@@ -0,0 +1,56 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketTest
+{
+    /** A full bucket allows a burst of its capacity at once, then asks to wait */
+    @Test
+    public void allowsBurstThenWaits()
+    {
+        TokenBucket bucket = new TokenBucket(5, 1000);
+
+        for (int i = 0; i < 5; i++)
+            assertEquals( 0, bucket.tryAcquire(), "Token " + i + " of the burst refused" );
+
+        long wait = bucket.tryAcquire();
+
+        assertTrue( wait > TimeUnit.MILLISECONDS.toNanos(900), "Asked to wait only " + wait );
+        assertTrue( wait <= TimeUnit.MILLISECONDS.toNanos(1000), "Asked to wait " + wait );
+    }
+
+    /** Once the burst is spent, tokens are handed out one per interval */
+    @Test
+    public void pacesAfterBurst() throws Exception
+    {
+        TokenBucket bucket = new TokenBucket(2, 50);
+        long        start  = System.nanoTime();
+
+        for (int i = 0; i < 12; i++)
+            bucket.acquire();
+
+        long took = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+
+        // Two at once, then ten more at 50 ms each
+        assertTrue( took >= 480, "Paced too fast: " + took + " ms" );
+        assertTrue( took < 1500, "Paced too slow: " + took + " ms" );
+    }
+
+    /** Shrinking the bucket drops the tokens beyond its new capacity */
+    @Test
+    public void setRateKeepsTokensUpToCapacity()
+    {
+        TokenBucket bucket = new TokenBucket(10, 1000);
+
+        bucket.setRate(3, 1000);
+
+        for (int i = 0; i < 3; i++)
+            assertEquals( 0, bucket.tryAcquire() );
+
+        assertTrue( bucket.tryAcquire() > 0, "Kept more tokens than the new capacity" );
+    }
+}
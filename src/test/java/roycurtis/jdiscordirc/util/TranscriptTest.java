@@ -0,0 +1,90 @@
+package roycurtis.jdiscordirc.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import roycurtis.jdiscordirc.util.Transcript.Line;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TranscriptTest
+{
+    private static final String CHANNEL = "#bridge";
+
+    @TempDir
+    Path dir;
+
+    /** Lines come back as recorded, oldest first, after the transcript is reopened */
+    @Test
+    public void keepsLinesAcrossReopening() throws Exception
+    {
+        Transcript transcript = new Transcript(dir, 0);
+
+        transcript.append(1000, CHANNEL, false, false, "alice", "hello");
+        transcript.append(2000, "#other", true, false, "bob", "elsewhere");
+        transcript.append(3000, CHANNEL, true, true, "Bøb", "waves 😀");
+        transcript.flush();
+
+        List<Line> lines = new Transcript(dir, 0).last(CHANNEL, 10);
+
+        assertEquals( 2, lines.size() );
+        assertLine( lines.get(0), 1000, false, false, "alice", "hello" );
+        assertLine( lines.get(1), 3000, true, true, "Bøb", "waves 😀" );
+    }
+
+    /** Lookups by nick and by text find the same lines after reopening, ignoring case */
+    @Test
+    public void findsLinesAcrossReopening() throws Exception
+    {
+        Transcript transcript = new Transcript(dir, 0);
+
+        transcript.append(1000, CHANNEL, false, false, "alice", "first");
+        transcript.append(2000, CHANNEL, false, false, "bob", "Second");
+        transcript.append(3000, CHANNEL, false, false, "Alice", "third");
+        transcript.flush();
+
+        Transcript reopened = new Transcript(dir, 0);
+
+        assertEquals( List.of("first", "third"),
+            texts( reopened.byNick(CHANNEL, "ALICE", 0, 10) ) );
+        assertEquals( List.of("third"), texts( reopened.byNick(CHANNEL, "alice", 2500, 10) ) );
+        assertEquals( List.of("Second"), texts( reopened.search(CHANNEL, "second", 0, 10) ) );
+
+        // Lines appended after reopening follow on from those already kept
+        reopened.append(4000, CHANNEL, false, false, "bob", "fourth");
+
+        assertEquals( List.of("third", "fourth"), texts( reopened.last(CHANNEL, 2) ) );
+    }
+
+    /** Names too long to keep are cut at the start of a character, not in the middle of one */
+    @Test
+    public void cutsLongNamesBetweenCharacters()
+    {
+        // 127 two-byte characters end at byte 254, so the 128th would be split by a cut at 255
+        String name = "é".repeat(200);
+        byte[] cut  = Transcript.name(name);
+
+        assertEquals( 254, cut.length );
+        assertEquals( "é".repeat(127), new String(cut, StandardCharsets.UTF_8) );
+        assertArrayEquals( "short".getBytes(StandardCharsets.UTF_8), Transcript.name("short") );
+    }
+
+    private static void assertLine(Line line, long time, boolean fromDiscord, boolean isAction,
+                                   String nick, String text)
+    {
+        assertEquals(time, line.time);
+        assertEquals(fromDiscord, line.fromDiscord);
+        assertEquals(isAction, line.isAction);
+        assertEquals(CHANNEL, line.channel);
+        assertEquals(nick, line.nick);
+        assertEquals(text, line.text);
+    }
+
+    private static List<String> texts(List<Line> lines)
+    {
+        return lines.stream().map(line -> line.text).toList();
+    }
+}
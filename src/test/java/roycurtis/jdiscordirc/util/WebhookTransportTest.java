@@ -0,0 +1,175 @@
+package roycurtis.jdiscordirc.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WebhookTransportTest
+{
+    private static final String PATH = "/api/webhooks/1/test";
+
+    private final HttpClient    client   = HttpClient.newHttpClient();
+    private final List<String>  bodies   = new CopyOnWriteArrayList<>();
+    private final List<Long>    arrivals = new CopyOnWriteArrayList<>();
+    private final AtomicInteger limited  = new AtomicInteger();
+
+    /** Seconds the stub asks clients to wait, by its Retry-After header */
+    private volatile String retryAfter = "0.2";
+    /** Seconds until the limit resets, sent with every success as if none were left; or null */
+    private volatile String resetAfter;
+
+    private HttpServer server;
+
+    @BeforeEach
+    public void startStub() throws IOException
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0
+        );
+        server.createContext(PATH, this::serve);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopStub()
+    {
+        server.stop(0);
+    }
+
+    /** A rate limited message is sent again after the wait asked for, and does not fail */
+    @Test
+    public void retriesAfterRateLimit() throws Exception
+    {
+        limited.set(1);
+
+        send("hello").get(5, TimeUnit.SECONDS);
+
+        assertEquals( 2, bodies.size() );
+        assertEquals( bodies.get(0), bodies.get(1) );
+
+        long waited = arrivals.get(1) - arrivals.get(0);
+
+        assertTrue( waited >= TimeUnit.MILLISECONDS.toNanos(200),
+            "Retried after only " + TimeUnit.NANOSECONDS.toMillis(waited) + " ms" );
+    }
+
+    /** Once a response says no requests are left, the next waits for the limit to reset */
+    @Test
+    public void pacesMessagesByRateLimitHeaders() throws Exception
+    {
+        WebhookTransport transport = new WebhookTransport( client, getUrl() );
+
+        resetAfter = "0.2";
+        send(transport, "first").get(5, TimeUnit.SECONDS);
+        send(transport, "second").get(5, TimeUnit.SECONDS);
+
+        assertEquals( 2, bodies.size() );
+
+        long waited = arrivals.get(1) - arrivals.get(0);
+
+        assertTrue( waited >= TimeUnit.MILLISECONDS.toNanos(200),
+            "Sent after only " + TimeUnit.NANOSECONDS.toMillis(waited) + " ms" );
+    }
+
+    /** A message limited too many times in a row fails, rather than waiting forever */
+    @Test
+    public void failsWhenLimitedTooOften() throws Exception
+    {
+        retryAfter = "0.01";
+        limited.set( Integer.MAX_VALUE );
+
+        CompletableFuture<Void> sent = send("hello");
+
+        Exception ex = assertThrows( Exception.class, () -> sent.get(5, TimeUnit.SECONDS) );
+
+        assertTrue( ex.getCause() instanceof IOException, ex.toString() );
+        assertTrue( ex.getCause().getMessage().contains("429"), ex.getCause().getMessage() );
+    }
+
+    /** Payloads escape their text, and only ever allow user mentions */
+    @Test
+    public void escapesPayload()
+    {
+        assertEquals(
+            "{\"content\":\"say \\\"hi\\\"\\n\\\\o/\",\"username\":\"bob\","
+                + "\"allowed_mentions\":{\"parse\":[\"users\"]}}",
+            WebhookTransport.payload("bob", "say \"hi\"\n\\o/")
+        );
+    }
+
+    private CompletableFuture<Void> send(String content)
+    {
+        return send( new WebhookTransport( client, getUrl() ), content );
+    }
+
+    private static CompletableFuture<Void> send(WebhookTransport transport, String content)
+    {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        transport.send( WebhookTransport.payload(null, content),
+            () -> sent.complete(null),
+            sent::completeExceptionally
+        );
+
+        return sent;
+    }
+
+    private String getUrl()
+    {
+        InetSocketAddress address = server.getAddress();
+
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + PATH;
+    }
+
+    /**
+     * Answers 429 with Retry-After while any limited responses are left, then 200 along with any
+     * rate limit headers
+     */
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        try ( InputStream in = exchange.getRequestBody() )
+        {
+            bodies.add( new String( in.readAllBytes(), StandardCharsets.UTF_8 ) );
+            arrivals.add( System.nanoTime() );
+        }
+
+        boolean isLimited = limited.getAndUpdate( left -> Math.max(0, left - 1) ) > 0;
+        byte[]  body      = ( isLimited
+            ? "{\"message\":\"You are being rate limited.\",\"retry_after\":" + retryAfter + "}"
+            : "{\"id\":\"1\"}" ).getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+
+        if (isLimited)
+            exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        else if (resetAfter != null)
+        {
+            exchange.getResponseHeaders().set("X-RateLimit-Remaining", "0");
+            exchange.getResponseHeaders().set("X-RateLimit-Reset-After", resetAfter);
+        }
+
+        exchange.sendResponseHeaders(isLimited ? 429 : 200, body.length);
+
+        try ( OutputStream out = exchange.getResponseBody() )
+        {
+            out.write(body);
+        }
+    }
+}